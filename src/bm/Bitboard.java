@@ -0,0 +1,143 @@
+package bm;
+
+/**
+ * This class provides a set of cells of a width x height grid that is stored
+ * twice: row by row and column by column, one bit per cell. So the nearest cell
+ * of the set along a row or a column can be found 64 cells at a time using bit
+ * scans, no matter in which of the four directions one is looking.
+ * 
+ * It is used by Level to keep track of the tiles that stop a blast (see
+ * Bomb.spread()).
+ */
+final class Bitboard {
+
+    private final int width, height; // dimension of the grid
+    private final int rowWords, colWords; // number of words per row/column
+    private final long[] rows; // bit x of row y is set if (x, y) is in this set
+    private final long[] cols; // the same bits, column by column
+
+    /**
+     * Creates a new, empty Bitboard for a grid of the given dimension.
+     * 
+     * @param width The width of the grid.
+     * @param height The height of the grid.
+     */
+    Bitboard(int width, int height) {
+        this.width = width;
+        this.height = height;
+        rowWords = (width + 63) >>> 6;
+        colWords = (height + 63) >>> 6;
+        rows = new long[height * rowWords];
+        cols = new long[width * colWords];
+    }
+
+    /**
+     * Adds the cell (posX, posY) to this set or removes it. The position must
+     * lie within the grid.
+     * 
+     * @param posX The x coordinate of the cell.
+     * @param posY The y coordinate of the cell.
+     * @param value true to add the cell, false to remove it.
+     */
+    void set(int posX, int posY, boolean value) {
+        int row = posY * rowWords + (posX >>> 6);
+        int col = posX * colWords + (posY >>> 6);
+        if (value) {
+            rows[row] |= 1L << posX;
+            cols[col] |= 1L << posY;
+        } else {
+            rows[row] &= ~(1L << posX);
+            cols[col] &= ~(1L << posY);
+        }
+    }
+
+    /**
+     * Returns true if the cell (posX, posY) is in this set. The position must
+     * lie within the grid.
+     * 
+     * @param posX The x coordinate of the cell.
+     * @param posY The y coordinate of the cell.
+     * @return true if the cell is in this set.
+     */
+    boolean get(int posX, int posY) {
+        return (rows[posY * rowWords + (posX >>> 6)] & (1L << posX)) != 0;
+    }
+
+    /**
+     * Looks for the nearest cell of this set in the direction (dirX, dirY)
+     * starting from (posX, posY), which must lie within the grid. Only the
+     * cells at a distance between from and to (both inclusive, from >= 1) are
+     * considered; cells outside of the grid are never in this set. Exactly one
+     * of dirX and dirY has to be 0, the other one either 1 or -1.
+     * 
+     * @param posX The x coordinate of the starting point.
+     * @param posY The y coordinate of the starting point.
+     * @param dirX The x direction to look in.
+     * @param dirY The y direction to look in.
+     * @param from The smallest distance to be considered.
+     * @param to The greatest distance to be considered.
+     * @return The distance of the nearest cell or -1 if there is none.
+     */
+    int scan(int posX, int posY, int dirX, int dirY, int from, int to) {
+        long[] bits;
+        int base, pos, limit;
+        if (dirY == 0) { // along the row
+            bits = rows;
+            base = posY * rowWords;
+            pos = posX;
+            limit = width;
+        } else { // along the column
+            bits = cols;
+            base = posX * colWords;
+            pos = posY;
+            limit = height;
+        }
+        int found;
+        if (dirX + dirY > 0) {
+            found = next(bits, base, pos + from, Math.min(pos + to, limit - 1));
+            return found < 0 ? -1 : found - pos;
+        }
+        found = previous(bits, base, pos - from, Math.max(pos - to, 0));
+        return found < 0 ? -1 : pos - found;
+    }
+
+    /**
+     * Helper method for scan(). Returns the smallest set bit between lo and hi
+     * (both inclusive) of the line starting at word base, or -1 if there is
+     * none.
+     */
+    private static int next(long[] bits, int base, int lo, int hi) {
+        if (lo > hi)
+            return -1;
+        int word = lo >>> 6;
+        int last = hi >>> 6;
+        long current = bits[base + word] & (-1L << lo);
+        while (current == 0) {
+            if (++word > last)
+                return -1;
+            current = bits[base + word];
+        }
+        int found = (word << 6) + Long.numberOfTrailingZeros(current);
+        return found <= hi ? found : -1;
+    }
+
+    /**
+     * Helper method for scan(). Returns the greatest set bit between lo and hi
+     * (both inclusive) of the line starting at word base, or -1 if there is
+     * none.
+     */
+    private static int previous(long[] bits, int base, int hi, int lo) {
+        if (lo > hi)
+            return -1;
+        int word = hi >>> 6;
+        int first = lo >>> 6;
+        long current = bits[base + word] & (-1L >>> (63 - (hi & 63)));
+        while (current == 0) {
+            if (--word < first)
+                return -1;
+            current = bits[base + word];
+        }
+        int found = (word << 6) + 63 - Long.numberOfLeadingZeros(current);
+        return found >= lo ? found : -1;
+    }
+}
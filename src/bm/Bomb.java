@@ -1,5 +1,9 @@
 package bm;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import bm.log.Logger;
 
 /**
@@ -17,9 +21,6 @@ public class Bomb implements Updateable {
     // ///////////////////////CONSTANT VARIABLES////////////////////////////////
     // /////////////////////////////////////////////////////////////////////////
 
-    /** Holds the number of all Bombs exploding at this moment. */
-    public static int explodeCount = 0;
-
     /** Constant that a Bomb will interpret as itself still COUNTING down. */
     public static final byte COUNTING = 1;
     /** Constant that a Bomb will interpret as itself EXPLODING. */
@@ -34,6 +35,17 @@ public class Bomb implements Updateable {
     /** Format for creating a String reporting about this Bomb's creation. */
     public static final String NEWBOMB = "Created new Bomb. Position: (%d, %d). Owner: %s. Range: %d";
 
+    // directions in which the blast spreads, in this order (see spread())
+    private static final byte CENTER = 0, LEFT = 1, RIGHT = 2, TOP = 3,
+            BOTTOM = 4;
+    // offsets of the tiles in each direction
+    private static final int[] DIRX = { 0, -1, 1, 0, 0 };
+    private static final int[] DIRY = { 0, 0, 0, -1, 1 };
+    // reasons for the blast to stop spreading before it is complete
+    private static final byte NOTSTOPPED = 0; // it hasn't stopped
+    private static final byte STOPPEDINSIDE = 1; // at a Bomb it passes through
+    private static final byte STOPPEDOUTSIDE = 2; // at a Bomb it ends at
+
     // /////////////////////////////////////////////////////////////////////////
     // /////////////////////////////FIELDS//////////////////////////////////////
     // /////////////////////////////////////////////////////////////////////////
@@ -46,7 +58,10 @@ public class Bomb implements Updateable {
     protected boolean quadDamage; // if true 4 x range and destroys more tiles
     protected byte left, right, top, bottom; // will be calculated when expl.
 
-    private int counter; // name explains it. Is reused.
+    private long deadline; // tick of the next change of state, see Level
+    private byte blastDir; // direction the blast spreads in, see spread()
+    private byte blastStop; // why the blast has stopped spreading, see spread()
+    int fired; // computation of the danger that set it off, see DangerField
 
     protected Level lvl; // the level where this bomb is placed
     protected Player player; // planter of this bomb
@@ -97,7 +112,8 @@ public class Bomb implements Updateable {
         this.player = player;
         // player can only plant a certain number of bombs at a time
         player.incrementAmmoCount();
-        counter = COUNTDOWN; // start with 'normal' countdown
+        // start with 'normal' countdown
+        deadline = lvl.schedule(posX, posY, COUNTDOWN);
         left = right = top = bottom = 0; // will be recalculated at expl. time
         if (Logger.verbose())
             Logger.writeln(String.format(NEWBOMB, posX, posY, player.getName(),
@@ -155,138 +171,245 @@ public class Bomb implements Updateable {
         return state == COUNTING;
     }
 
+    /**
+     * Returns the number of ticks until this Bomb explodes if it is still
+     * COUNTING, or the number of ticks until it is removed if it is EXPLODING.
+     * 
+     * @return The number of ticks left in the current state.
+     */
+    protected int getCounter() {
+        return (int) Math.max(0, deadline - lvl.getNextVisit(posX, posY));
+    }
+
+    /**
+     * Returns the tick on which this Bomb changes its state next, i.e. the tick
+     * it explodes on if it is still COUNTING.
+     * 
+     * @return The tick of the next change of state.
+     */
+    long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Moves the tick of the next change of state by the given number of ticks,
+     * e.g. to translate a deadline read from a Snapshot to the ticks of this
+     * Bomb's Level.
+     * 
+     * @param ticks The number of ticks to add to the deadline.
+     */
+    void shiftDeadline(long ticks) {
+        deadline += ticks;
+    }
+
+    /**
+     * Returns the range of this Bomb (already multiplied in Quad Damage mode).
+     * 
+     * @return The range of this Bomb.
+     */
+    byte getRange() {
+        return range;
+    }
+
+    /**
+     * Writes the state of this Bomb (everything but its position, owner and
+     * Quad Damage mode, which Level.writeBombs() takes care of) to the given
+     * output.
+     * 
+     * @param out The output to write the state to.
+     * @throws IOException If the state cannot be written.
+     */
+    void writeState(DataOutput out) throws IOException {
+        out.writeByte(state);
+        out.writeByte(range);
+        out.writeLong(deadline);
+        out.writeByte(left);
+        out.writeByte(right);
+        out.writeByte(top);
+        out.writeByte(bottom);
+        out.writeByte(blastDir);
+    }
+
+    /**
+     * Restores the state written by writeState(out).
+     * 
+     * @param in The input to read the state from.
+     * @throws IOException If the state cannot be read.
+     */
+    void readState(DataInput in) throws IOException {
+        state = in.readByte();
+        range = in.readByte();
+        deadline = in.readLong();
+        left = in.readByte();
+        right = in.readByte();
+        top = in.readByte();
+        bottom = in.readByte();
+        blastDir = in.readByte();
+    }
+
     // /////////////////////////////////////////////////////////////////////////
     // /////////////////////////UPDATE METHODS//////////////////////////////////
     // /////////////////////////////////////////////////////////////////////////
 
     /**
-     * This method performs an update on this bomb, i.e. counting down until
-     * explosion time, destroying tiles when exploding, setting and keeping them
-     * on fire etc. It should be called once per game tick.
+     * This method performs an update on this bomb, i.e. exploding it once its
+     * countdown has run out and removing it once it has stopped exploding.
+     * The Level calls it on the ticks where this Bomb changes its state (see
+     * Level.schedule()); calling it on any other tick has no effect.
      */
     public void update() {
+        if (lvl.getTicks() < deadline)
+            return; // nothing to do yet
         switch (state) {
         case EXPLODED: // nothing to do
             return;
         case COUNTING:
-            if (counter > 0)
-                updateCountingBomb();
-            else explode();
+            explode();
             break;
         case EXPLODING:
-            if (counter > 0)
-                updateExplodingBomb();
-            else remove();
+            remove();
             break;
         }
     }
 
-    /**
-     * This method is called every time this Bomb counts down a tick. It can
-     * possibly be overridden to add visual effects or similar.
-     */
-    protected void updateCountingBomb() {
-        counter--;
-    }
-
     /**
      * This method detonates this Bomb. It will eventually be called through the
      * update()-method but may as well be invoked manually. This is primarily
      * used by the Level-class to invoke chain reactions.
      */
     public void explode() {
-        counter = EXPLODINGTIME; // reusing the counter
-        explodeCount++; // static variable; used for shock effects
+        deadline = lvl.schedule(posX, posY, EXPLODINGTIME);
+        lvl.incrementExplodeCount(); // used for shock effects
         state = EXPLODING;
         player.decrementAmmoCount(); // enable player to plant a new Bomb
 
-        // start by destr. the tile underneath, also try to kill Players
-        lvl.destroyBlock(posX, posY);
-        killPlayer(posX, posY);
-        int i, posX, posY;
+        lvl.blast(this); // destroys tiles & kills Players, see spread()
+    }
+
+    /**
+     * Lets the blast of this Bomb spread until it is either complete or reaches
+     * a Bomb that has not exploded yet. Returns true in the first case. In the
+     * second case, that Bomb has just been set off and false is returned; the
+     * Level lets its blast spread first and then calls this method again to
+     * continue where it stopped (see Level.blast()). The blast starts at the
+     * tile underneath this Bomb and then spreads to the left, right, top and
+     * bottom (in this order) until it reaches a solid tile or its range.
+     * 
+     * @return true if the blast of this Bomb is complete.
+     */
+    boolean spread() {
+        int i, stop, end, posX, posY;
+        if (blastDir == CENTER) {
+            // start by destr. the tile underneath, also try to kill Players
+            lvl.destroyBlock(this.posX, this.posY);
+            killPlayer(this.posX, this.posY);
+            blastDir = LEFT;
+        }
         // now get boundaries and destroy tiles & kill Players
-        for (i = 1; i <= range; i++) {
-            // only calculate the current position once
-            posX = this.posX - i;
-            posY = this.posY;
-            // if we reach a solid object, we're probably done!
-            if (lvl.isSolid(posX, posY)
-                    && (!quadDamage || lvl.getTile(posX, posY) == Level.BEDROCK)) {
+        for (; blastDir <= BOTTOM; blastDir++) {
+            if (blastStop != NOTSTOPPED) {
+                // we're back from a chain reaction on the tile stopped at
+                i = blastStop == STOPPEDINSIDE ? getExtent() : getExtent() + 1;
+                posX = this.posX + i * DIRX[blastDir];
+                posY = this.posY + i * DIRY[blastDir];
                 lvl.destroyBlock(posX, posY);
-                break;
+                if (blastStop == STOPPEDOUTSIDE) {
+                    blastStop = NOTSTOPPED;
+                    continue;
+                }
+                blastStop = NOTSTOPPED;
+                killPlayer(posX, posY);
             }
-            // otherwise we keep on counting, destroying and killing Players
-            left++;
-            lvl.destroyBlock(posX, posY);
-            killPlayer(posX, posY);
-        }
-        // the other loops work exactly the same..
-        for (i = 1; i <= range; i++) {
-            posX = this.posX + i;
-            posY = this.posY;
-            if (lvl.isSolid(posX, posY)
-                    && (!quadDamage || lvl.getTile(posX, posY) == Level.BEDROCK)) {
+            // look up the tile the blast ends at, if it's within range
+            i = getExtent() + 1;
+            stop = lvl.findBlastStop(this.posX, this.posY, DIRX[blastDir],
+                    DIRY[blastDir], i, range, quadDamage);
+            // up to there, we keep on counting, destroying and killing Players
+            for (end = stop < 0 ? range : stop - 1; i <= end; i++) {
+                // only calculate the current position once
+                posX = this.posX + i * DIRX[blastDir];
+                posY = this.posY + i * DIRY[blastDir];
+                incrementExtent();
+                if (lvl.setOff(posX, posY)) {
+                    blastStop = STOPPEDINSIDE;
+                    return false;
+                }
                 lvl.destroyBlock(posX, posY);
-                break;
+                killPlayer(posX, posY);
             }
-            right++;
-            lvl.destroyBlock(posX, posY);
-            killPlayer(posX, posY);
-        }
-        for (i = 1; i <= range; i++) {
-            posX = this.posX;
-            posY = this.posY - i;
-            if (lvl.isSolid(posX, posY)
-                    && (!quadDamage || lvl.getTile(posX, posY) == Level.BEDROCK)) {
+            // if we reached a solid object, we're done after destroying it
+            if (stop >= 0) {
+                posX = this.posX + stop * DIRX[blastDir];
+                posY = this.posY + stop * DIRY[blastDir];
+                if (lvl.setOff(posX, posY)) {
+                    blastStop = STOPPEDOUTSIDE;
+                    return false;
+                }
                 lvl.destroyBlock(posX, posY);
-                break;
             }
-            top++;
-            lvl.destroyBlock(posX, posY);
-            killPlayer(posX, posY);
         }
-        for (i = 1; i <= range; i++) {
-            posX = this.posX;
-            posY = this.posY + i;
-            if (lvl.isSolid(posX, posY)
-                    && (!quadDamage || lvl.getTile(posX, posY) == Level.BEDROCK)) {
-                lvl.destroyBlock(posX, posY);
-                break;
-            }
+        return true;
+    }
+
+    /**
+     * Helper method for spread(). Returns how far the blast has spread in the
+     * direction it is currently spreading in.
+     * 
+     * @return The extent of the blast in the current direction.
+     */
+    private int getExtent() {
+        switch (blastDir) {
+        case LEFT:
+            return left;
+        case RIGHT:
+            return right;
+        case TOP:
+            return top;
+        default:
+            return bottom;
+        }
+    }
+
+    /**
+     * Helper method for spread(). Increments the extent of the blast in the
+     * direction it is currently spreading in.
+     */
+    private void incrementExtent() {
+        switch (blastDir) {
+        case LEFT:
+            left++;
+            break;
+        case RIGHT:
+            right++;
+            break;
+        case TOP:
+            top++;
+            break;
+        default:
             bottom++;
-            lvl.destroyBlock(posX, posY);
-            killPlayer(posX, posY);
         }
     }
 
     /**
      * This method tries to kill a Player at the specified position. For this,
-     * it checks for each Player if the specified position position is 'inside'
-     * it. If so, it tells the Player to die. It can possibly be overridden to
-     * add visual effects or similar.
+     * it checks for each Player on that tile if the specified position is
+     * 'inside' it. If so, it tells the Player to die. It can possibly be
+     * overridden to add visual effects or similar.
      * 
      * @param posX X coordinate of the position where Players should be killed.
      * @param posY Y coordinate of the position where Players should be killed.
      */
     protected void killPlayer(double posX, double posY) {
+        // only the Players on that very tile can be hit, see Level
+        Player p = lvl.playersAt((int) Math.floor(posX), (int) Math.floor(posY));
         posX += Player.HALFTILEDIM;
         posY += Player.HALFTILEDIM;
-        for (int i = 0; i < Player.PLAYERS.size(); i++) {
-            if (Player.PLAYERS.get(i).withinBounds(posX, posY))
-                Player.PLAYERS.get(i).killMe(player);
+        for (; p != null; p = p.nextOnTile) {
+            if (p.withinBounds(posX, posY))
+                p.killMe(player);
         }
     }
 
-    /**
-     * This method is called each tick as long as this Bomb is still exploding.
-     * When it eventually reaches the state of being EXPLODED, it won't be
-     * called anymore. It can possibly be overridden to add visual effects or
-     * similar.
-     */
-    protected void updateExplodingBomb() {
-        counter--;
-    }
-
     /**
      * This method is eventually called when this Bomb reaches the EXPLODED
      * state. It does some cleanup and ultimately removes the reference to the
@@ -295,7 +418,7 @@ public class Bomb implements Updateable {
      */
     protected void remove() {
         state = EXPLODED;
-        explodeCount--; // see above, static variable
+        lvl.decrementExplodeCount(); // see above
         // tell the Level to remove reference
         lvl.removeBomb(posX, posY);
     }
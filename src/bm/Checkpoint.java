@@ -0,0 +1,47 @@
+package bm;
+
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * This class provides snapshots of the state of a Match, see
+ * Match.checkpoint(). A Checkpoint does not change once it has been taken, so
+ * it can be handed over to another thread and written there while the Match
+ * goes on. What it writes can be restored by Match.restoreLevel() and
+ * Match.restorePlayers().
+ */
+public final class Checkpoint {
+
+    private final byte[] head; // everything preceding the chunks of tiles
+    private final short[][] chunks; // the frozen chunks of tiles of the Level
+    private final int size; // the number of tiles of the Level
+    private final byte[] tail; // everything following the chunks of tiles
+
+    /**
+     * Creates a new Checkpoint consisting of the given parts.
+     * 
+     * @param head The part preceding the chunks of tiles.
+     * @param chunks The chunks of tiles, see Level.freezeChunks().
+     * @param size The number of tiles of the Level.
+     * @param tail The part following the chunks of tiles.
+     */
+    Checkpoint(byte[] head, short[][] chunks, int size, byte[] tail) {
+        this.head = head;
+        this.chunks = chunks;
+        this.size = size;
+        this.tail = tail;
+    }
+
+    /**
+     * Writes this Checkpoint to the given output. May be called by any thread
+     * and any number of times.
+     * 
+     * @param out The output to write this Checkpoint to.
+     * @throws IOException If this Checkpoint cannot be written.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.write(head);
+        Level.writeChunks(out, chunks, size);
+        out.write(tail);
+    }
+}
@@ -0,0 +1,364 @@
+package bm;
+
+import java.util.Arrays;
+
+/**
+ * This class provides, for every tile of a Level, the number of ticks until it
+ * is set on fire by one of the Bombs that are currently COUNTING, taking chain
+ * reactions into account. It also answers how a Player can get out of harm's
+ * way (see findEscape()). It is meant for bots, which would otherwise have to
+ * replay the blast of every Bomb on every tick.
+ * 
+ * The danger is computed from the Bombs and tiles as they are: compute()
+ * visits the Bombs in the order they explode and lets their blasts spread like
+ * Bomb.spread() does. A Bomb that is reached by a blast explodes together with
+ * the Bomb the blast comes from; the Bombs exploding on the same tick are
+ * visited until none is added anymore, treating all of them as already
+ * exploded. STONEs that are exploding or destroyed by an earlier blast are
+ * passed from the tick on they might have vanished. So the danger of a tile
+ * might be overestimated in rare cases, but a tile that is going to be set on
+ * fire is never missed (as long as no Bomb is planted). Only the tiles reached
+ * by a blast are stored (in chunks, like the tiles of a Level), so compute()
+ * costs time proportional to the number of Bombs and their range rather than
+ * to the size of the Level. The Level calls it only if the danger is asked for
+ * and a Bomb has been planted or set off or a tile has become solid or
+ * passable since the last time.
+ */
+final class DangerField {
+
+    private static final int CHUNKMASK = Level.CHUNKSIZE - 1;
+    private static final int INITIALSIZE = 64;
+    // the Player.MOVED bit of each direction (left, right, up, down)
+    private static final byte[] DIRECTIONS = { Player.MOVEDLEFT,
+            Player.MOVEDRIGHT, Player.MOVEDUP, Player.MOVEDDOWN };
+
+    private final Level lvl; // the Level whose danger this is
+    private final int[][] chunks; // ticks until fire + 1 or 0 if none
+    private final int[][] openings; // ticks until passable or 0, see open()
+    private int[] touched; // indices of the tiles with a danger or opening
+    private int touchedCount; // number of indices in touched
+    private long time; // tick the danger has been computed on
+    private int run; // number of computations so far, see Bomb.fired
+    private long[] fuses; // ticks until explosion << 32 | number of each Bomb
+    private Bomb[] group; // Bombs exploding together, see compute()
+    private int groupCount; // number of Bombs in group
+    private boolean opened; // true if a tile has been uncovered, see spread()
+
+    // for findEscape(): a square of tiles around the starting point
+    private int[] visited; // number of the search that visited each tile
+    private int[] distance; // number of steps to each tile
+    private byte[] firstStep; // direction of the first step to each tile
+    private int[] queue; // tiles to be visited
+    private int search; // number of searches so far
+
+    /**
+     * Creates a new DangerField for the given Level. No tile is in danger
+     * until compute() is called.
+     * 
+     * @param lvl The Level whose danger is to be computed.
+     * @param size The number of tiles of the Level.
+     */
+    DangerField(Level lvl, int size) {
+        this.lvl = lvl;
+        chunks = new int[(size + CHUNKMASK) / Level.CHUNKSIZE][];
+        openings = new int[chunks.length][];
+        touched = new int[INITIALSIZE];
+        fuses = new long[INITIALSIZE];
+        group = new Bomb[INITIALSIZE];
+        visited = new int[0];
+    }
+
+    /**
+     * Returns the number of ticks until the tile with the given index is set
+     * on fire, counted from the tick the danger has been computed on.
+     * 
+     * @param index The index of the tile, see Level.index(posX, posY).
+     * @return The number of ticks or Level.NODANGER.
+     */
+    private int get(int index) {
+        int[] chunk = chunks[index >>> Level.CHUNKBITS];
+        if (chunk == null || chunk[index & CHUNKMASK] == 0)
+            return Level.NODANGER;
+        return chunk[index & CHUNKMASK] - 1;
+    }
+
+    /**
+     * Returns the number of ticks until the tile with the given index is set
+     * on fire: it burns during the getDanger()'th call to Level.update() from
+     * now on. Level.NODANGER is returned if no Bomb is going to reach it.
+     * 
+     * @param index The index of the tile, see Level.index(posX, posY).
+     * @return The number of ticks until the tile burns or Level.NODANGER.
+     */
+    int getDanger(int index) {
+        int danger = get(index);
+        if (danger == Level.NODANGER)
+            return danger;
+        return (int) Math.max(1, danger - (lvl.getTicks() - time));
+    }
+
+    /**
+     * Lowers the danger of the tile with the given index to the given number
+     * of ticks if it is greater.
+     * 
+     * @param index The index of the tile, see Level.index(posX, posY).
+     * @param ticks The number of ticks until the tile burns.
+     */
+    private void lower(int index, int ticks) {
+        int[] chunk = touch(chunks, index);
+        int value = chunk[index & CHUNKMASK];
+        if (value == 0 || value > ticks + 1)
+            chunk[index & CHUNKMASK] = ticks + 1;
+    }
+
+    /**
+     * Records that the tile with the given index is destroyed by a blast after
+     * the given number of ticks (see Level.destroyBlock()): a STONE starts to
+     * explode and a HIDDENEXIT is uncovered. Either way, the tile stops to be
+     * solid at some point, which is stored as the number of ticks until blasts
+     * can pass it.
+     * 
+     * @param index The index of the tile, see Level.index(posX, posY).
+     * @param ticks The number of ticks until the tile is destroyed.
+     * @return true if the tile can be passed after the given number of ticks.
+     */
+    private boolean open(int index, int ticks) {
+        short tile = lvl.tileAt(index);
+        int passable;
+        if (tile == Level.STONE) // it is visited again on the same tick
+            passable = ticks + Level.EXPLSTART - 1 - Level.EXPLEND;
+        else if (tile == Level.HIDDENEXIT)
+            passable = ticks;
+        else return false;
+        int[] chunk = touch(openings, index);
+        int value = chunk[index & CHUNKMASK];
+        if (value != 0 && value <= passable)
+            return false;
+        chunk[index & CHUNKMASK] = passable;
+        return passable <= ticks;
+    }
+
+    /**
+     * Returns true if the tile with the given index stops a blast that is not
+     * in Quad Damage mode after the given number of ticks. Exploding STONEs
+     * are assumed to be passable on the tick they reach EXPLEND, even though
+     * that depends on whether they are visited before the Bomb explodes (see
+     * Level.update()).
+     * 
+     * @param index The index of the tile, see Level.index(posX, posY).
+     * @param ticks The number of ticks until the blast.
+     * @return true if the tile is solid at that time.
+     */
+    private boolean isSolid(int index, int ticks) {
+        short tile = lvl.tileAt(index);
+        if (!Level.isSolidTile(tile))
+            return false;
+        if (tile > Level.EXPLEND && tile <= Level.EXPLSTART
+                && tile - ticks <= Level.EXPLEND)
+            return false;
+        int[] chunk = openings[index >>> Level.CHUNKBITS];
+        int passable = chunk == null ? 0 : chunk[index & CHUNKMASK];
+        return passable == 0 || passable > ticks;
+    }
+
+    /**
+     * Returns the chunk of the given sparse field that contains the tile with
+     * the given index, creating it if necessary, and records the tile in
+     * touched unless it has been already.
+     * 
+     * @param field Either chunks or openings.
+     * @param index The index of the tile, see Level.index(posX, posY).
+     * @return The chunk of the field.
+     */
+    private int[] touch(int[][] field, int index) {
+        int[] chunk = field[index >>> Level.CHUNKBITS];
+        if (chunk == null) {
+            chunk = new int[Level.CHUNKSIZE];
+            field[index >>> Level.CHUNKBITS] = chunk;
+        }
+        if (chunk[index & CHUNKMASK] == 0 && !isTouched(index)) {
+            if (touchedCount == touched.length)
+                touched = Arrays.copyOf(touched, touchedCount * 2);
+            touched[touchedCount++] = index;
+        }
+        return chunk;
+    }
+
+    /**
+     * Returns true if the tile with the given index has a danger or opening.
+     * 
+     * @param index The index of the tile, see Level.index(posX, posY).
+     * @return true if the tile is in touched.
+     */
+    private boolean isTouched(int index) {
+        int[] danger = chunks[index >>> Level.CHUNKBITS];
+        int[] opening = openings[index >>> Level.CHUNKBITS];
+        return (danger != null && danger[index & CHUNKMASK] != 0)
+                || (opening != null && opening[index & CHUNKMASK] != 0);
+    }
+
+    /**
+     * Computes the danger of every tile anew.
+     */
+    void compute() {
+        // forget the old danger
+        for (int i = 0; i < touchedCount; i++) {
+            int index = touched[i];
+            int[] danger = chunks[index >>> Level.CHUNKBITS];
+            int[] opening = openings[index >>> Level.CHUNKBITS];
+            if (danger != null)
+                danger[index & CHUNKMASK] = 0;
+            if (opening != null)
+                opening[index & CHUNKMASK] = 0;
+        }
+        touchedCount = 0;
+        time = lvl.getTicks();
+        run++;
+        // sort the COUNTING Bombs by the time they explode
+        int count = 0;
+        for (int i = 0; i < lvl.getBombCount(); i++) {
+            Bomb bomb = lvl.getBomb(i);
+            if (!bomb.isCounting())
+                continue;
+            if (count == fuses.length)
+                fuses = Arrays.copyOf(fuses, count * 2);
+            long ticks = Math.max(1, bomb.getDeadline() - time);
+            fuses[count++] = ticks << 32 | i;
+        }
+        Arrays.sort(fuses, 0, count);
+        for (int i = 0; i < count;) {
+            int ticks = (int) (fuses[i] >>> 32);
+            // all Bombs whose countdown runs out now explode together
+            groupCount = 0;
+            for (; i < count && (int) (fuses[i] >>> 32) == ticks; i++)
+                setOff(lvl.getBomb((int) fuses[i]));
+            // along with those their blasts reach, which might pass tiles
+            // that have just been uncovered by the others
+            boolean grown = groupCount > 0;
+            while (grown) {
+                int before = groupCount;
+                opened = false;
+                for (int j = 0; j < groupCount; j++)
+                    spread(group[j], ticks);
+                grown = groupCount > before || opened;
+            }
+            Arrays.fill(group, 0, groupCount, null);
+        }
+    }
+
+    /**
+     * Adds the given Bomb to the Bombs exploding together unless it has
+     * already been set off.
+     * 
+     * @param bomb The Bomb to be set off.
+     */
+    private void setOff(Bomb bomb) {
+        if (bomb.fired == run)
+            return;
+        bomb.fired = run;
+        if (groupCount == group.length)
+            group = Arrays.copyOf(group, groupCount * 2);
+        group[groupCount++] = bomb;
+    }
+
+    /**
+     * Lets the blast of the given Bomb spread (see Bomb.spread()) and lowers
+     * the danger of each tile it reaches to the given number of ticks. The
+     * Bombs that have been set off are passed through, the others stop the
+     * blast unless it is in Quad Damage mode; either way, they are set off.
+     * The tiles the blast destroys are recorded, see open().
+     * 
+     * @param bomb The exploding Bomb.
+     * @param ticks The number of ticks until it explodes.
+     */
+    private void spread(Bomb bomb, int ticks) {
+        int posX = bomb.getPosX(), posY = bomb.getPosY();
+        lower(lvl.index(posX, posY), ticks);
+        opened |= open(lvl.index(posX, posY), ticks);
+        for (int dir = 0; dir < 4; dir++) {
+            int dirX = dir < 2 ? dir * 2 - 1 : 0;
+            int dirY = dir < 2 ? 0 : dir * 2 - 5;
+            for (int i = 1; i <= bomb.getRange(); i++) {
+                int x = posX + i * dirX, y = posY + i * dirY;
+                if (!lvl.contains(x, y))
+                    break;
+                int index = lvl.index(x, y);
+                Bomb other = lvl.bombAt(index);
+                boolean stops = bomb.quadDamage ? lvl
+                        .tileAt(index) == Level.BEDROCK : isSolid(index, ticks);
+                if (other != null && other.isCounting()) {
+                    stops |= !bomb.quadDamage && other.fired != run;
+                    setOff(other);
+                }
+                if (!stops)
+                    lower(index, ticks);
+                opened |= open(index, ticks);
+                if (stops)
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Looks for the nearest tile a Player standing at (posX, posY) is safe on
+     * and returns the direction of the first step towards it. See
+     * Level.findEscape().
+     * 
+     * @param posX The x coordinate of the Player's tile.
+     * @param posY The y coordinate of the Player's tile.
+     * @param maxDistance The maximum number of steps.
+     * @return One of the Player.MOVED bits, 0 or -1.
+     */
+    byte findEscape(int posX, int posY, int maxDistance) {
+        int side = 2 * maxDistance + 1;
+        if (visited.length < side * side) {
+            visited = new int[side * side];
+            distance = new int[side * side];
+            firstStep = new byte[side * side];
+            queue = new int[side * side];
+            search = 0;
+        }
+        search++;
+        int head = 0, tail = 0;
+        int start = maxDistance * side + maxDistance;
+        visited[start] = search;
+        distance[start] = 0;
+        firstStep[start] = 0;
+        queue[tail++] = start;
+        while (head < tail) {
+            int current = queue[head++];
+            int steps = distance[current];
+            int x = posX + current / side - maxDistance;
+            int y = posY + current % side - maxDistance;
+            int danger = getDanger(lvl.index(x, y));
+            if (danger == Level.NODANGER
+                    || danger < (steps - 1) * Player.TICKSPERTILE)
+                return firstStep[current]; // the fire has come and gone
+            if (steps == maxDistance)
+                continue;
+            for (int dir = 0; dir < 4; dir++) {
+                int dirX = dir < 2 ? dir * 2 - 1 : 0;
+                int dirY = dir < 2 ? 0 : dir * 2 - 5;
+                int next = current + dirX * side + dirY;
+                if (!lvl.contains(x + dirX, y + dirY)
+                        || visited[next] == search)
+                    continue;
+                int index = lvl.index(x + dirX, y + dirY);
+                if (lvl.isSolidAt(index))
+                    continue;
+                // don't walk across a tile while it burns
+                danger = getDanger(index);
+                if (danger != Level.NODANGER
+                        && danger >= steps * Player.TICKSPERTILE
+                        && danger <= (steps + 2) * Player.TICKSPERTILE)
+                    continue;
+                visited[next] = search;
+                distance[next] = steps + 1;
+                firstStep[next] = steps > 0 ? firstStep[current]
+                        : DIRECTIONS[dir];
+                queue[tail++] = next;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,127 @@
+package bm;
+
+import java.util.Arrays;
+
+/**
+ * This class provides a set of tile indices (see Level.index(posX, posY)) that
+ * can be iterated in ascending order. It is a bit set with an additional
+ * summary level that marks the non-empty words, so finding the next index
+ * skips empty stretches 4096 indices at a time. Adding or removing an index
+ * while iterating is allowed; an index added behind the current position will
+ * still be visited.
+ * 
+ * It is used by Level to keep track of the tiles that need to be visited each
+ * tick, so a tick costs time proportional to the number of those tiles rather
+ * than to the size of the Level.
+ */
+final class IndexSet {
+
+    private final int capacity; // indices range from 0 to capacity - 1
+    private final long[] words; // bit i is set if index i is in this set
+    private final long[] summary; // bit w is set if words[w] != 0
+    private int size; // number of indices in this set
+
+    /**
+     * Creates a new, empty IndexSet that is able to hold the indices 0 to
+     * capacity - 1.
+     * 
+     * @param capacity The number of indices this set can hold.
+     */
+    IndexSet(int capacity) {
+        this.capacity = capacity;
+        words = new long[(capacity + 63) >>> 6];
+        summary = new long[(words.length + 63) >>> 6];
+    }
+
+    /**
+     * Adds the given index to this set.
+     * 
+     * @param index The index to be added.
+     * @return true if the index was not yet in this set.
+     */
+    boolean add(int index) {
+        int word = index >>> 6;
+        long bit = 1L << index;
+        if ((words[word] & bit) != 0)
+            return false;
+        words[word] |= bit;
+        summary[word >>> 6] |= 1L << word;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes the given index from this set.
+     * 
+     * @param index The index to be removed.
+     * @return true if the index was in this set.
+     */
+    boolean remove(int index) {
+        int word = index >>> 6;
+        long bit = 1L << index;
+        if ((words[word] & bit) == 0)
+            return false;
+        words[word] &= ~bit;
+        if (words[word] == 0)
+            summary[word >>> 6] &= ~(1L << word);
+        size--;
+        return true;
+    }
+
+    /**
+     * Returns true if the given index is in this set.
+     * 
+     * @param index The index to be checked.
+     * @return true if the index is in this set, false otherwise.
+     */
+    boolean contains(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Returns the number of indices in this set.
+     * 
+     * @return The number of indices in this set.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes all indices from this set.
+     */
+    void clear() {
+        Arrays.fill(words, 0);
+        Arrays.fill(summary, 0);
+        size = 0;
+    }
+
+    /**
+     * Returns the smallest index in this set that is greater than or equal to
+     * from, or -1 if there is none.
+     * 
+     * @param from The index to start searching from.
+     * @return The next index in this set or -1.
+     */
+    int next(int from) {
+        if (size == 0 || from >= capacity)
+            return -1;
+        int word = from >>> 6;
+        long bits = words[word] & (-1L << from);
+        if (bits != 0)
+            return (word << 6) + Long.numberOfTrailingZeros(bits);
+        // look for the next non-empty word in the summary
+        word++;
+        int s = word >>> 6;
+        if (s >= summary.length)
+            return -1;
+        long marks = summary[s] & (-1L << word);
+        while (marks == 0) {
+            if (++s >= summary.length)
+                return -1;
+            marks = summary[s];
+        }
+        word = (s << 6) + Long.numberOfTrailingZeros(marks);
+        return (word << 6) + Long.numberOfTrailingZeros(words[word]);
+    }
+}
@@ -1,15 +1,48 @@
 package bm;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
 
 import bm.log.Logger;
 
 /**
  * This class provides objects that, as the name suggest, will be interpreted as
- * the Level wherein the game takes place. At the core of this class is a
- * two-dimensional short array which holds the Level's tiles. Level objects are
- * also responsible for storing and managing the game's Bombs.
+ * the Level wherein the game takes place. At the core of this class are the
+ * Level's tiles. Level objects are also responsible for storing and managing
+ * the game's Bombs.
+ * 
+ * The tiles are numbered in the order of the two-dimensional arrays this class
+ * is created from and hands out (short[width][height]), i.e. the tile at
+ * position (posX, posY) has the index posX * height + posY. This is also the
+ * order in which update() visits the tiles. The Bombs are kept in a densely
+ * packed array; a second table maps the index of every tile to the slot of the
+ * Bomb lying on it (if any).
+ * 
+ * Tiles, Bomb slots and the Players on each tile (see below) are stored in
+ * chunks of CHUNKSIZE consecutive indices, i.e. stretches of a column. A chunk
+ * of Bomb slots or Players is only allocated once something is put into it.
+ * Chunks consisting of a single kind of tile are shared by all Levels until
+ * one of their tiles changes. A lazy Level (see the constructors) does not
+ * even generate its tiles up front: each chunk is generated from the seed the
+ * first time one of its tiles is looked at. So the memory a Level needs
+ * depends on the area that is actually played in rather than on its
+ * dimension, which makes huge arenas affordable.
+ * 
+ * Most tiles do not change from one tick to the next. A Level therefore keeps
+ * track of its active tiles, i.e. exploding STONEs, and update() only visits
+ * those (still in the order given above). A Bomb only needs to be visited when
+ * its state changes; the Level keeps a timer for each Bomb (see
+ * schedule(posX, posY, delay)) and visits its tile on the tick it expires.
+ * 
+ * Furthermore, a Level knows which of its Players stands on which tile (see
+ * playersAt(posX, posY)), so an exploding Bomb does not have to check every
+ * Player for every tile it sets on fire.
  * 
  * A tile, in binary representation, constitutes itself as follows:
  * 
@@ -94,8 +127,19 @@ public class Level implements Updateable {
     public static final byte MINDIM = 7;
     /** Value holding the number of initially created powerups. */
     public static final byte INITIALPOWERUPS = 10;
+    /** Value holding the initial size of the array holding the Bombs. */
+    public static final byte INITIALBOMBSLOTS = 16;
     /** Maximum number of loops to avoid while(true) constructs. */
     public static final byte MAXLOOPCOUNT = 100;
+    /** Number of spawn cells getSpawnPoint() chooses from for Players >= 4. */
+    public static final byte SPAWNCANDIDATES = 8;
+    /** Value of getDanger() for tiles that no Bomb is going to reach. */
+    public static final int NODANGER = Integer.MAX_VALUE;
+    /** Number of bits of an index that address a tile within its chunk. */
+    public static final int CHUNKBITS = 10;
+    /** Number of tiles stored in one chunk. */
+    public static final int CHUNKSIZE = 1 << CHUNKBITS;
+    private static final int CHUNKMASK = CHUNKSIZE - 1;
 
     /* some (error) messages for logging etc. */
 
@@ -116,6 +160,9 @@ public class Level implements Updateable {
     /** Format for creating a String reporting about this Level's creation. */
     public static final String NEWLEVEL = "Created new Level. Dimension: %dx%d. Powerup creation: %b.";
 
+    /** Format for creating a String reporting about an invalid saved state. */
+    public static final String STATEERROR = "Cannot restore Level: invalid %s.";
+
     // /////////////////////////////////////////////////////////////////////////
     // //////////////////////// STATIC METHODS//////////////////////////////////
     // /////////////////////////////////////////////////////////////////////////
@@ -156,20 +203,25 @@ public class Level implements Updateable {
     }
 
     /**
-     * This method randomly spawns a powerup from the array POWERUPS. The
-     * probability for the powerup POWERUPS[i] to spawn is *
-     * PWUPPROB[i]/POWERUPS.length. In case no powerup spawns, a GRASS tile is
-     * returned.
+     * Returns a new seed for a Level that is created without a given seed.
      * 
-     * @return A randomly chosen value from POWERUPS or a GRASS tile.
+     * @return A randomly chosen seed.
      */
-    private static final short spawnPowerup() {
-        // first step: choose a powerup that may spawn
-        int index = (int) (Math.random() * POWERUPS.length);
-        // second step: determine if it will spawn
-        if (Math.random() <= PWUPPROB[index])
-            return POWERUPS[index];
-        return GRASS; // default to GRASS
+    private static final long newSeed() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    /*
+     * Chunks that consist of GRASS, STONE or BEDROCK only, indexed by their
+     * tile. They are shared by all Levels and never written to.
+     */
+    private static final short[][] SHAREDCHUNKS = new short[BEDROCK + 1][];
+
+    static {
+        for (short tile = 0; tile < SHAREDCHUNKS.length; tile++) {
+            SHAREDCHUNKS[tile] = new short[CHUNKSIZE];
+            Arrays.fill(SHAREDCHUNKS[tile], tile);
+        }
     }
 
     // /////////////////////////////////////////////////////////////////////////
@@ -177,12 +229,36 @@ public class Level implements Updateable {
     // /////////////////////////////////////////////////////////////////////////
 
     protected int width, height; // dimension of tiles
-    protected final short[][] tiles; // holds all the tiles of this Level
-    protected final Bomb[][] bombs; // holds all the Bombs of this Level
+    private final long seed; // seed of random
+    private final SplitMix64 random; // decides everything left to chance
+    private final short[][] tiles; // chunks of tiles, null if not generated
+    private final boolean[] frozen; // chunks to be copied before changing
+    private long hash; // Zobrist-style hash of the state, see getStateHash()
+    private final boolean lazy; // true if chunks are generated on first use
+    private int exitIndex = -1; // index of the exit a lazy Level generates
+    private final int[][] bombSlots; // chunks of slot + 1 of the Bomb, or 0
+    private Bomb[] bombs; // holds all the Bombs of this Level, densely packed
+    private int bombCount; // number of slots in use
+    private final IndexSet active; // exploding STONEs
+    private final Bitboard solid; // solid tiles, see isSolid(), or null
+    private final Bitboard bedrock; // BEDROCK tiles or null
+    private SparseSet spawnCells; // see isSpawnCell(); null if lazy
+    private final TimingWheel timers; // timers of the Bombs, keyed by index
+    private final IndexSet due; // tiles whose timer expires this tick
+    private int visiting = -1; // index update() is visiting or -1
+    private final Player[][] occupants; // first Player on each tile, see below
+    private int occupantSlots; // number of slots in occupants
+    private int playerCount; // number of Players that have joined this Level
+    private Player[] players = new Player[4]; // the Players that have joined
+    private int explodeCount; // number of Bombs exploding at this moment
+    private Bomb[] blasts; // Bombs whose blast is spreading, see blast()
+    private int blastCount; // number of Bombs in blasts
+    private final DangerField danger; // ticks until each tile is set on fire
+    private boolean dangerChanged = true; // true if danger is out of date
 
     private final int[][] spawnPoints; // holds all the predefined spawn points
 
-    private final LinkedList<Short> nextPowerups; // holds the next powerups
+    private final TileQueue nextPowerups; // holds the next powerups
     private boolean spawnPowerups; // true this Level randomly creates powerups
 
     // /////////////////////////////////////////////////////////////////////////
@@ -207,6 +283,63 @@ public class Level implements Updateable {
      * somewhere
      */
     public Level(int width, int height, boolean spawnPowerups, boolean spawnExit) {
+        this(width, height, spawnPowerups, spawnExit, newSeed());
+    }
+
+    /**
+     * Creates a new Level with the dimension
+     * 
+     * Math.max(width, MINDIM) x Math.max(height, MINDIM).
+     * 
+     * The values of the tiles are chosen randomly. An exit is created if the
+     * param spawnExit is true.
+     * 
+     * You can specify if the new Level should randomly spawn powerups on its
+     * own or be dependent on the user to provide them.
+     * 
+     * Everything this Level leaves to chance is decided by a random number
+     * generator created from the given seed, so two Levels created with the
+     * same parameters (and the same seed) look the same and spawn the same
+     * powerups.
+     * 
+     * @param width The width of the new Level in tiles.
+     * @param height The width of the new Level in tiles.
+     * @param spawnPowerups true is this Level should randomly create powerups.
+     * @param spawnExit true if this Level should spawn a (HIDDEN)EXIT tile
+     * somewhere
+     * @param seed The seed of this Level's random number generator.
+     */
+    public Level(int width, int height, boolean spawnPowerups,
+            boolean spawnExit, long seed) {
+        this(width, height, spawnPowerups, spawnExit, seed, false);
+    }
+
+    /**
+     * Creates a new Level with the dimension
+     * 
+     * Math.max(width, MINDIM) x Math.max(height, MINDIM).
+     * 
+     * The values of the tiles are chosen randomly. An exit is created if the
+     * param spawnExit is true. Everything this Level leaves to chance is
+     * decided by the given seed (see above).
+     * 
+     * If lazy is true, the tiles are not generated up front but chunk by chunk
+     * the first time one of them is looked at, so huge Levels only take up as
+     * much memory as the area actually played in. Each chunk is generated from
+     * the seed and its own position, so it does not matter in which order the
+     * chunks are generated; but a lazy Level looks different from one created
+     * with the same seed that is not lazy.
+     * 
+     * @param width The width of the new Level in tiles.
+     * @param height The width of the new Level in tiles.
+     * @param spawnPowerups true is this Level should randomly create powerups.
+     * @param spawnExit true if this Level should spawn a (HIDDEN)EXIT tile
+     * somewhere
+     * @param seed The seed of this Level's random number generator.
+     * @param lazy true if the tiles should be generated on first use.
+     */
+    public Level(int width, int height, boolean spawnPowerups,
+            boolean spawnExit, long seed, boolean lazy) {
         if (width < MINDIM || height < MINDIM) {
             width = Math.max(width, MINDIM);
             height = Math.max(height, MINDIM);
@@ -222,13 +355,37 @@ public class Level implements Updateable {
         this.width = width;
         this.height = height;
         this.spawnPowerups = spawnPowerups;
-        // create array for tiles & bombs
-        tiles = new short[width][height];
-        bombs = new Bomb[width][height];
+        this.seed = seed;
+        this.lazy = lazy;
+        random = new SplitMix64(seed);
+        // create tables for the chunks of tiles & bombs
+        tiles = new short[chunkCount(width * height)][];
+        frozen = new boolean[tiles.length];
+        bombSlots = new int[tiles.length][];
+        bombs = new Bomb[INITIALBOMBSLOTS];
+        blasts = new Bomb[INITIALBOMBSLOTS];
+        active = new IndexSet(width * height);
+        // a lazy Level finds the tiles stopping a blast without them
+        solid = lazy ? null : new Bitboard(width, height);
+        bedrock = lazy ? null : new Bitboard(width, height);
+        timers = new TimingWheel();
+        due = new IndexSet(width * height);
+        danger = new DangerField(this, width * height);
+        occupantSlots = (width + 2) * (height + 2) + 1;
+        occupants = new Player[chunkCount(occupantSlots)][];
         nextPowerups = initializePowerups();
         spawnPoints = initializeDefaultSpawnpoints();
-        // fill the array with random tiles
-        fillRandomly(spawnExit);
+        if (lazy) {
+            // the chunks will be generated when needed, only the exit is not
+            if (spawnExit)
+                exitIndex = randomExit();
+        } else {
+            // fill the chunks with random tiles
+            allocateChunks();
+            fillRandomly(spawnExit);
+            shareChunks();
+            initializeActiveTiles();
+        }
         if (Logger.verbose())
             Logger.writeln(String
                     .format(NEWLEVEL, width, height, spawnPowerups));
@@ -261,30 +418,73 @@ public class Level implements Updateable {
      * @param spawnPowerups true is this Level should randomly create powerups.
      */
     public Level(short[][] tiles, boolean spawnPowerups) {
+        this(tiles, spawnPowerups, newSeed());
+    }
+
+    /**
+     * Tries to create a new Level from a given two-dimensional array. If either
+     * width or height of the given array are smaller than MINDIM, this
+     * constructor default to creating a randomized Level.
+     * 
+     * You can specify if the new Level should randomly spawn powerups on its
+     * own or be dependent on the user to provide them.
+     * 
+     * Everything this Level leaves to chance is decided by a random number
+     * generator created from the given seed (see above).
+     * 
+     * @param tiles The two-dimensional array to create the Level from.
+     * @param spawnPowerups true is this Level should randomly create powerups.
+     * @param seed The seed of this Level's random number generator.
+     */
+    public Level(short[][] tiles, boolean spawnPowerups, long seed) {
+        boolean valid = true;
         // check if dimensions are okay
         if (tiles.length < MINDIM || tiles[0].length < MINDIM) {
             width = MINDIM;
             height = MINDIM;
             Logger.writeerrln(String.format(MINDIMERROR, width, height));
-            // replace the given array with a randomly filled one
-            tiles = new short[this.width][this.height];
-            fillRandomly(true);
+            valid = false;
         }
         // check if array holds valid tiles
         else if (!validTiles(tiles)) {
             Logger.writeerrln(TILESERROR);
-            // replace the given array with a randomly filled one
-            tiles = new short[tiles.length][tiles[0].length];
-            fillRandomly(true);
+            width = tiles.length;
+            height = tiles[0].length;
+            valid = false;
+        } else {
+            width = tiles.length;
+            height = tiles[0].length;
         }
         // at this point, we proceed as above
-        this.tiles = tiles;
-        this.width = tiles.length;
-        this.height = tiles[0].length;
+        this.tiles = new short[chunkCount(width * height)][];
+        frozen = new boolean[this.tiles.length];
         this.spawnPowerups = spawnPowerups;
-        bombs = new Bomb[width][height];
+        this.seed = seed;
+        lazy = false;
+        random = new SplitMix64(seed);
+        bombSlots = new int[this.tiles.length][];
+        bombs = new Bomb[INITIALBOMBSLOTS];
+        blasts = new Bomb[INITIALBOMBSLOTS];
+        active = new IndexSet(width * height);
+        solid = new Bitboard(width, height);
+        bedrock = new Bitboard(width, height);
+        timers = new TimingWheel();
+        due = new IndexSet(width * height);
+        danger = new DangerField(this, width * height);
+        occupantSlots = (width + 2) * (height + 2) + 1;
+        occupants = new Player[chunkCount(occupantSlots)][];
         nextPowerups = initializePowerups();
         spawnPoints = initializeDefaultSpawnpoints();
+        allocateChunks();
+        if (valid) {
+            for (int i = 0; i < width; i++)
+                for (int j = 0; j < height; j++)
+                    setRawTileAt(index(i, j), tiles[i][j]);
+        }
+        // replace the given array with a randomly filled one
+        else fillRandomly(true);
+        shareChunks();
+        initializeActiveTiles();
     }
 
     /**
@@ -301,23 +501,94 @@ public class Level implements Updateable {
         this(tiles, true);
     }
 
+    /**
+     * Creates a Level from the state written by writeState(out). The new Level
+     * is exactly like the written one was at that time: it has the same tiles,
+     * the same number of ticks and will spawn the same powerups. Only its
+     * Bombs and Players are missing; the Players have to join it again before
+     * the Bombs are restored, see readBombs().
+     * 
+     * @param in The input to read the state from.
+     * @throws IOException If the state cannot be read or is invalid.
+     */
+    public Level(DataInput in) throws IOException {
+        width = in.readInt();
+        height = in.readInt();
+        if (width < MINDIM || height < MINDIM
+                || (long) width * height > Integer.MAX_VALUE)
+            throw new IOException(String.format(STATEERROR, "dimension"));
+        seed = in.readLong();
+        lazy = in.readBoolean();
+        spawnPowerups = in.readBoolean();
+        exitIndex = in.readInt();
+        random = new SplitMix64(in.readLong());
+        tiles = new short[chunkCount(width * height)][];
+        frozen = new boolean[tiles.length];
+        bombSlots = new int[tiles.length][];
+        bombs = new Bomb[INITIALBOMBSLOTS];
+        blasts = new Bomb[INITIALBOMBSLOTS];
+        active = new IndexSet(width * height);
+        solid = lazy ? null : new Bitboard(width, height);
+        bedrock = lazy ? null : new Bitboard(width, height);
+        timers = new TimingWheel(in.readLong());
+        due = new IndexSet(width * height);
+        danger = new DangerField(this, width * height);
+        occupantSlots = (width + 2) * (height + 2) + 1;
+        occupants = new Player[chunkCount(occupantSlots)][];
+        nextPowerups = readPowerups(in);
+        spawnPoints = initializeDefaultSpawnpoints();
+        byte[] buffer = new byte[CHUNKSIZE * 2];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = readChunk(in, i, buffer);
+            if (tiles[i] != null)
+                hashChunk(i, tiles[i]);
+        }
+        initializeActiveTiles();
+    }
+
     /**
      * This method initializes the Level's powerup Queue. If spawnPowerups is
      * true, the Queue will be filled with INITIALPOWERUPS randomly generated
-     * powerups. The resulting Queue is returned.
+     * powerups. The resulting Queue is returned. None of its powerups will be
+     * handed out by nextNewPowerup().
      * 
      * @return The Level's initial powerup Queue.
      */
-    private LinkedList<Short> initializePowerups() {
-        LinkedList<Short> nextPowerups = new LinkedList<Short>();
+    private TileQueue initializePowerups() {
+        TileQueue nextPowerups = new TileQueue(INITIALPOWERUPS + 1);
         if (!spawnPowerups)
             return nextPowerups;
         for (int i = 0; i < INITIALPOWERUPS; i++) {
             nextPowerups.offer(spawnPowerup());
         }
+        nextPowerups.markTransmitted();
         return nextPowerups;
     }
 
+    /**
+     * This method looks for tiles that need to be updated each tick right from
+     * the start (i.e. exploding STONEs of a given array of tiles) and marks
+     * them as active. It also records which tiles stop a blast. Chunks that
+     * have not been generated yet are skipped.
+     */
+    private void initializeActiveTiles() {
+        for (int i = 0; i < width * height; i++) {
+            if (tiles[i >>> CHUNKBITS] == null) {
+                i |= CHUNKMASK; // continue with the next chunk
+                continue;
+            }
+            updateActive(i);
+            updateBlastStops(i);
+        }
+        if (!lazy) {
+            // only now that solid is complete; kept up to date from now on
+            spawnCells = new SparseSet(width * height);
+            for (int i = 0; i < width * height; i++)
+                if (isSpawnCell(i / height, i % height))
+                    spawnCells.add(i);
+        }
+    }
+
     /**
      * This method initializes the Level's default spawn points. The are the
      * four corners of this Level. The corresponding two-dimensional array is
@@ -343,59 +614,75 @@ public class Level implements Updateable {
      * @param spawnExit true if an exit should be created.
      */
     protected void fillRandomly(boolean spawnExit) {
-        // create a ring of BEDROCK tiles
-        for (int i = 0; i < width; i++) {
-            // top and bottom
-            tiles[i][0] = tiles[i][height - 1] = BEDROCK;
-        }
-        for (int j = 1; j < height - 1; j++) {
-            // left and right
-            tiles[0][j] = tiles[width - 1][j] = BEDROCK;
-        }
-
-        for (int i = 1; i < width - 1; i++) {
-            for (int j = 1; j < height - 1; j++) {
-                if ((j % 2 == 0) && (i % 2 == 0))
-                    // put a BEDROCK every second row & column
-                    tiles[i][j] = BEDROCK;
-
-                // take some special care of the default spawn points
-                else if ((i == 3 || i == width - 4)
-                        && ((j >= 1 && j <= 3) || (j >= height - 4 && j <= height - 2)))
-                    tiles[i][j] = STONE;
-                else if ((j == 3 || j == height - 4)
-                        && ((i >= 1 && i < 3) || (i > width - 4 && i <= width - 2)))
-                    tiles[i][j] = STONE;
-
-                // fill everything but the spawn points randomly
-                else if ((i >= 4 && i <= width - 5)
-                        || (j >= 4 && j <= height - 5)) {
-                    if (Math.random() <= STONEPROBABILITY)
-                        tiles[i][j] = STONE;
-
-                    else tiles[i][j] = GRASS;
-                }
-
-                else tiles[i][j] = GRASS;
-            }
-        }
+        for (int i = 0; i < width; i++)
+            for (int j = 0; j < height; j++)
+                setRawTileAt(index(i, j), randomTile(i, j, random));
         if (!spawnExit)
             return;
+        int index = randomExit();
+        // see if the exit should be hidden or not
+        if (tileAt(index) == STONE)
+            setRawTileAt(index, HIDDENEXIT);
+        else setRawTileAt(index, EXIT);
+    }
+
+    /**
+     * Returns the tile fillRandomly(spawnExit) puts at position (posX, posY)
+     * (not taking the exit into account). The given random number generator is
+     * only used if the tile is chosen randomly.
+     * 
+     * @param posX The x coordinate of the tile.
+     * @param posY The y coordinate of the tile.
+     * @param random The random number generator to be used.
+     * @return The tile at position (posX, posY).
+     */
+    private short randomTile(int posX, int posY, SplitMix64 random) {
+        int i = posX, j = posY;
+        // create a ring of BEDROCK tiles
+        if (i == 0 || i == width - 1 || j == 0 || j == height - 1)
+            return BEDROCK;
+
+        if ((j % 2 == 0) && (i % 2 == 0))
+            // put a BEDROCK every second row & column
+            return BEDROCK;
+
+        // take some special care of the default spawn points
+        else if ((i == 3 || i == width - 4)
+                && ((j >= 1 && j <= 3) || (j >= height - 4 && j <= height - 2)))
+            return STONE;
+        else if ((j == 3 || j == height - 4)
+                && ((i >= 1 && i < 3) || (i > width - 4 && i <= width - 2)))
+            return STONE;
+
+        // fill everything but the spawn points randomly
+        else if ((i >= 4 && i <= width - 5) || (j >= 4 && j <= height - 5)) {
+            if (random.nextDouble() <= STONEPROBABILITY)
+                return STONE;
+
+            else return GRASS;
+        }
+
+        else return GRASS;
+    }
+
+    /**
+     * Randomly chooses the position of an exit within the inner third of this
+     * Level and returns its index. The position is never a BEDROCK tile.
+     * 
+     * @return The index of the exit.
+     */
+    private int randomExit() {
         // let's try to spawn an exit..
         // want a padding of min. 3 blocks but prefer a third of this Level
         int xOffset = Math.max(3, width / 3);
         int yOffset = Math.max(3, height / 3);
-        int i = xOffset + (int) (Math.random() * (width - 2 * xOffset));
-        int j = yOffset + (int) (Math.random() * (height - 2 * yOffset));
+        int i = xOffset + (int) (random.nextDouble() * (width - 2 * xOffset));
+        int j = yOffset + (int) (random.nextDouble() * (height - 2 * yOffset));
 
         // if the random position is BEDROCK, advance by one tile
-        if (tiles[i][j] == BEDROCK)
+        if ((j % 2 == 0) && (i % 2 == 0))
             i++;
-
-        // see if the exit should be hidden or not
-        if (tiles[i][j] == STONE)
-            tiles[i][j] = HIDDENEXIT;
-        else tiles[i][j] = EXIT;
+        return index(i, j);
     }
 
     // /////////////////////////////////////////////////////////////////////////
@@ -420,6 +707,17 @@ public class Level implements Updateable {
         return height;
     }
 
+    /**
+     * Returns the seed of this Level's random number generator. A Level
+     * created from the same tiles (or with the same dimension) and this seed
+     * will spawn the same powerups and spawn points.
+     * 
+     * @return The seed of this Level.
+     */
+    public long getSeed() {
+        return seed;
+    }
+
     /**
      * Returns (and removes) the next powerup from this Level's powerup Queue.
      * If the powerup Queue is empty, a GRASS tile is returned.
@@ -428,17 +726,36 @@ public class Level implements Updateable {
      */
     private short getNextPowerup() {
         if (spawnPowerups) {
-            // set the t flag so clients will receive the new item
-            nextPowerups.offer(markForTransmit(spawnPowerup()));
+            // clients will receive the new item, see nextNewPowerup()
+            nextPowerups.offer(spawnPowerup());
         }
         if (!nextPowerups.isEmpty())
             return nextPowerups.poll();
         else return GRASS;
     }
 
+    /**
+     * This method randomly spawns a powerup from the array POWERUPS. The
+     * probability for the powerup POWERUPS[i] to spawn is *
+     * PWUPPROB[i]/POWERUPS.length. In case no powerup spawns, a GRASS tile is
+     * returned.
+     * 
+     * @return A randomly chosen value from POWERUPS or a GRASS tile.
+     */
+    private short spawnPowerup() {
+        // first step: choose a powerup that may spawn
+        int index = (int) (random.nextDouble() * POWERUPS.length);
+        // second step: determine if it will spawn
+        if (random.nextDouble() <= PWUPPROB[index])
+            return POWERUPS[index];
+        return GRASS; // default to GRASS
+    }
+
     /**
      * Inserts a new powerup into this Level's powerup Queue. If the powerup is
      * not a valid tile according to isValidTile(tile), it will not be inserted.
+     * Like a randomly spawned powerup, it will be handed out by
+     * nextNewPowerup().
      * 
      * @param tile The new powerup to insert in this Level's powerup Queue.
      */
@@ -461,25 +778,26 @@ public class Level implements Updateable {
     }
 
     /**
-     * Returns a Queue holding a subset of this Level's powerup Queue. It will
-     * contain all the powerups that have been marked for transmit.
+     * Returns true if this Level's powerup Queue holds a powerup that has not
+     * been handed out by nextNewPowerup() yet. These are the powerups inserted
+     * since the Level's creation, i.e. those clients don't know about.
      * 
-     * This Level's powerups will all be unmarked for transmit.
+     * @return true if there is a powerup to be transmitted.
+     */
+    public boolean hasNewPowerup() {
+        return nextPowerups.hasUntransmitted();
+    }
+
+    /**
+     * Returns the next powerup to be transmitted, i.e. the first one of this
+     * Level's powerup Queue that has not been handed out by this method yet.
+     * The powerup stays in the Queue. Powerups that have already been spawned
+     * are skipped. Must only be called if hasNewPowerup() returns true.
      * 
-     * @return A Queue holding all powerups to be transmitted.
+     * @return The next powerup to be transmitted.
      */
-    public Queue<Short> getNewPowerups() {
-        Queue<Short> newPowerups = new LinkedList<Short>();
-        short tile;
-        for (int i = 0; i < nextPowerups.size(); i++) {
-            tile = nextPowerups.get(i);
-            if (markedForTransmit(tile)) {
-                tile = unmarkForTransmit(tile);
-                newPowerups.add(tile);
-                nextPowerups.set(i, tile);
-            }
-        }
-        return newPowerups;
+    public short nextNewPowerup() {
+        return nextPowerups.nextUntransmitted();
     }
 
     /**
@@ -505,9 +823,9 @@ public class Level implements Updateable {
      * @return The tile at position (posX, posY) without any flags.
      */
     public short getTile(int posX, int posY) {
-        if (posX < 0 || posX >= width || posY < 0 || posY >= height)
+        if (!contains(posX, posY))
             return GRASS;
-        return (short) (tiles[posX][posY] & TILE);
+        return tileAt(index(posX, posY));
     }
 
     /**
@@ -535,10 +853,11 @@ public class Level implements Updateable {
      * @param tile New value of the tile at (posX, posY).
      */
     public void setTile(int posX, int posY, short tile) {
-        if (posX < 0 || posX >= width || posY < 0 || posY >= height
-                || !isValidTile(tile))
+        if (!contains(posX, posY) || !isValidTile(tile))
             return;
-        tiles[posX][posY] = tile;
+        setRawTileAt(index(posX, posY), tile);
+        updateActive(index(posX, posY));
+        updateBlastStops(index(posX, posY));
     }
 
     /**
@@ -570,23 +889,22 @@ public class Level implements Updateable {
      * @return true is the tile was destroyed.
      */
     public boolean destroyBlock(int posX, int posY) {
-        if (posX < 0 || posX >= width || posY < 0 || posY >= height)
+        if (!contains(posX, posY))
             return false;
-        if (bombs[posX][posY] != null && !bombs[posX][posY].isExploding())
+        int index = index(posX, posY);
+        Bomb bomb = bombAt(index);
+        if (bomb != null && !bomb.isExploding())
             invokeChainReaction(posX, posY);
-        short tile = getTile(posX, posY);
+        short tile = tileAt(index);
         if (tile == STONE) {
-            tiles[posX][posY] &= ~TILE;
-            tiles[posX][posY] |= EXPLSTART;
+            replaceTileAt(index, EXPLSTART);
             return true;
         } else if (tile == HIDDENEXIT) {
-            tiles[posX][posY] &= ~TILE;
-            tiles[posX][posY] |= EXIT;
+            replaceTileAt(index, EXIT);
             return true;
         } else if (tile == BOMBPLUS || tile == FIREPLUS || tile == CHUCKNORRIS
                 || tile == QUADDAMAGE) {
-            tiles[posX][posY] &= ~TILE;
-            tiles[posX][posY] |= GRASS;
+            replaceTileAt(index, GRASS);
             return true;
         }
         return false;
@@ -602,7 +920,97 @@ public class Level implements Updateable {
      * @param posY The y coordinate of the Bomb to be destroyed.
      */
     protected void invokeChainReaction(int posX, int posY) {
-        bombs[posX][posY].explode();
+        bombAt(index(posX, posY)).explode();
+    }
+
+    /**
+     * Helper method for Bomb.spread(). If there is a Bomb at position (posX,
+     * posY) that has not exploded yet, it is set off via invokeChainReaction()
+     * and true is returned. The tile itself is left untouched; the caller has
+     * to destroy it once the blast of that Bomb has spread.
+     * 
+     * @param posX The x coordinate of the tile.
+     * @param posY The y coordinate of the tile.
+     * @return true if a Bomb has been set off.
+     */
+    boolean setOff(int posX, int posY) {
+        if (!contains(posX, posY))
+            return false;
+        Bomb bomb = bombAt(index(posX, posY));
+        if (bomb == null || bomb.isExploding())
+            return false;
+        invokeChainReaction(posX, posY);
+        return true;
+    }
+
+    /**
+     * Helper method for Bomb.spread(). Looks for the nearest tile in the
+     * direction (dirX, dirY) starting from the Bomb at (posX, posY) that stops
+     * its blast, i.e. a solid tile or, in Quad Damage mode, a BEDROCK tile.
+     * Only the tiles at a distance between from and to (both inclusive) are
+     * considered; tiles outside of the bounds of this Level never stop a blast.
+     * Instead of visiting each tile, this method scans the row or column 64
+     * tiles at a time.
+     * 
+     * @param posX The x coordinate of the Bomb.
+     * @param posY The y coordinate of the Bomb.
+     * @param dirX The x direction the blast spreads in (-1, 0 or 1).
+     * @param dirY The y direction the blast spreads in (-1, 0 or 1).
+     * @param from The smallest distance to be considered, from >= 1.
+     * @param to The greatest distance to be considered.
+     * @param quadDamage true if the Bomb is in Quad Damage mode.
+     * @return The distance of the tile stopping the blast or -1 if none does.
+     */
+    int findBlastStop(int posX, int posY, int dirX, int dirY, int from,
+            int to, boolean quadDamage) {
+        if (!lazy)
+            return (quadDamage ? bedrock : solid).scan(posX, posY, dirX, dirY,
+                    from, to);
+        // visit the tiles, so only the chunks the blast reaches are generated
+        for (int distance = from; distance <= to; distance++) {
+            int x = posX + distance * dirX, y = posY + distance * dirY;
+            if (!contains(x, y))
+                return -1;
+            int index = index(x, y);
+            if (quadDamage ? tileAt(index) == BEDROCK : isSolidAt(index))
+                return distance;
+        }
+        return -1;
+    }
+
+    /**
+     * Lets the blast of the given, just exploded Bomb spread. Called by
+     * Bomb.explode().
+     * 
+     * Chain reactions are resolved depth-first, just as if every Bomb set off
+     * the next one by a nested call: a blast reaching a Bomb stops spreading
+     * until the blast of that Bomb has spread completely. Instead of the call
+     * stack, the Bombs whose blasts are still spreading are kept on a worklist
+     * (blasts), the topmost one being the one to spread next. So a chain
+     * reaction through thousands of Bombs neither overflows the stack nor
+     * allocates any memory (unless the worklist has to grow). If a blast is
+     * already being resolved, the Bomb is just pushed onto the worklist and
+     * spreads as soon as the caller has returned.
+     * 
+     * @param bomb The Bomb whose blast is to spread.
+     */
+    void blast(Bomb bomb) {
+        // the Bomb isn't solid anymore
+        updateBlastStops(index(bomb.getPosX(), bomb.getPosY()));
+        dangerChanged = true; // even if it lies on a solid tile
+        if (blastCount == blasts.length)
+            blasts = Arrays.copyOf(blasts, blastCount * 2);
+        blasts[blastCount++] = bomb;
+        if (blastCount > 1)
+            return; // the outermost call will take care of it
+        try {
+            while (blastCount > 0)
+                if (blasts[blastCount - 1].spread())
+                    blasts[--blastCount] = null;
+        } finally {
+            while (blastCount > 0) // only if spread() has thrown something
+                blasts[--blastCount] = null;
+        }
     }
 
     /**
@@ -630,12 +1038,86 @@ public class Level implements Updateable {
      * @return true is the tile at (posX, posY) is solid.
      */
     public boolean isSolid(int posX, int posY) {
-        if (posX < 0 || posX >= width || posY < 0 || posY >= height)
+        if (!contains(posX, posY))
             return false;
-        short tile = getTile(posX, posY);
-        return (tile == BEDROCK || tile == STONE || tile == HIDDENEXIT
-                || (tile > EXPLEND && tile <= EXPLSTART) || (hasBomb(posX, posY))
-                && bombs[posX][posY].isCounting());
+        return isSolidAt(index(posX, posY));
+    }
+
+    /**
+     * Returns the number of ticks until the tile at position (posX, posY) is
+     * set on fire by one of the Bombs that are COUNTING, including the ones
+     * they set off: the tile burns during the getDanger()'th call to update()
+     * from now on. If no Bomb is going to reach the tile or if the position is
+     * outside of the bounds of this Level, NODANGER is returned.
+     * 
+     * The danger is computed from the Bombs and tiles as they are right now,
+     * but only when it is asked for after a Bomb has been planted or has
+     * exploded or a solid tile has changed. Apart from that, asking for it is
+     * cheap.
+     * 
+     * @param posX The x coordinate of the tile. Cast to integer.
+     * @param posY The y coordinate of the tile. Cast to integer.
+     * @return The number of ticks until the tile burns or NODANGER.
+     */
+    public int getDanger(double posX, double posY) {
+        return getDanger((int) posX, (int) posY);
+    }
+
+    /**
+     * Returns the number of ticks until the tile at position (posX, posY) is
+     * set on fire by one of the Bombs that are COUNTING, including the ones
+     * they set off: the tile burns during the getDanger()'th call to update()
+     * from now on. If no Bomb is going to reach the tile or if the position is
+     * outside of the bounds of this Level, NODANGER is returned.
+     * 
+     * The danger is computed from the Bombs and tiles as they are right now,
+     * but only when it is asked for after a Bomb has been planted or has
+     * exploded or a solid tile has changed. Apart from that, asking for it is
+     * cheap.
+     * 
+     * @param posX The x coordinate of the tile.
+     * @param posY The y coordinate of the tile.
+     * @return The number of ticks until the tile burns or NODANGER.
+     */
+    public int getDanger(int posX, int posY) {
+        if (!contains(posX, posY))
+            return NODANGER;
+        return getDangerField().getDanger(index(posX, posY));
+    }
+
+    /**
+     * Looks for the nearest tile a Player standing on the tile at position
+     * (posX, posY) can walk to and stay on without being hit by a blast (see
+     * getDanger()). The Player only walks across tiles that are not solid and
+     * never stands on a tile while it burns; it takes Player.TICKSPERTILE
+     * ticks to walk from one tile to the next. Only the tiles within
+     * maxDistance steps are considered, so the cost of this method does not
+     * depend on the size of this Level.
+     * 
+     * @param posX The x coordinate of the Player's tile.
+     * @param posY The y coordinate of the Player's tile.
+     * @param maxDistance The maximum number of steps to the safe tile.
+     * @return The direction of the first step towards the nearest safe tile
+     * (Player.MOVEDLEFT, MOVEDRIGHT, MOVEDUP or MOVEDDOWN), 0 if the Player is
+     * safe where it is or -1 if there is no safe tile within reach.
+     */
+    public byte findEscape(int posX, int posY, int maxDistance) {
+        if (!contains(posX, posY))
+            return 0;
+        return getDangerField().findEscape(posX, posY, maxDistance);
+    }
+
+    /**
+     * Returns this Level's DangerField after computing it anew if necessary.
+     * 
+     * @return The up to date DangerField.
+     */
+    private DangerField getDangerField() {
+        if (dangerChanged) {
+            dangerChanged = false;
+            danger.compute();
+        }
+        return danger;
     }
 
     /**
@@ -692,10 +1174,9 @@ public class Level implements Updateable {
      * @return true is Bomb could be placed, false otherwise.
      */
     public boolean putBomb(int posX, int posY, Player player) {
-        if (posX < 0 || posX >= width || posY < 0 || posY >= height
-                || hasBomb(posX, posY))
+        if (!contains(posX, posY) || bombAt(index(posX, posY)) != null)
             return false;
-        bombs[posX][posY] = new Bomb(posX, posY, this, player);
+        addBomb(index(posX, posY), createBomb(posX, posY, player));
         return true;
     }
 
@@ -717,14 +1198,61 @@ public class Level implements Updateable {
      */
     public boolean putBomb(int posX, int posY, Player player, byte range,
             boolean quadDamage) {
-        if (posX < 0 || posX >= width || posY < 0 || posY >= height
-                || hasBomb(posX, posY))
+        if (!contains(posX, posY) || bombAt(index(posX, posY)) != null)
             return false;
-        bombs[posX][posY] = new Bomb(posX, posY, this, player, range,
-                quadDamage);
+        addBomb(index(posX, posY),
+                createBomb(posX, posY, player, range, quadDamage));
         return true;
     }
 
+    /**
+     * Creates the Bomb that putBomb(posX, posY, player) places. Is meant to be
+     * overwritten by subclasses that need Bombs with visual effects (see
+     * FxLevel).
+     * 
+     * @param posX X coordinate of the new Bomb.
+     * @param posY Y coordinate of the new Bomb.
+     * @param player Player object planting the new Bomb.
+     * @return The new Bomb.
+     */
+    protected Bomb createBomb(int posX, int posY, Player player) {
+        return new Bomb(posX, posY, this, player);
+    }
+
+    /**
+     * Creates the Bomb that putBomb(posX, posY, player, range, quadDamage)
+     * places. Is meant to be overwritten by subclasses that need Bombs with
+     * visual effects (see FxLevel).
+     * 
+     * @param posX X coordinate of the new Bomb.
+     * @param posY Y coordinate of the new Bomb.
+     * @param player Player object planting the new Bomb.
+     * @param range Maximum range of the new Bomb.
+     * @param quadDamage Specifies if the Bomb is in Quad Damage mode.
+     * @return The new Bomb.
+     */
+    protected Bomb createBomb(int posX, int posY, Player player, byte range,
+            boolean quadDamage) {
+        return new Bomb(posX, posY, this, player, range, quadDamage);
+    }
+
+    /**
+     * Stores the given Bomb in the next free slot and links the tile at the
+     * given index to it. There must not be a Bomb at that index yet.
+     * 
+     * @param index Index of the tile the Bomb is placed on.
+     * @param bomb The Bomb to be stored.
+     */
+    private void addBomb(int index, Bomb bomb) {
+        if (bombCount == bombs.length)
+            bombs = Arrays.copyOf(bombs, bombs.length * 2);
+        bombs[bombCount++] = bomb;
+        setBombSlot(index, bombCount);
+        hash ^= bombKey(index);
+        updateBlastStops(index);
+        dangerChanged = true; // even if it lies on a solid tile
+    }
+
     /**
      * This method tries to remove a Bomb at the specified position. The
      * affected Bomb object is 'nulled out' and thus removed from being updated.
@@ -748,9 +1276,20 @@ public class Level implements Updateable {
      * @param posY Y coordinate of the Bomb to be removed.
      */
     public void removeBomb(int posX, int posY) {
-        if (posX < 0 || posX >= width || posY < 0 || posY >= height)
+        if (!contains(posX, posY))
+            return;
+        int index = index(posX, posY);
+        int slot = bombSlot(index) - 1;
+        if (slot < 0)
             return;
-        bombs[posX][posY] = null;
+        // fill the gap with the last Bomb so the array stays densely packed
+        Bomb last = bombs[--bombCount];
+        bombs[slot] = last;
+        bombs[bombCount] = null;
+        setBombSlot(index(last.getPosX(), last.getPosY()), slot + 1);
+        setBombSlot(index, 0);
+        updateBlastStops(index);
+        hash ^= bombKey(index);
     }
 
     /**
@@ -780,19 +1319,73 @@ public class Level implements Updateable {
      * @return true if a Bomb at (posX, posY) exists, false otherwise.
      */
     public boolean hasBomb(int posX, int posY) {
-        if (posX < 0 || posX >= width || posY < 0 || posY >= height)
+        if (!contains(posX, posY))
             return false;
-        return (bombs[posX][posY] != null);
+        return bombSlot(index(posX, posY)) != 0;
+    }
+
+    /**
+     * Returns the number of Bombs currently placed in this Level.
+     * 
+     * @return The number of Bombs in this Level.
+     */
+    public int getBombCount() {
+        return bombCount;
+    }
+
+    /**
+     * Returns the number of Bombs of this Level that are exploding at this
+     * moment. Can be used for shock effects and similar.
+     * 
+     * @return The number of exploding Bombs in this Level.
+     */
+    public int getExplodeCount() {
+        return explodeCount;
+    }
+
+    /**
+     * Increments the number of exploding Bombs. Is invoked by a Bomb when it
+     * explodes.
+     */
+    void incrementExplodeCount() {
+        explodeCount++;
+    }
+
+    /**
+     * Decrements the number of exploding Bombs. Is invoked by a Bomb when it is
+     * removed.
+     */
+    void decrementExplodeCount() {
+        explodeCount--;
+    }
+
+    /**
+     * Returns the i'th Bomb of this Level, 0 <= i < getBombCount(). The order
+     * of the Bombs changes whenever a Bomb is removed.
+     * 
+     * @param i The slot of the Bomb to be returned.
+     * @return The Bomb in slot i.
+     */
+    public Bomb getBomb(int i) {
+        return bombs[i];
     }
 
     /**
      * Returns a spawn point for the num'th Player object. A predefined value
      * from this Level's spawn point array is selected if possible (for a
      * randomly created Level, the four corners are the four available spawn
-     * points. If no spawn point is predefined for the num'th Player, this
-     * method tries to select a random, suitable spawn point; if none can be
-     * found after a predefined number of steps (see MAXLOOPCOUNT), any spawn
-     * point is returned.
+     * points. If no spawn point is predefined for the num'th Player, a random
+     * spawn cell (see isSpawnCell()) is selected: out of SPAWNCANDIDATES spawn
+     * cells picked uniformly at random, the one farthest away from the living
+     * Players is taken. This Level keeps its spawn cells densely packed (see
+     * SparseSet), so picking one takes constant time, and the whole choice
+     * takes time proportional to the number of Players. A lazy Level has no
+     * such index; it tries up to MAXLOOPCOUNT random tiles instead. If there
+     * is no spawn cell, any spawn point is returned.
+     * 
+     * The order of the spawn cells depends on how the tiles have changed and
+     * is not part of the state written by writeState(), so a restored Level
+     * may pick other spawn cells than the original one would have.
      * 
      * This method should be used with care; if a deterministic outcome for
      * values of num >= 4 is desired, one should provide this Level with a
@@ -804,38 +1397,122 @@ public class Level implements Updateable {
     public int[] getSpawnPoint(int num) {
         if (num >= 0 && num <= 3)
             return spawnPoints[num];
+        if (lazy || spawnCells.size() == 0)
+            return probeSpawnPoint();
+        int best = -1, bestDistance = -1;
+        for (int i = 0; i < SPAWNCANDIDATES; i++) {
+            int index = spawnCells.get((int) (random.nextDouble() * spawnCells
+                    .size()));
+            int distance = distanceToPlayers(index / height, index % height);
+            if (distance > bestDistance) {
+                best = index;
+                bestDistance = distance;
+            }
+            if (distance == Integer.MAX_VALUE)
+                break; // no Player is alive
+        }
+        return new int[] { best / height, best % height };
+    }
+
+    /**
+     * Helper method for getSpawnPoint(num). Tries up to MAXLOOPCOUNT random
+     * tiles until one of them is a spawn cell. If none is, the last one is
+     * returned anyway.
+     * 
+     * @return Spawn point in form of an array: [posX, posY].
+     */
+    private int[] probeSpawnPoint() {
         int[] spawnPoint = new int[2];
         for (int i = 0; i < MAXLOOPCOUNT; i++) {
-            spawnPoint[0] = (int) (Math.random() * width);
-            spawnPoint[1] = (int) (Math.random() * height);
-            // see if there is a free L-shaped area
-            if (!isSolid(spawnPoint[0], spawnPoint[1])
-                    && ((!isSolid(spawnPoint[0] + 1, spawnPoint[1]) && (!isSolid(
-                            spawnPoint[0], spawnPoint[1] - 1)
-                            || !isSolid(spawnPoint[0], spawnPoint[1] + 1)
-                            || !isSolid(spawnPoint[0] + 1, spawnPoint[1] - 1) || !isSolid(
-                                spawnPoint[0] + 1, spawnPoint[1] + 1)))
-
-                            || (!isSolid(spawnPoint[0] - 1, spawnPoint[1]) && (!isSolid(
-                                    spawnPoint[0], spawnPoint[1] - 1)
-                                    || !isSolid(spawnPoint[0],
-                                            spawnPoint[1] + 1)
-                                    || !isSolid(spawnPoint[0] - 1,
-                                            spawnPoint[1] - 1) || !isSolid(
-                                        spawnPoint[0] - 1, spawnPoint[1] + 1)))
-
-                            || (!isSolid(spawnPoint[0], spawnPoint[1] - 1) && (!isSolid(
-                                    spawnPoint[0] - 1, spawnPoint[1] - 1) || !isSolid(
-                                    spawnPoint[0] + 1, spawnPoint[1] - 1)))
-
-                    || (!isSolid(spawnPoint[0], spawnPoint[1] + 1) && (!isSolid(
-                            spawnPoint[0] - 1, spawnPoint[1] + 1) || !isSolid(
-                            spawnPoint[0] + 1, spawnPoint[1] + 1)))))
+            spawnPoint[0] = (int) (random.nextDouble() * width);
+            spawnPoint[1] = (int) (random.nextDouble() * height);
+            if (isSpawnCell(spawnPoint[0], spawnPoint[1]))
                 break;
         }
         return spawnPoint;
     }
 
+    /**
+     * Returns true if a Player can spawn at position (posX, posY), i.e. if
+     * the tile is free and part of a free L-shaped area, so the Player is
+     * able to escape from its first Bomb.
+     * 
+     * @param posX The x coordinate of the tile.
+     * @param posY The y coordinate of the tile.
+     * @return true if the tile is a spawn cell.
+     */
+    private boolean isSpawnCell(int posX, int posY) {
+        if (!isFree(posX, posY))
+            return false;
+        boolean up = isFree(posX, posY - 1), down = isFree(posX, posY + 1);
+        return (isFree(posX + 1, posY) && (up || down
+                || isFree(posX + 1, posY - 1) || isFree(posX + 1, posY + 1)))
+                || (isFree(posX - 1, posY) && (up || down
+                        || isFree(posX - 1, posY - 1) || isFree(posX - 1,
+                        posY + 1)))
+                || (up && (isFree(posX - 1, posY - 1) || isFree(posX + 1,
+                        posY - 1)))
+                || (down && (isFree(posX - 1, posY + 1) || isFree(posX + 1,
+                        posY + 1)));
+    }
+
+    /**
+     * Helper method for isSpawnCell(). Returns true if the tile at position
+     * (posX, posY) is not solid; tiles outside of this Level are free.
+     * 
+     * @param posX The x coordinate of the tile.
+     * @param posY The y coordinate of the tile.
+     * @return true if the tile is not solid.
+     */
+    private boolean isFree(int posX, int posY) {
+        if (!contains(posX, posY))
+            return true;
+        return lazy ? !isSolidAt(index(posX, posY)) : !solid.get(posX, posY);
+    }
+
+    /**
+     * Updates the index of spawn cells around position (posX, posY) after the
+     * tile there has become solid or free.
+     * 
+     * @param posX The x coordinate of the tile that has changed.
+     * @param posY The y coordinate of the tile that has changed.
+     */
+    private void updateSpawnCells(int posX, int posY) {
+        for (int i = posX - 1; i <= posX + 1; i++)
+            for (int j = posY - 1; j <= posY + 1; j++) {
+                if (!contains(i, j))
+                    continue;
+                if (isSpawnCell(i, j))
+                    spawnCells.add(index(i, j));
+                else spawnCells.remove(index(i, j));
+            }
+    }
+
+    /**
+     * Returns the distance (in tiles, diagonal steps count as one) between
+     * position (posX, posY) and the nearest living Player of this Level.
+     * 
+     * @param posX The x coordinate of the tile.
+     * @param posY The y coordinate of the tile.
+     * @return The distance or Integer.MAX_VALUE if no Player is alive.
+     */
+    private int distanceToPlayers(int posX, int posY) {
+        int half = Player.UNIT / 2; // the tile of the Player's middle point
+        int distance = Integer.MAX_VALUE;
+        for (int i = 0; i < playerCount; i++) {
+            Player player = players[i];
+            if (player.isDead())
+                continue;
+            int dx = Math.floorDiv(player.getFixedX() + half, Player.UNIT)
+                    - posX;
+            int dy = Math.floorDiv(player.getFixedY() + half, Player.UNIT)
+                    - posY;
+            distance = Math.min(distance, Math.max(Math.abs(dx),
+                    Math.abs(dy)));
+        }
+        return distance;
+    }
+
     // /////////////////////////////////////////////////////////////////////////
     // ///////////////GETTERS & SETTERS FOR FLAGS///////////////////////////////
     // /////////////////////////////////////////////////////////////////////////
@@ -859,7 +1536,7 @@ public class Level implements Updateable {
      * @return The given tile with its t flag set to 0.
      */
     public short unmarkForTransmit(short tile) {
-        return (short) (tile & TRANSMIT);
+        return (short) (tile & ~TRANSMIT);
     }
 
     /**
@@ -885,16 +1562,115 @@ public class Level implements Updateable {
      */
     public void update() {
         short tile;
-        for (int i = 0; i < width; i++)
-            for (int j = 0; j < height; j++) {
-                tile = getTile(i, j);
-                if (tile > EXPLEND && tile <= EXPLSTART) {
-                    decrementStoneExplosion(i, j);
-                } else if (tile == EXPLEND)
-                    removeStone(i, j);
-                if (bombs[i][j] != null)
-                    bombs[i][j].update();
-            }
+        Bomb bomb;
+        timers.advance(due);
+        // tiles that become active behind the current one are visited as well
+        int index = nextToVisit(0);
+        while (index >= 0) {
+            visiting = index;
+            tile = tileAt(index);
+            if (tile > EXPLEND && tile <= EXPLSTART) {
+                decrementStoneExplosion(index / height, index % height);
+            } else if (tile == EXPLEND)
+                removeStone(index / height, index % height);
+            bomb = bombAt(index);
+            if (due.remove(index) && bomb != null)
+                bomb.update();
+            index = nextToVisit(index + 1);
+        }
+        visiting = -1;
+    }
+
+    /**
+     * Helper method for update(). Returns the smallest index greater than or
+     * equal to from that is either active or due, or -1 if there is none.
+     * 
+     * @param from The index to start searching from.
+     * @return The index of the next tile to be visited or -1.
+     */
+    private int nextToVisit(int from) {
+        int stone = active.next(from);
+        int bomb = due.next(from);
+        if (stone < 0 || (bomb >= 0 && bomb < stone))
+            return bomb;
+        return stone;
+    }
+
+    /**
+     * Returns the number of times update() has been called on this Level.
+     * 
+     * @return The number of ticks that have passed in this Level.
+     */
+    public long getTicks() {
+        return timers.getTime();
+    }
+
+    /**
+     * Returns a 64 bit hash of the state of this Level: its tiles, the
+     * positions of its Bombs and the tiles its Players stand on. It is
+     * maintained incrementally, so it costs nothing to ask for it every tick.
+     * Two Levels that went through the same changes have the same hash, no
+     * matter in which order the changes happened or whether one of them is an
+     * FxLevel, so a client can check cheaply if it still agrees with the
+     * server. An exploding STONE counts as a STONE until it is removed, and
+     * chunks of a lazy Level only count once they have been generated.
+     * 
+     * @return The hash of the state of this Level.
+     */
+    public long getStateHash() {
+        return hash;
+    }
+
+    /**
+     * Returns the tick on which update() will visit the tile at position (posX,
+     * posY) the next time (if it were active). That is the current tick if
+     * update() is still to reach that tile and the next tick otherwise.
+     * 
+     * @param posX The x coordinate of the tile.
+     * @param posY The y coordinate of the tile.
+     * @return The tick of the next visit of the tile at (posX, posY).
+     */
+    long getNextVisit(int posX, int posY) {
+        if (visiting >= 0 && index(posX, posY) > visiting)
+            return getTicks();
+        return getTicks() + 1;
+    }
+
+    /**
+     * Makes update() visit the Bomb at position (posX, posY) once it would have
+     * been visited delay more times, i.e. on tick getNextVisit(posX, posY) +
+     * delay. This is how Bombs count down without being visited on every tick.
+     * The Bomb has to check on its own if it is actually due, as timers cannot
+     * be cancelled.
+     * 
+     * @param posX The x coordinate of the Bomb.
+     * @param posY The y coordinate of the Bomb.
+     * @param delay The number of visits to skip.
+     * @return The tick on which the Bomb will be visited.
+     */
+    long schedule(int posX, int posY, int delay) {
+        long when = getNextVisit(posX, posY) + delay;
+        timers.schedule(index(posX, posY), when);
+        return when;
+    }
+
+    /**
+     * Returns the number of tiles that update() currently has to visit on
+     * every tick, i.e. exploding STONEs.
+     * 
+     * @return The number of active tiles.
+     */
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * Returns the number of Bomb timers that have not yet expired.
+     * 
+     * @return The number of pending timers.
+     */
+    public int getTimerCount() {
+        return timers.size();
     }
 
     /**
@@ -906,9 +1682,8 @@ public class Level implements Updateable {
      * @param posY Y coordinate of the tile whose counter is to be decremented.
      */
     protected void decrementStoneExplosion(int posX, int posY) {
-        short tile = getTile(posX, posY);
-        tiles[posX][posY] &= ~TILE;
-        tiles[posX][posY] |= (tile - 1);
+        int index = index(posX, posY);
+        replaceTileAt(index, (short) (tileAt(index) - 1));
     }
 
     /**
@@ -920,8 +1695,776 @@ public class Level implements Updateable {
      * @param posY Y coordinate of the stone to ultimately remove.
      */
     protected void removeStone(int posX, int posY) {
-        tiles[posX][posY] &= ~TILE;
-        tiles[posX][posY] |= getNextPowerup();
+        replaceTileAt(index(posX, posY), getNextPowerup());
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // ////////////////////////PLAYER OCCUPANCY/////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /*
+     * A Player can only be hit on a tile if the tile's middle point lies
+     * within its collision box (see Bomb.killPlayer()). As a Player is smaller
+     * than a tile, there is at most one such tile: the one nearest to the
+     * Player's position. Each Player is linked into the list of that tile,
+     * ordered by the time the Players joined this Level. Players can walk
+     * past the edge of a Level, so there is a ring of tiles around it; Players
+     * even further away all share a last list.
+     */
+
+    /**
+     * Adds the given Player to this Level's Players. Is invoked from the
+     * Player's constructor.
+     * 
+     * @param player The Player that joins this Level.
+     */
+    void addPlayer(Player player) {
+        if (playerCount == players.length)
+            players = Arrays.copyOf(players, 2 * playerCount);
+        players[playerCount] = player;
+        player.number = playerCount++;
+        player.occupied = -1;
+        updatePlayer(player);
+    }
+
+    /**
+     * Moves the given Player to the list of the tile it stands on now. Has to
+     * be invoked every time the position of the Player changes.
+     * 
+     * @param player The Player that has moved.
+     */
+    void updatePlayer(Player player) {
+        int half = Player.UNIT / 2; // the tile of the Player's middle point
+        int slot = occupancySlot(
+                Math.floorDiv(player.getFixedX() + half, Player.UNIT),
+                Math.floorDiv(player.getFixedY() + half, Player.UNIT));
+        if (slot == player.occupied)
+            return;
+        hash ^= playerKey(player.number, slot);
+        // unlink the Player from the tile it has left
+        if (player.occupied >= 0) {
+            hash ^= playerKey(player.number, player.occupied);
+            Player p = occupantAt(player.occupied);
+            if (p == player)
+                setOccupant(player.occupied, player.nextOnTile);
+            else {
+                while (p.nextOnTile != player)
+                    p = p.nextOnTile;
+                p.nextOnTile = player.nextOnTile;
+            }
+        }
+        // link it into the list of the new tile, keeping the order
+        player.occupied = slot;
+        Player p = occupantAt(slot);
+        if (p == null || p.number > player.number) {
+            player.nextOnTile = p;
+            setOccupant(slot, player);
+        } else {
+            while (p.nextOnTile != null && p.nextOnTile.number < player.number)
+                p = p.nextOnTile;
+            player.nextOnTile = p.nextOnTile;
+            p.nextOnTile = player;
+        }
+    }
+
+    /**
+     * Returns the first Player of this Level that might be hit on the tile at
+     * position (posX, posY), or null if there is none. The others can be
+     * reached through Player.nextOnTile. All Players whose collision box
+     * contains the middle point of that tile are part of this list; they are
+     * ordered by the time they joined this Level. The list may contain other
+     * Players as well. The position does not need to lie within this Level.
+     * 
+     * @param posX The x coordinate of the tile.
+     * @param posY The y coordinate of the tile.
+     * @return The first Player that might be hit on the tile or null.
+     */
+    Player playersAt(int posX, int posY) {
+        return occupantAt(occupancySlot(posX, posY));
+    }
+
+    /**
+     * Helper method for the methods above. Returns the slot in occupants that
+     * holds the list of the tile at (posX, posY).
+     * 
+     * @param posX The x coordinate of the tile.
+     * @param posY The y coordinate of the tile.
+     * @return The slot of the tile in occupants.
+     */
+    private int occupancySlot(double posX, double posY) {
+        if (posX < -1 || posX > width || posY < -1 || posY > height)
+            return occupantSlots - 1; // far away from this Level
+        return ((int) posX + 1) * (height + 2) + (int) posY + 1;
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // ////////////////////////UNCHECKED ACCESS/////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /*
+     * The following methods skip any bounds checking. They are meant for
+     * callers that have already made sure that a position lies within this
+     * Level, e.g. by calling contains(posX, posY).
+     */
+
+    /**
+     * Returns true if the position (posX, posY) lies within the bounds of this
+     * Level.
+     * 
+     * @param posX The x coordinate to be checked.
+     * @param posY The y coordinate to be checked.
+     * @return true if (posX, posY) is inside this Level, false otherwise.
+     */
+    public final boolean contains(int posX, int posY) {
+        return posX >= 0 && posX < width && posY >= 0 && posY < height;
+    }
+
+    /**
+     * Returns the index of the tile at position (posX, posY) in this Level's
+     * tile array. The position is not checked.
+     * 
+     * @param posX The x coordinate of the tile.
+     * @param posY The y coordinate of the tile.
+     * @return The index of the tile at (posX, posY).
+     */
+    protected final int index(int posX, int posY) {
+        return posX * height + posY;
+    }
+
+    /**
+     * Returns the value of the tile at the given index without any flags.
+     * 
+     * @param index The index of the tile, see index(posX, posY).
+     * @return The tile at the given index without any flags.
+     */
+    protected final short tileAt(int index) {
+        return (short) (rawTileAt(index) & TILE);
+    }
+
+    /**
+     * Replaces the value of the tile at the given index while keeping its
+     * flags.
+     * 
+     * @param index The index of the tile, see index(posX, posY).
+     * @param tile The new value of the tile.
+     */
+    protected final void replaceTileAt(int index, short tile) {
+        setRawTileAt(index, (short) ((rawTileAt(index) & ~TILE) | tile));
+        updateActive(index);
+        updateBlastStops(index);
+    }
+
+    /**
+     * Marks the tile at the given index as active if it is an exploding STONE
+     * and as inactive otherwise.
+     * 
+     * @param index The index of the tile, see index(posX, posY).
+     */
+    private void updateActive(int index) {
+        short tile = tileAt(index);
+        if (tile >= EXPLEND && tile <= EXPLSTART)
+            active.add(index);
+        else active.remove(index);
+    }
+
+    /**
+     * Records whether the tile at the given index stops a blast, i.e. if it is
+     * solid and if it is BEDROCK. Has to be called whenever either might have
+     * changed, including the placement, explosion and removal of a Bomb.
+     * 
+     * @param index The index of the tile, see index(posX, posY).
+     */
+    private void updateBlastStops(int index) {
+        if (lazy) {
+            dangerChanged = true;
+            return; // see findBlastStop()
+        }
+        int posX = index / height, posY = index % height;
+        boolean isSolid = isSolidAt(index);
+        boolean isBedrock = tileAt(index) == BEDROCK;
+        if (solid.get(posX, posY) != isSolid
+                || bedrock.get(posX, posY) != isBedrock) {
+            boolean changed = solid.get(posX, posY) != isSolid;
+            solid.set(posX, posY, isSolid);
+            bedrock.set(posX, posY, isBedrock);
+            dangerChanged = true; // the blasts might spread differently
+            if (changed && spawnCells != null)
+                updateSpawnCells(posX, posY);
+        }
+    }
+
+    /**
+     * Returns the Bomb lying on the tile with the given index or null if there
+     * is none.
+     * 
+     * @param index The index of the tile, see index(posX, posY).
+     * @return The Bomb at the given index or null.
+     */
+    protected final Bomb bombAt(int index) {
+        int slot = bombSlot(index);
+        return slot == 0 ? null : bombs[slot - 1];
+    }
+
+    /**
+     * Returns true if the tile with the given index is solid. See
+     * isSolid(posX, posY).
+     * 
+     * @param index The index of the tile, see index(posX, posY).
+     * @return true if the tile at the given index is solid.
+     */
+    protected final boolean isSolidAt(int index) {
+        if (isSolidTile(tileAt(index)))
+            return true;
+        Bomb bomb = bombAt(index);
+        return bomb != null && bomb.isCounting();
+    }
+
+    /**
+     * Returns true if the given tile (without any flags) is solid by itself,
+     * i.e. if it is a STONE (or HIDDENEXIT), an exploding STONE or BEDROCK.
+     * 
+     * @param tile The tile to be checked.
+     * @return true if the tile is solid.
+     */
+    static boolean isSolidTile(short tile) {
+        return tile == BEDROCK || tile == STONE || tile == HIDDENEXIT
+                || (tile > EXPLEND && tile <= EXPLSTART);
+    }
+
+    /**
+     * Returns the tile at the given index including all of its flags.
+     * 
+     * @param index The index of the tile, see index(posX, posY).
+     * @return The tile at the given index.
+     */
+    protected final short rawTileAt(int index) {
+        return tileChunk(index)[index & CHUNKMASK];
+    }
+
+    /**
+     * Sets the tile at the given index including all of its flags. Neither the
+     * active tiles nor the tiles stopping a blast are updated.
+     * 
+     * @param index The index of the tile, see index(posX, posY).
+     * @param tile The new tile.
+     */
+    protected final void setRawTileAt(int index, short tile) {
+        short[] chunk = tileChunk(index);
+        int number = index >>> CHUNKBITS;
+        if (frozen[number] || isShared(chunk)) { // copy on write
+            chunk = chunk.clone();
+            tiles[number] = chunk;
+            frozen[number] = false;
+        }
+        short old = chunk[index & CHUNKMASK];
+        if (((old ^ tile) & TILE) != 0) // flags do not count
+            hash ^= tileKey(index, old) ^ tileKey(index, tile);
+        chunk[index & CHUNKMASK] = tile;
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // ///////////////////////////SAVED STATE///////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /*
+     * The state of a Level is written in this order: dimension, seed, whether
+     * it is lazy and spawns powerups, the index of its exit, the state of its
+     * random number generator (see SplitMix64), its ticks, its powerup queue
+     * and its chunks of tiles (each one preceded by its kind, see below). The
+     * Bombs follow separately (see writeBombs()), as they refer to the Players.
+     */
+    private static final byte UNGENERATED = 0; // chunk of a lazy Level
+    private static final byte SHARED = 1; // followed by its tile
+    private static final byte STORED = 2; // followed by all of its tiles
+
+    /**
+     * Writes the state of this Level (apart from its Bombs and Players) to the
+     * given output, so it can be restored later on, see Level(in). Chunks
+     * that consist of a single tile take three bytes, chunks of a lazy Level
+     * that have not been generated yet a single one. Must not be called while
+     * this Level is updated.
+     * 
+     * @param out The output to write the state to.
+     * @throws IOException If the state cannot be written.
+     */
+    public void writeState(DataOutput out) throws IOException {
+        writeHeader(out);
+        writeChunks(out, tiles, width * height);
+    }
+
+    /**
+     * Writes the part of the state of this Level that precedes its chunks of
+     * tiles, see writeState(out).
+     * 
+     * @param out The output to write the header to.
+     * @throws IOException If the header cannot be written.
+     */
+    void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeLong(seed);
+        out.writeBoolean(lazy);
+        out.writeBoolean(spawnPowerups);
+        out.writeInt(exitIndex);
+        out.writeLong(random.getState());
+        out.writeLong(getTicks());
+        // the powerup queue, the untransmitted powerups last
+        out.writeInt(nextPowerups.size());
+        out.writeInt(nextPowerups.untransmittedCount());
+        for (int i = 0; i < nextPowerups.size(); i++)
+            out.writeShort(nextPowerups.get(i));
+    }
+
+    /**
+     * Returns the chunks of tiles of this Level as they are now, so they can
+     * be written by writeChunks() while this Level goes on. The chunks are
+     * frozen: a chunk is copied before it is changed next time. Taking a
+     * snapshot thus takes time proportional to the number of chunks only,
+     * not to the number of tiles.
+     * 
+     * @return A copy of the array of chunks, see writeChunks().
+     */
+    short[][] freezeChunks() {
+        for (int i = 0; i < tiles.length; i++)
+            frozen[i] = tiles[i] != null && !isShared(tiles[i]);
+        return tiles.clone();
+    }
+
+    /**
+     * Writes the given chunks of tiles the way writeState(out) does. Touches
+     * nothing but its parameters, so it may be called by any thread for the
+     * chunks returned by freezeChunks().
+     * 
+     * @param out The output to write the chunks to.
+     * @param chunks The chunks of a Level.
+     * @param size The number of tiles of the Level.
+     * @throws IOException If the chunks cannot be written.
+     */
+    static void writeChunks(DataOutput out, short[][] chunks, int size)
+            throws IOException {
+        byte[] buffer = new byte[CHUNKSIZE * 2];
+        for (int i = 0; i < chunks.length; i++) {
+            short[] chunk = chunks[i];
+            if (chunk == null)
+                out.writeByte(UNGENERATED);
+            else if (isShared(chunk)) {
+                out.writeByte(SHARED);
+                out.writeShort(chunk[0]);
+            } else {
+                out.writeByte(STORED);
+                int length = Math.min(CHUNKSIZE, size - (i << CHUNKBITS));
+                for (int j = 0; j < length; j++) {
+                    buffer[2 * j] = (byte) (chunk[j] >>> 8);
+                    buffer[2 * j + 1] = (byte) chunk[j];
+                }
+                out.write(buffer, 0, 2 * length);
+            }
+        }
+    }
+
+    /**
+     * Reads the powerup queue written by writeState(out).
+     * 
+     * @param in The input to read the powerup queue from.
+     * @return The powerup queue.
+     * @throws IOException If the powerup queue cannot be read or is invalid.
+     */
+    private TileQueue readPowerups(DataInput in) throws IOException {
+        int size = in.readInt();
+        int untransmitted = in.readInt();
+        if (size < 0 || untransmitted < 0 || untransmitted > size)
+            throw new IOException(String.format(STATEERROR, "powerups"));
+        TileQueue nextPowerups = new TileQueue(Math.max(size,
+                INITIALPOWERUPS + 1));
+        for (int i = 0; i < size; i++) {
+            if (i == size - untransmitted)
+                nextPowerups.markTransmitted();
+            short tile = in.readShort();
+            if (!isValidTile(tile))
+                throw new IOException(String.format(STATEERROR, "powerups"));
+            nextPowerups.offer(tile);
+        }
+        if (untransmitted == 0)
+            nextPowerups.markTransmitted();
+        return nextPowerups;
+    }
+
+    /**
+     * Reads the given chunk of tiles written by writeState(out).
+     * 
+     * @param in The input to read the chunk from.
+     * @param chunk The number of the chunk.
+     * @param buffer A buffer of 2 * CHUNKSIZE bytes.
+     * @return The chunk or null if it has not been generated yet.
+     * @throws IOException If the chunk cannot be read or is invalid.
+     */
+    private short[] readChunk(DataInput in, int chunk, byte[] buffer)
+            throws IOException {
+        byte kind = in.readByte();
+        if (kind == UNGENERATED && lazy)
+            return null;
+        if (kind == SHARED) {
+            short tile = in.readShort();
+            if (tile >= 0 && tile < SHAREDCHUNKS.length)
+                return SHAREDCHUNKS[tile];
+        } else if (kind == STORED) {
+            short[] tiles = new short[CHUNKSIZE];
+            in.readFully(buffer, 0, 2 * chunkLength(chunk));
+            for (int i = 0; i < chunkLength(chunk); i++) {
+                tiles[i] = (short) (buffer[2 * i] << 8
+                        | buffer[2 * i + 1] & 0xFF);
+                if (!isValidTile(tiles[i]))
+                    throw new IOException(String.format(STATEERROR, "tile"));
+            }
+            return share(tiles, chunkLength(chunk));
+        }
+        throw new IOException(String.format(STATEERROR, "chunk"));
+    }
+
+    /**
+     * Writes the Bombs of this Level to the given output, so they can be
+     * restored by readBombs(). The Player who planted a Bomb is written as
+     * the number of Players that had joined this Level before it. Must not be
+     * called while this Level is updated.
+     * 
+     * @param out The output to write the Bombs to.
+     * @throws IOException If the Bombs cannot be written.
+     */
+    public void writeBombs(DataOutput out) throws IOException {
+        out.writeInt(bombCount);
+        for (int i = 0; i < bombCount; i++) {
+            Bomb bomb = bombs[i];
+            out.writeInt(bomb.getPosX());
+            out.writeInt(bomb.getPosY());
+            out.writeInt(bomb.player.number);
+            out.writeBoolean(bomb.quadDamage);
+            bomb.writeState(out);
+        }
+    }
+
+    /**
+     * Restores the Bombs written by writeBombs(out). The Bombs are created by
+     * createBomb() and continue their countdown (or explosion) where it was
+     * when they were written. The Players must have joined this Level again
+     * in the same order as before; they are given in that order.
+     * 
+     * @param in The input to read the Bombs from.
+     * @param players The Players of this Level in the order they joined.
+     * @throws IOException If the Bombs cannot be read or are invalid.
+     */
+    public void readBombs(DataInput in, List<? extends Player> players)
+            throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int posX = in.readInt(), posY = in.readInt(), owner = in.readInt();
+            boolean quadDamage = in.readBoolean();
+            if (!contains(posX, posY) || bombAt(index(posX, posY)) != null
+                    || owner < 0 || owner >= players.size())
+                throw new IOException(String.format(STATEERROR, "Bomb"));
+            Bomb bomb = createBomb(posX, posY, players.get(owner),
+                    Player.MINRANGE, quadDamage);
+            bomb.readState(in);
+            if (bomb.isExploded() || bomb.getDeadline() <= getTicks())
+                throw new IOException(String.format(STATEERROR, "Bomb"));
+            addBomb(index(posX, posY), bomb);
+            // the timer set by the constructor expires too late to matter
+            timers.schedule(index(posX, posY), bomb.getDeadline());
+            if (bomb.isExploding())
+                explodeCount++;
+        }
+    }
+
+    /**
+     * Returns the indices of the tiles the Bombs of this Level lie on in
+     * ascending order, see Snapshot.
+     * 
+     * @return The indices of the Bombs.
+     */
+    int[] bombIndices() {
+        int[] indices = new int[bombCount];
+        for (int i = 0; i < bombCount; i++)
+            indices[i] = index(bombs[i].posX, bombs[i].posY);
+        Arrays.sort(indices);
+        return indices;
+    }
+
+    /**
+     * Applies the state of a counting Bomb taken from a Snapshot (see
+     * Bomb.writeState()) to the Bomb at position (posX, posY): if that Bomb is
+     * counting down as well, it gets the deadline of the Snapshot; if there is
+     * none, it is created. A Bomb that is already exploding is left alone.
+     * 
+     * @param posX The x coordinate of the Bomb.
+     * @param posY The y coordinate of the Bomb.
+     * @param player The Player who has planted the Bomb.
+     * @param quadDamage true if the Bomb is in Quad Damage mode.
+     * @param in The input to read the state of the Bomb from.
+     * @param offset The ticks of this Level minus those of the Snapshot.
+     * @throws IOException If the state cannot be read.
+     */
+    void restoreBomb(int posX, int posY, Player player, boolean quadDamage,
+            DataInput in, long offset) throws IOException {
+        int index = index(posX, posY);
+        Bomb bomb = bombAt(index);
+        if (bomb == null) {
+            bomb = createBomb(posX, posY, player, Player.MINRANGE, quadDamage);
+            bomb.readState(in);
+            bomb.shiftDeadline(offset);
+            if (!bomb.isCounting() || bomb.getDeadline() <= getTicks())
+                return; // would explode right away
+            addBomb(index, bomb);
+        } else if (bomb.isCounting()) {
+            bomb.readState(in);
+            bomb.shiftDeadline(offset);
+        } else return;
+        timers.schedule(index, Math.max(bomb.getDeadline(), getTicks() + 1));
+    }
+
+    /**
+     * Replaces the tile at position (posX, posY) by the one of a Snapshot,
+     * keeping its flags. The position and the tile are not checked.
+     * 
+     * @param posX The x coordinate of the tile.
+     * @param posY The y coordinate of the tile.
+     * @param tile The tile of the Snapshot.
+     */
+    protected void restoreTile(int posX, int posY, short tile) {
+        replaceTileAt(index(posX, posY), tile);
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // ///////////////////////////STATE HASH////////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /*
+     * The hash returned by getStateHash() is the XOR of a random key for every
+     * tile (depending on its index and kind), for every Bomb (depending on its
+     * index) and for every Player (depending on its number and the slot of
+     * the tile it stands on, see updatePlayer()). Every change thus updates
+     * the hash by XORing the old key and the new one. Instead of tables of
+     * random keys, which would be as large as the Level, the keys are computed
+     * by a mixing function (see SplitMix64.mix()); GRASS has the key 0, so it
+     * costs nothing.
+     */
+    private static final int BOMBKEY = TILE + 1; // kind of tile for Bombs
+
+    /**
+     * Returns the key of the given tile at the given index.
+     * 
+     * @param index The index of the tile, see index(posX, posY).
+     * @param tile The tile including its flags, which do not count.
+     * @return The key of the tile.
+     */
+    private static long tileKey(int index, short tile) {
+        int kind = tile & TILE;
+        if (kind >= EXPLEND && kind <= EXPLSTART)
+            kind = STONE; // an exploding STONE stays a STONE
+        return kind == GRASS ? 0 : SplitMix64.mix((long) index << 8 | kind);
+    }
+
+    /**
+     * Returns the key of a Bomb at the given index.
+     * 
+     * @param index The index of the Bomb, see index(posX, posY).
+     * @return The key of the Bomb.
+     */
+    private static long bombKey(int index) {
+        return SplitMix64.mix((long) index << 8 | BOMBKEY);
+    }
+
+    /**
+     * Returns the key of the given Player standing on the given slot.
+     * 
+     * @param number The number of the Player, see addPlayer().
+     * @param slot The slot of its tile, see occupancySlot(posX, posY).
+     * @return The key of the Player.
+     */
+    private static long playerKey(int number, int slot) {
+        // the complement keeps the keys apart from those of tiles and Bombs
+        return SplitMix64.mix(~((long) slot << 16 | number));
+    }
+
+    /**
+     * Adds the keys of all tiles of the given chunk to the hash. Is used for
+     * chunks that are not written through setRawTileAt().
+     * 
+     * @param chunk The number of the chunk.
+     * @param tiles The tiles of the chunk.
+     */
+    private void hashChunk(int chunk, short[] tiles) {
+        int start = chunk << CHUNKBITS;
+        for (int i = 0; i < chunkLength(chunk); i++)
+            hash ^= tileKey(start + i, tiles[i]);
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // /////////////////////////////CHUNKS//////////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the number of chunks needed to store the given number of tiles.
+     * 
+     * @param size The number of tiles.
+     * @return The number of chunks.
+     */
+    private static int chunkCount(int size) {
+        return (size + CHUNKMASK) >>> CHUNKBITS;
+    }
+
+    /**
+     * Returns the number of tiles of this Level stored in the given chunk. It
+     * is less than CHUNKSIZE for the last chunk only.
+     * 
+     * @param chunk The number of the chunk.
+     * @return The number of tiles in the chunk.
+     */
+    private int chunkLength(int chunk) {
+        return Math.min(CHUNKSIZE, width * height - (chunk << CHUNKBITS));
+    }
+
+    /**
+     * Returns true if the given chunk of tiles is shared, i.e. one of
+     * SHAREDCHUNKS.
+     * 
+     * @param chunk The chunk to be checked.
+     * @return true if the chunk must not be written to.
+     */
+    private static boolean isShared(short[] chunk) {
+        short tile = chunk[0]; // shared chunks consist of a single tile
+        return tile >= 0 && tile < SHAREDCHUNKS.length
+                && SHAREDCHUNKS[tile] == chunk;
+    }
+
+    /**
+     * Returns the shared chunk consisting of the same tiles as the given one
+     * or the given chunk itself if there is none.
+     * 
+     * @param chunk The chunk to be shared.
+     * @param length The number of tiles of the chunk that are in use.
+     * @return The chunk to be stored.
+     */
+    private static short[] share(short[] chunk, int length) {
+        short tile = chunk[0];
+        if (tile < 0 || tile >= SHAREDCHUNKS.length)
+            return chunk;
+        for (int i = 1; i < length; i++)
+            if (chunk[i] != tile)
+                return chunk;
+        return SHAREDCHUNKS[tile];
+    }
+
+    /**
+     * Allocates all chunks of tiles of a Level that is not lazy, so they can
+     * be filled.
+     */
+    private void allocateChunks() {
+        for (int i = 0; i < tiles.length; i++)
+            tiles[i] = new short[CHUNKSIZE];
+    }
+
+    /**
+     * Replaces all chunks of tiles that consist of a single tile by shared
+     * ones.
+     */
+    private void shareChunks() {
+        for (int i = 0; i < tiles.length; i++)
+            tiles[i] = share(tiles[i], chunkLength(i));
+    }
+
+    /**
+     * Returns the chunk of tiles the given index lies in, generating it first
+     * if necessary.
+     * 
+     * @param index The index of a tile, see index(posX, posY).
+     * @return The chunk holding the tile.
+     */
+    private short[] tileChunk(int index) {
+        short[] chunk = tiles[index >>> CHUNKBITS];
+        return chunk != null ? chunk : generateChunk(index >>> CHUNKBITS);
+    }
+
+    /**
+     * Generates the given chunk of tiles of a lazy Level just like
+     * fillRandomly(spawnExit) does, but using a random number generator of its
+     * own. Its seed is made up of the seed of this Level and the number of the
+     * chunk, so a chunk always looks the same, no matter when it is generated.
+     * 
+     * @param chunk The number of the chunk.
+     * @return The generated chunk.
+     */
+    private short[] generateChunk(int chunk) {
+        // mix the seed, so the sequences of two chunks do not overlap
+        SplitMix64 random = new SplitMix64(new SplitMix64(seed + chunk)
+                .nextLong());
+        short[] tiles = new short[CHUNKSIZE];
+        int start = chunk << CHUNKBITS;
+        int end = Math.min(start + CHUNKSIZE, width * height);
+        int posX = start / height, posY = start % height;
+        for (int index = start; index < end; index++) {
+            tiles[index - start] = randomTile(posX, posY, random);
+            if (++posY == height) {
+                posY = 0;
+                posX++;
+            }
+        }
+        if (exitIndex >= start && exitIndex < end) {
+            // see if the exit should be hidden or not
+            int exit = exitIndex - start;
+            tiles[exit] = tiles[exit] == STONE ? HIDDENEXIT : EXIT;
+        }
+        hashChunk(chunk, tiles);
+        this.tiles[chunk] = share(tiles, end - start);
+        return this.tiles[chunk];
+    }
+
+    /**
+     * Returns the Bomb slot (slot + 1 or 0) of the tile with the given index.
+     * 
+     * @param index The index of the tile, see index(posX, posY).
+     * @return The Bomb slot of the tile.
+     */
+    private int bombSlot(int index) {
+        int[] chunk = bombSlots[index >>> CHUNKBITS];
+        return chunk == null ? 0 : chunk[index & CHUNKMASK];
+    }
+
+    /**
+     * Sets the Bomb slot (slot + 1 or 0) of the tile with the given index,
+     * allocating its chunk if necessary.
+     * 
+     * @param index The index of the tile, see index(posX, posY).
+     * @param slot The new Bomb slot of the tile.
+     */
+    private void setBombSlot(int index, int slot) {
+        int[] chunk = bombSlots[index >>> CHUNKBITS];
+        if (chunk == null)
+            bombSlots[index >>> CHUNKBITS] = chunk = new int[CHUNKSIZE];
+        chunk[index & CHUNKMASK] = slot;
+    }
+
+    /**
+     * Returns the first Player in the given slot of occupants or null.
+     * 
+     * @param slot The slot, see occupancySlot(posX, posY).
+     * @return The first Player in the slot or null.
+     */
+    private Player occupantAt(int slot) {
+        Player[] chunk = occupants[slot >>> CHUNKBITS];
+        return chunk == null ? null : chunk[slot & CHUNKMASK];
+    }
+
+    /**
+     * Sets the first Player in the given slot of occupants, allocating its
+     * chunk if necessary.
+     * 
+     * @param slot The slot, see occupancySlot(posX, posY).
+     * @param player The new first Player in the slot or null.
+     */
+    private void setOccupant(int slot, Player player) {
+        Player[] chunk = occupants[slot >>> CHUNKBITS];
+        if (chunk == null)
+            occupants[slot >>> CHUNKBITS] = chunk = new Player[CHUNKSIZE];
+        chunk[slot & CHUNKMASK] = player;
     }
 
 }// end of class Level
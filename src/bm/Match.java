@@ -0,0 +1,293 @@
+package bm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class provides objects representing a single match, i.e. a Level and
+ * the Players competing in it. Everything that makes up the state of a match
+ * belongs to its Match object (the Bombs and their counters belong to its
+ * Level), so any number of matches can take place side by side within one
+ * process. A Match is not thread-safe; it must not be updated by more than one
+ * thread at a time.
+ * 
+ * The whole state of a Match can be written to a checkpoint between two ticks
+ * (see writeCheckpoint()) or taken as a snapshot to be written by another
+ * thread (see checkpoint()). Restoring it takes two steps, so subclasses can
+ * be restored as well: restoreLevel() reads the Level, which the new Match is
+ * created with, and restorePlayers() lets the Players join it again. The
+ * state that changes while a Match is played can also be taken as a Snapshot,
+ * which is sent to clients as the difference to an earlier one (see
+ * snapshot()).
+ * 
+ * This class offers no network code, visualization or sound effects. See
+ * GameManager for a Match that is played over the network.
+ */
+public class Match implements Updateable {
+
+    // /////////////////////////////////////////////////////////////////////////
+    // ///////////////////////CONSTANT VARIABLES////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /** Value every checkpoint starts with. */
+    public static final int CHECKPOINT = 0x424D4350;
+    /** Version of the format of checkpoints, incremented on every change. */
+    public static final int CHECKPOINTVERSION = 3;
+
+    /** Format for creating a String reporting about an invalid checkpoint. */
+    public static final String CHECKPOINTERROR = "Cannot restore Match: invalid %s.";
+
+    // /////////////////////////////////////////////////////////////////////////
+    // /////////////////////////////FIELDS//////////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    protected final Level lvl; // the Level where this match takes place
+    protected final List<Player> players; // the Players, ordered by joining
+
+    // /////////////////////////////////////////////////////////////////////////
+    // //////////////////////////CONSTRUCTORS///////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Creates a new Match taking place in the given Level. No Player has
+     * joined it yet.
+     * 
+     * @param lvl The Level where this Match takes place.
+     */
+    public Match(Level lvl) {
+        this.lvl = lvl;
+        players = new ArrayList<Player>();
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // ///////////////////////GETTERS & SETTERS/////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Returns the Level where this Match takes place.
+     * 
+     * @return The Level of this Match.
+     */
+    public Level getLevel() {
+        return lvl;
+    }
+
+    /**
+     * Returns the number of Players that have joined this Match.
+     * 
+     * @return The number of Players of this Match.
+     */
+    public int getPlayerCount() {
+        return players.size();
+    }
+
+    /**
+     * Returns the num'th Player that has joined this Match.
+     * 
+     * @param num The number of the Player, 0 <= num < getPlayerCount().
+     * @return The num'th Player of this Match.
+     */
+    public Player getPlayer(int num) {
+        return players.get(num);
+    }
+
+    /**
+     * Lets a new Player join this Match. The Player is placed on the spawn
+     * point that the Level provides for it (see Level.getSpawnPoint()).
+     * 
+     * @param name The name of the new Player.
+     * @param fstClr The first color of the new Player.
+     * @param sndClr The second color of the new Player.
+     * @return The new Player.
+     */
+    public Player addPlayer(String name, int fstClr, int sndClr) {
+        int[] spawnPoint = lvl.getSpawnPoint(players.size());
+        Player player = createPlayer(name, fstClr, sndClr, spawnPoint[0],
+                spawnPoint[1]);
+        players.add(player);
+        return player;
+    }
+
+    /**
+     * Creates the Player that addPlayer(name, fstClr, sndClr) adds. Is meant to
+     * be overwritten by subclasses that need Players with visual effects.
+     * 
+     * @param name The name of the new Player.
+     * @param fstClr The first color of the new Player.
+     * @param sndClr The second color of the new Player.
+     * @param posX The initial x coordinate of the new Player in tiles.
+     * @param posY The initial y coordinate of the new Player in tiles.
+     * @return The new Player.
+     */
+    protected Player createPlayer(String name, int fstClr, int sndClr,
+            double posX, double posY) {
+        return new Player(lvl, name, fstClr, sndClr, posX, posY);
+    }
+
+    /**
+     * Returns true if this match is over, i.e. if a Player has won by reaching
+     * the EXIT or if at most one Player is left alive (none if it is a single
+     * Player match).
+     * 
+     * @return true if this match is over.
+     */
+    public boolean isOver() {
+        int alive = 0;
+        for (int i = 0; i < players.size(); i++) {
+            if (players.get(i).hasWon())
+                return true;
+            if (!players.get(i).isDead())
+                alive++;
+        }
+        return players.size() > 1 ? alive <= 1 : alive == 0;
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // ///////////////////////////CHECKPOINTS///////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Writes the state of this Match to the given output: the Level (see
+     * Level.writeState()), the name and colors of each Player, the Bombs and
+     * the state of each Player. Must not be called while this Match is
+     * updated.
+     * 
+     * @param out The output to write the checkpoint to.
+     * @throws IOException If the checkpoint cannot be written.
+     */
+    public void writeCheckpoint(DataOutput out) throws IOException {
+        out.writeInt(CHECKPOINT);
+        out.writeInt(CHECKPOINTVERSION);
+        lvl.writeState(out);
+        writePlayers(out);
+    }
+
+    /**
+     * Takes a snapshot of the state of this Match that can be written later
+     * on by any thread, while this Match goes on. The result is written the
+     * same way writeCheckpoint(out) does. Everything but the tiles of the
+     * Level is written to memory right away; the chunks of tiles are frozen
+     * instead (see Level.freezeChunks()), so taking a snapshot of a huge Level
+     * is cheap. Must not be called while this Match is updated.
+     * 
+     * @return The snapshot.
+     */
+    public Checkpoint checkpoint() {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(head);
+            out.writeInt(CHECKPOINT);
+            out.writeInt(CHECKPOINTVERSION);
+            lvl.writeHeader(out);
+            writePlayers(new DataOutputStream(tail));
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw any
+            throw new IllegalStateException(e);
+        }
+        return new Checkpoint(head.toByteArray(), lvl.freezeChunks(),
+                lvl.getWidth() * lvl.getHeight(), tail.toByteArray());
+    }
+
+    /**
+     * Takes a Snapshot of the state of this Match that changes while it is
+     * played: the state of each Player and Bomb and the tiles of the Level.
+     * Like checkpoint(), it freezes the chunks of tiles rather than copying
+     * them. Must not be called while this Match is updated.
+     * 
+     * @param id The number identifying the Snapshot.
+     * @return The Snapshot.
+     */
+    public Snapshot snapshot(int id) {
+        return new Snapshot(id, lvl, players);
+    }
+
+    /**
+     * Writes the part of a checkpoint that follows the Level: the name and
+     * colors of each Player, the Bombs and the state of each Player.
+     * 
+     * @param out The output to write to.
+     * @throws IOException If the Players cannot be written.
+     */
+    private void writePlayers(DataOutput out) throws IOException {
+        out.writeInt(players.size());
+        for (int i = 0; i < players.size(); i++) {
+            out.writeUTF(players.get(i).getName());
+            out.writeInt(players.get(i).getFstClr());
+            out.writeInt(players.get(i).getSndClr());
+        }
+        lvl.writeBombs(out);
+        for (int i = 0; i < players.size(); i++)
+            players.get(i).writeState(out);
+    }
+
+    /**
+     * Reads the Level of a checkpoint written by writeCheckpoint(out). The
+     * Match to be restored has to be created with it before restorePlayers()
+     * reads the rest of the checkpoint.
+     * 
+     * @param in The input to read the checkpoint from.
+     * @return The restored Level.
+     * @throws IOException If the checkpoint cannot be read or is invalid.
+     */
+    public static Level restoreLevel(DataInput in) throws IOException {
+        if (in.readInt() != CHECKPOINT)
+            throw new IOException(String.format(CHECKPOINTERROR, "header"));
+        if (in.readInt() != CHECKPOINTVERSION)
+            throw new IOException(String.format(CHECKPOINTERROR, "version"));
+        return new Level(in);
+    }
+
+    /**
+     * Reads the rest of a checkpoint after restoreLevel(in): the Players join
+     * this Match again (see createPlayer()) in the same order as before and
+     * get their state back, and the Bombs are restored. No Player must have
+     * joined this Match before.
+     * 
+     * @param in The input to read the checkpoint from.
+     * @throws IOException If the checkpoint cannot be read or is invalid.
+     */
+    public void restorePlayers(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || !players.isEmpty())
+            throw new IOException(String.format(CHECKPOINTERROR, "Players"));
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            int fstClr = in.readInt(), sndClr = in.readInt();
+            players.add(createPlayer(name, fstClr, sndClr, 0, 0));
+        }
+        lvl.readBombs(in, players);
+        for (int i = 0; i < count; i++)
+            players.get(i).readState(in);
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // /////////////////////////UPDATE METHODS//////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Performs an update on this Match, i.e. updates the Level and then each
+     * Player in the order they joined. This method should be called each game
+     * tick.
+     */
+    public void update() {
+        lvl.update();
+        for (int i = 0; i < players.size(); i++)
+            updatePlayer(i);
+    }
+
+    /**
+     * Updates the num'th Player of this Match. Is meant to be overwritten by
+     * subclasses that move the Players around, let them plant Bombs etc.
+     * 
+     * @param num The number of the Player to be updated.
+     */
+    protected void updatePlayer(int num) {
+        players.get(num).update();
+    }
+}
@@ -1,7 +1,8 @@
 package bm;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 import bm.log.Logger;
 
@@ -37,6 +38,16 @@ public class Player implements Updateable {
     /** Constant which a Player object will interpret as itself being DEAD. */
     public static final byte DEAD = 4;
 
+    /* bits of the movement returned by move() */
+    /** Bit set by move() if the Player has moved to the left. */
+    public static final byte MOVEDLEFT = 0x01;
+    /** Bit set by move() if the Player has moved to the right. */
+    public static final byte MOVEDRIGHT = 0x02;
+    /** Bit set by move() if the Player has moved up. */
+    public static final byte MOVEDUP = 0x04;
+    /** Bit set by move() if the Player has moved down. */
+    public static final byte MOVEDDOWN = 0x08;
+
     /* powerup limits */
     /** Smallest amount of Bombs a Player can plant at once. */
     public static final byte MINAMMO = 1;
@@ -64,6 +75,20 @@ public class Player implements Updateable {
     public static final float PLOFFSET = 0.125f;
     /** Constant holding the Player's velocity in tiles per tick. */
     public static final double STEPSIZE = 0.075f;
+    /** Constant holding the time (in ticks) it takes to walk across a tile. */
+    public static final int TICKSPERTILE = (int) Math.ceil(TILEDIM / STEPSIZE);
+
+    /*
+     * Positions are fixed-point numbers of UNIT steps per tile, so moving and
+     * colliding give the same results on every machine. The constants above in
+     * these units:
+     */
+    /** Number of fixed-point units per tile, see getFixedX(). */
+    public static final int UNIT = 1000;
+    private static final int FIXEDHALF = toFixed(HALFTILEDIM);
+    private static final int FIXEDDIM = toFixed(DIM);
+    private static final int FIXEDOFFSET = toFixed(PLOFFSET);
+    private static final int FIXEDSTEP = toFixed(STEPSIZE);
 
     /** The default name for an object of the type Player. */
     public static final String DEFAULTNAME = "unnamed";
@@ -73,32 +98,18 @@ public class Player implements Updateable {
     /** The (second) default color for objects of the type Player. */
     public static final int DEFAULTSNDCLR = 0xFF2222AA;
 
-    /**
-     * List holding all Player objects. A new Player is added to the list upon
-     * creation.
-     */
-    public static final List<Player> PLAYERS = new ArrayList<Player>();
-
     /** Format for creating a String reporting about this Player's creation. */
     public static final String NEWPLAYER = "Created new Player. Position: (%f3.3, %f3.3). Name: %s. Colors: %d & %d.";
-
-    // /////////////////////////////////////////////////////////////////////////
-    // //////////////////////// STATIC METHODS//////////////////////////////////
-    // /////////////////////////////////////////////////////////////////////////
-
-    /**
-     * This method clears PLAYERS, the List holding all the Player object. You
-     * probably want to invoke this method when restarting a game or similar.
-     */
-    public static final void resetPlayers() {
-        PLAYERS.clear();
-    }
+    /** Format for reporting that a Player has killed itself. */
+    public static final String KILLEDSELF = "%s killed himself.";
+    /** Format for reporting that a Player has killed another one. */
+    public static final String KILLED = "%s killed %s.";
 
     // /////////////////////////////////////////////////////////////////////////
     // /////////////////////////////FIELDS//////////////////////////////////////
     // /////////////////////////////////////////////////////////////////////////
 
-    protected double posX, posY; // Player's position in tiles (see Level.java)
+    protected int fixedX, fixedY; // position in 1/UNIT tiles (see Level.java)
     protected byte state; // state of the player, see above
     private Level lvl; // the Level where this Player resides in
 
@@ -113,6 +124,11 @@ public class Player implements Updateable {
     protected int counter; // use obvious; is reused
     private int qdCounter; // own counter so chuckMode and qd are seperate
 
+    // used by the Level to find the Players standing on a tile
+    int number; // number of Players that joined the Level before this one
+    int occupied; // slot of the tile this Player stands on
+    Player nextOnTile; // next Player standing on the same tile
+
     // /////////////////////////////////////////////////////////////////////////
     // //////////////////////////CONSTRUCTORS///////////////////////////////////
     // /////////////////////////////////////////////////////////////////////////
@@ -132,8 +148,8 @@ public class Player implements Updateable {
     public Player(Level lvl, String name, int fstClr, int sndClr, double posX,
             double posY) {
         this.lvl = lvl;
-        this.posX = posX;
-        this.posY = posY;
+        this.fixedX = toFixed(posX);
+        this.fixedY = toFixed(posY);
         this.fstClr = fstClr;
         this.sndClr = sndClr;
         this.name = name;
@@ -142,7 +158,7 @@ public class Player implements Updateable {
         ammo = MINAMMO;
         ammoCount = 0;
         state = IDLE;
-        PLAYERS.add(this);
+        lvl.addPlayer(this);
         if (Logger.verbose())
             Logger.writeln(String.format(NEWPLAYER, posX, posY, name, fstClr,
                     sndClr));
@@ -173,7 +189,7 @@ public class Player implements Updateable {
      * @return This Player's current x coordinate in tiles.
      */
     public double getPosX() {
-        return posX;
+        return (double) fixedX / UNIT;
     }
 
     /**
@@ -182,7 +198,37 @@ public class Player implements Updateable {
      * @return This Player's current y coordinate in tiles.
      */
     public double getPosY() {
-        return posY;
+        return (double) fixedY / UNIT;
+    }
+
+    /**
+     * Returns this Player's current x coordinate in 1/UNIT tiles, i.e. the
+     * exact position getPosX() is derived from.
+     * 
+     * @return This Player's current x coordinate in 1/UNIT tiles.
+     */
+    public int getFixedX() {
+        return fixedX;
+    }
+
+    /**
+     * Returns this Player's current y coordinate in 1/UNIT tiles, i.e. the
+     * exact position getPosY() is derived from.
+     * 
+     * @return This Player's current y coordinate in 1/UNIT tiles.
+     */
+    public int getFixedY() {
+        return fixedY;
+    }
+
+    /**
+     * Converts a coordinate in tiles to the nearest one in 1/UNIT tiles.
+     * 
+     * @param pos The coordinate in tiles.
+     * @return The coordinate in 1/UNIT tiles.
+     */
+    public static int toFixed(double pos) {
+        return (int) Math.round(pos * UNIT);
     }
 
     /**
@@ -195,10 +241,23 @@ public class Player implements Updateable {
      * otherwise.
      */
     public boolean withinBounds(double posX, double posY) {
-        double playerX = this.posX + PLOFFSET;
-        double playerY = this.posY + PLOFFSET;
-        return (posX >= playerX && posX <= playerX + DIM && posY >= playerY && posY <= playerY
-                + DIM);
+        return withinBounds(toFixed(posX), toFixed(posY));
+    }
+
+    /**
+     * Returns true if the specified point (in 1/UNIT tiles) is inside this
+     * Player's collision box.
+     * 
+     * @param fixedX X coordinate to be checked in 1/UNIT tiles.
+     * @param fixedY Y coordinate to be checked in 1/UNIT tiles.
+     * @return true if (fixedX, fixedY) is inside this Player's collision box,
+     *         false otherwise.
+     */
+    public boolean withinBounds(int fixedX, int fixedY) {
+        int playerX = this.fixedX + FIXEDOFFSET;
+        int playerY = this.fixedY + FIXEDOFFSET;
+        return (fixedX >= playerX && fixedX <= playerX + FIXEDDIM
+                && fixedY >= playerY && fixedY <= playerY + FIXEDDIM);
     }
 
     /**
@@ -209,8 +268,20 @@ public class Player implements Updateable {
      * @param newY The new y coordinate of this Player.
      */
     public void setPos(double newX, double newY) {
-        this.posX = newX;
-        this.posY = newY;
+        setFixedPos(toFixed(newX), toFixed(newY));
+    }
+
+    /**
+     * Sets this Player's position (in 1/UNIT tiles) to the specified
+     * coordinate. There is no collision detection whatsoever.
+     * 
+     * @param newX The new x coordinate of this Player in 1/UNIT tiles.
+     * @param newY The new y coordinate of this Player in 1/UNIT tiles.
+     */
+    public void setFixedPos(int newX, int newY) {
+        this.fixedX = newX;
+        this.fixedY = newY;
+        lvl.updatePlayer(this);
     }
 
     /**
@@ -247,7 +318,8 @@ public class Player implements Updateable {
      * ultimately reach the DEAD state.
      * 
      * This method has no effect as long as this Player is Chuck Norris or
-     * already DYING/DEAD.
+     * already DYING/DEAD. The kill is reported on the console unless the
+     * Logger is quiet (see Logger.setQuiet()).
      * 
      * @param player Player that initiated this Player's death.
      * @return true is Player has successfully been killed.
@@ -257,9 +329,11 @@ public class Player implements Updateable {
             return false;
         state = DYING;
         counter = DYINGTIME;
+        if (Logger.quiet())
+            return true;
         if (this == player)
-            System.out.println(name + " killed himself.");
-        else System.out.println(player.name + " killed " + name + ".");
+            System.out.println(String.format(KILLEDSELF, name));
+        else System.out.println(String.format(KILLED, player.name, name));
         return true;
     }
 
@@ -418,6 +492,47 @@ public class Player implements Updateable {
         return qdCounter;
     }
 
+    /**
+     * Writes the state of this Player (everything but its name and colors,
+     * which Match.writeCheckpoint() takes care of) to the given output.
+     * 
+     * @param out The output to write the state to.
+     * @throws IOException If the state cannot be written.
+     */
+    void writeState(DataOutput out) throws IOException {
+        out.writeInt(fixedX);
+        out.writeInt(fixedY);
+        out.writeByte(state);
+        out.writeByte(range);
+        out.writeByte(ammo);
+        out.writeByte(ammoCount);
+        out.writeBoolean(chuckMode);
+        out.writeBoolean(quadDamage);
+        out.writeInt(counter);
+        out.writeInt(qdCounter);
+    }
+
+    /**
+     * Restores the state written by writeState(out). The Bombs this Player
+     * has planted must have been restored before.
+     * 
+     * @param in The input to read the state from.
+     * @throws IOException If the state cannot be read.
+     */
+    void readState(DataInput in) throws IOException {
+        fixedX = in.readInt();
+        fixedY = in.readInt();
+        state = in.readByte();
+        range = in.readByte();
+        ammo = in.readByte();
+        ammoCount = in.readByte();
+        chuckMode = in.readBoolean();
+        quadDamage = in.readBoolean();
+        counter = in.readInt();
+        qdCounter = in.readInt();
+        lvl.updatePlayer(this);
+    }
+
     // /////////////////////////////////////////////////////////////////////////
     // /////////////////////////UPDATE METHODS//////////////////////////////////
     // /////////////////////////////////////////////////////////////////////////
@@ -466,9 +581,9 @@ public class Player implements Updateable {
      * PowerUps that this Player can pick up.
      */
     protected void collide() {
-        // calculate the middle point of the player only once
-        double posX = this.posX + HALFTILEDIM;
-        double posY = this.posY + HALFTILEDIM;
+        // calculate the tile of the middle point of the player only once
+        int posX = (fixedX + FIXEDHALF) / UNIT;
+        int posY = (fixedY + FIXEDHALF) / UNIT;
         // try to get some nice stuff from the Level
         switch (lvl.getTile(posX, posY)) {
         case Level.EXIT:
@@ -508,84 +623,104 @@ public class Player implements Updateable {
      * 
      * dirY: < 0 up, > 0 down, == 0 no movement
      * 
-     * It will return the actual amount that the Player has moved.
+     * It will return the directions that the Player has actually moved in
+     * after collision detection, packed into a single byte: MOVEDLEFT or
+     * MOVEDRIGHT is set if it has moved horizontally, MOVEDUP or MOVEDDOWN if
+     * it has moved vertically. 0 means that it hasn't moved at all. No memory
+     * is allocated, so this may be called for every Player on every tick.
      * 
      * @param dirX The Player's horizontal direction.
      * @param dirY The Player's vertical direction.
-     * @return An array of length 2 containing the actual movement after
-     * collision detection; i.e. {movedX, movedY}.
+     * @return The directions of the actual movement, see above.
      */
-    public byte[] move(byte dirX, byte dirY) {
+    public byte move(byte dirX, byte dirY) {
         // don't move if you're dying, dead or have reached your goal
         if (state == WON || state == DYING || state == DEAD)
-            return new byte[] { 0, 0 }; // no movement here
+            return 0; // no movement here
         if (dirX == 0 && dirY == 0) {
             state = IDLE;
-            return new byte[] { 0, 0 };
+            return 0;
         }
 
-        double deltaX = dirX * STEPSIZE;
-        double deltaY = dirY * STEPSIZE;
+        int deltaX = dirX * FIXEDSTEP;
+        int deltaY = dirY * FIXEDSTEP;
 
         // there is some tolerance; the Player is smaller than a tile
-        double leftX = this.posX + PLOFFSET;
-        double topY = this.posY + PLOFFSET;
-        double rightX = leftX + DIM;
-        double bottomY = topY + DIM;
+        int leftX = fixedX + FIXEDOFFSET;
+        int topY = fixedY + FIXEDOFFSET;
+        int rightX = leftX + FIXEDDIM;
+        int bottomY = topY + FIXEDDIM;
 
-        double nextX, nextY; // will store some calcs here
+        int nextX, nextY; // will store some calcs here
 
-        // moving horizontally first
+        // moving horizontally first (dividing truncates like a cast would)
         if (deltaX > 0) { // wants to move right
             nextX = rightX + deltaX;
-            if ((int) rightX != (int) nextX
-                    && (lvl.isSolid(nextX, topY) || lvl.isSolid(nextX, bottomY)))
+            if (rightX / UNIT != nextX / UNIT
+                    && (isSolid(nextX, topY) || isSolid(nextX, bottomY)))
                 deltaX = 0;
         } else if (deltaX < 0) { // left
             nextX = leftX + deltaX;
-            if ((int) leftX != (int) nextX
-                    && (lvl.isSolid(nextX, topY) || lvl.isSolid(nextX, bottomY)))
+            if (leftX / UNIT != nextX / UNIT
+                    && (isSolid(nextX, topY) || isSolid(nextX, bottomY)))
                 deltaX = 0;
         }
 
-        posX += deltaX;
-        leftX = posX + PLOFFSET;
-        rightX = leftX + DIM;
+        fixedX += deltaX;
+        leftX = fixedX + FIXEDOFFSET;
+        rightX = leftX + FIXEDDIM;
 
         // then vertically
         if (deltaY > 0) { // down
             nextY = bottomY + deltaY;
-            if ((int) bottomY != (int) nextY
-                    && (lvl.isSolid(leftX, nextY) || lvl.isSolid(rightX, nextY)))
+            if (bottomY / UNIT != nextY / UNIT
+                    && (isSolid(leftX, nextY) || isSolid(rightX, nextY)))
                 deltaY = 0;
         } else if (deltaY < 0) { // up
             nextY = topY + deltaY;
-            if ((int) topY != (int) nextY
-                    && (lvl.isSolid(leftX, nextY) || lvl.isSolid(rightX, nextY)))
+            if (topY / UNIT != nextY / UNIT
+                    && (isSolid(leftX, nextY) || isSolid(rightX, nextY)))
                 deltaY = 0;
         }
         // now actually move -- or not if zero
-        posY += deltaY;
+        fixedY += deltaY;
 
         // see if we left the Level
-        if (posX < -1) {
-            posX = lvl.getWidth();
-        } else if (posX > lvl.getWidth()) {
-            posX = -1;
+        if (fixedX < -UNIT) {
+            fixedX = lvl.getWidth() * UNIT;
+        } else if (fixedX > lvl.getWidth() * UNIT) {
+            fixedX = -UNIT;
         }
-        if (posY < -1) {
-            posY = lvl.getHeight();
-        } else if (posY > lvl.getHeight()) {
-            posY = -1;
+        if (fixedY < -UNIT) {
+            fixedY = lvl.getHeight() * UNIT;
+        } else if (fixedY > lvl.getHeight() * UNIT) {
+            fixedY = -UNIT;
         }
+        lvl.updatePlayer(this);
 
         // depending on movement -> update state
         if (deltaX != 0 || deltaY != 0)
             state = MOVING;
         else state = IDLE;
         // return the actual movement
-        return new byte[] { (byte) Math.signum(deltaX),
-                (byte) Math.signum(deltaY) };
+        byte moved = 0;
+        if (deltaX < 0)
+            moved |= MOVEDLEFT;
+        else if (deltaX > 0)
+            moved |= MOVEDRIGHT;
+        if (deltaY < 0)
+            moved |= MOVEDUP;
+        else if (deltaY > 0)
+            moved |= MOVEDDOWN;
+        return moved;
+    }
+
+    /*
+     * Returns true if the tile the given point (in 1/UNIT tiles) lies on is
+     * solid, see Level.isSolid().
+     */
+    private boolean isSolid(int fixedX, int fixedY) {
+        return lvl.isSolid(fixedX / UNIT, fixedY / UNIT);
     }
 
     /**
@@ -597,8 +732,8 @@ public class Player implements Updateable {
     public boolean putBomb() {
         if (!hasAmmo())
             return false;
-        double posX = this.posX + HALFTILEDIM;
-        double posY = this.posY + HALFTILEDIM;
+        int posX = (fixedX + FIXEDHALF) / UNIT;
+        int posY = (fixedY + FIXEDHALF) / UNIT;
         return lvl.putBomb(posX, posY, this);
     }
 } // end of class Player
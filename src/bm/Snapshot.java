@@ -0,0 +1,360 @@
+package bm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class provides snapshots of the state of a Match that are sent to its
+ * clients as deltas, see Match.snapshot(). A client is sent only what differs
+ * from the Snapshots it may already have applied, i.e. the ones taken since the
+ * last Snapshot it has acknowledged (see writeDelta()), and applies the delta
+ * to its own copy of the Match (see apply()).
+ * 
+ * A Snapshot consists of the state of each Player, split into fields that are
+ * sent separately (position, state, range, ammo, modes and both counters), the
+ * state of each Bomb and the tiles of the Level. Like a Checkpoint, it does not
+ * change once it has been taken; the chunks of tiles are frozen rather than
+ * copied (see Level.freezeChunks()), so unchanged chunks are recognized without
+ * looking at their tiles.
+ */
+public final class Snapshot {
+
+    /*
+     * The offsets of the fields of the state of a Player written by
+     * Player.writeState(): position, state, range, ammo (and ammo in use),
+     * modes (Chuck Norris and Quad Damage), counter and Quad Damage counter.
+     * The last offset is the length of the state.
+     */
+    private static final int[] FIELDS = { 0, 8, 9, 10, 12, 14, 18, 22 };
+    private static final int PLAYERSIZE = FIELDS[FIELDS.length - 1];
+    private static final byte ALLFIELDS = (byte) ((1 << FIELDS.length - 1) - 1);
+    // the owner, Quad Damage mode and state (see Bomb.writeState()) of a Bomb
+    private static final int BOMBSIZE = 2 + 1 + 15;
+
+    private final int id; // see getId()
+    private final long ticks; // the ticks of the Level when it was taken
+    private final int size; // the number of tiles of the Level
+    private final byte[] players; // PLAYERSIZE bytes per Player
+    private final int[] bombIndices; // the indices of the Bombs, ascending
+    private final byte[] bombs; // BOMBSIZE bytes per Bomb, in the same order
+    private final short[][] chunks; // the frozen chunks of tiles
+
+    /**
+     * Takes a Snapshot of the given Level and Players. Must not be called
+     * while they are updated.
+     * 
+     * @param id The number of the Snapshot.
+     * @param lvl The Level.
+     * @param players The Players in the order they joined the Level.
+     */
+    Snapshot(int id, Level lvl, List<? extends Player> players) {
+        this.id = id;
+        ticks = lvl.getTicks();
+        size = lvl.getWidth() * lvl.getHeight();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(PLAYERSIZE
+                * players.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (int i = 0; i < players.size(); i++)
+                players.get(i).writeState(out);
+            this.players = bytes.toByteArray();
+            bytes.reset();
+            bombIndices = lvl.bombIndices();
+            for (int i = 0; i < bombIndices.length; i++) {
+                Bomb bomb = lvl.bombAt(bombIndices[i]);
+                out.writeShort(bomb.player.number);
+                out.writeBoolean(bomb.quadDamage);
+                bomb.writeState(out);
+            }
+            bombs = bytes.toByteArray();
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw any
+            throw new IllegalStateException(e);
+        }
+        chunks = lvl.freezeChunks();
+    }
+
+    /**
+     * Returns the number of this Snapshot. Snapshots are numbered in the
+     * order they are taken.
+     * 
+     * @return The number of this Snapshot.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Writes the difference between the given Snapshots and this one to the
+     * given output, so a client that has applied the first of them (and maybe
+     * some of the others) gets the state of this Snapshot by applying it (see
+     * apply()). Everything that differs from any of them is written, so it
+     * does not matter which of the later ones the client has already applied.
+     * 
+     * A client that has not acknowledged any Snapshot yet is sent all Players
+     * and Bombs and the tiles that differ from those of the given Snapshot
+     * joined, which has been taken when it was sent the Level, or all tiles if
+     * joined is null.
+     * 
+     * @param out The output to write the delta to.
+     * @param since The Snapshots taken since (and including) the one the client
+     *            has acknowledged or null if there is none.
+     * @param joined The Snapshot whose tiles the client has if since is null.
+     * @throws IOException If the delta cannot be written.
+     */
+    public void writeDelta(DataOutput out, List<Snapshot> since,
+            Snapshot joined) throws IOException {
+        out.writeLong(ticks);
+        if (since == null)
+            writeTiles(out, joined == null ? null : Arrays.asList(joined));
+        else writeTiles(out, since);
+        writeBombs(out, since);
+        writePlayers(out, since);
+    }
+
+    /*
+     * The tiles are written as runs of consecutive indices (each one within a
+     * chunk): the number of runs, then for each run its first index, its
+     * length and its tiles (without any flags).
+     */
+    private void writeTiles(DataOutput out, List<Snapshot> since)
+            throws IOException {
+        int[] changed = new int[16];
+        int count = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            short[] chunk = chunks[i];
+            if (chunk == null || !hasChanged(since, i))
+                continue; // not generated or still the same chunk
+            int length = Math.min(Level.CHUNKSIZE, size - i * Level.CHUNKSIZE);
+            for (int j = 0; j < length; j++)
+                if (hasChanged(since, i, j)) {
+                    if (count == changed.length)
+                        changed = Arrays.copyOf(changed, count * 2);
+                    changed[count++] = i * Level.CHUNKSIZE + j;
+                }
+        }
+        int runs = 0;
+        for (int i = 0; i < count; i++)
+            if (i == 0 || !continues(changed[i - 1], changed[i]))
+                runs++;
+        out.writeInt(runs);
+        for (int i = 0; i < count;) {
+            int length = 1;
+            while (i + length < count
+                    && continues(changed[i + length - 1], changed[i + length]))
+                length++;
+            out.writeInt(changed[i]);
+            out.writeShort(length);
+            for (int j = i; j < i + length; j++)
+                out.writeShort(tileAt(changed[j]));
+            i += length;
+        }
+    }
+
+    /*
+     * Returns true if the i'th chunk is not the same in all of the given
+     * Snapshots or if there are none.
+     */
+    private boolean hasChanged(List<Snapshot> since, int i) {
+        if (since == null)
+            return true;
+        for (int k = 0; k < since.size(); k++)
+            if (since.get(k).chunks[i] != chunks[i])
+                return true;
+        return false;
+    }
+
+    /*
+     * Returns true if the j'th tile of the i'th chunk differs in any of the
+     * given Snapshots or if there are none.
+     */
+    private boolean hasChanged(List<Snapshot> since, int i, int j) {
+        if (since == null)
+            return true;
+        for (int k = 0; k < since.size(); k++) {
+            short[] chunk = since.get(k).chunks[i];
+            if (chunk == null || ((chunk[j] ^ chunks[i][j]) & Level.TILE) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * Returns true if the given index follows the previous one within the same
+     * chunk.
+     */
+    private static boolean continues(int previous, int index) {
+        return index == previous + 1 && (index & Level.CHUNKSIZE - 1) != 0;
+    }
+
+    private short tileAt(int index) {
+        return (short) (chunks[index >>> Level.CHUNKBITS][index
+                & Level.CHUNKSIZE - 1] & Level.TILE);
+    }
+
+    /*
+     * The Bombs are written as their number followed by the index and the
+     * BOMBSIZE bytes of each one. The deadlines are those of the Level the
+     * Snapshot was taken of.
+     */
+    private void writeBombs(DataOutput out, List<Snapshot> since)
+            throws IOException {
+        int count = 0;
+        for (int i = 0; i < bombIndices.length; i++)
+            if (bombChanged(since, i))
+                count++;
+        out.writeShort(count);
+        for (int i = 0; i < bombIndices.length; i++)
+            if (bombChanged(since, i)) {
+                out.writeInt(bombIndices[i]);
+                out.write(bombs, i * BOMBSIZE, BOMBSIZE);
+            }
+    }
+
+    /*
+     * Returns true if the i'th Bomb differs in any of the given Snapshots or
+     * if there are none.
+     */
+    private boolean bombChanged(List<Snapshot> since, int i) {
+        if (since == null)
+            return true;
+        for (int k = 0; k < since.size(); k++) {
+            Snapshot snapshot = since.get(k);
+            int j = Arrays.binarySearch(snapshot.bombIndices, bombIndices[i]);
+            if (j < 0
+                    || !equal(bombs, i * BOMBSIZE, snapshot.bombs,
+                            j * BOMBSIZE, BOMBSIZE))
+                return true;
+        }
+        return false;
+    }
+
+    /*
+     * The Players are written as the number of Players that have changed
+     * followed by the number, a bit mask of the changed fields and the fields
+     * themselves of each one.
+     */
+    private void writePlayers(DataOutput out, List<Snapshot> since)
+            throws IOException {
+        int count = players.length / PLAYERSIZE;
+        byte[] changed = new byte[count];
+        int changes = 0;
+        for (int i = 0; i < count; i++) {
+            changed[i] = changedFields(since, i);
+            if (changed[i] != 0)
+                changes++;
+        }
+        out.writeShort(changes);
+        for (int i = 0; i < count; i++) {
+            if (changed[i] == 0)
+                continue;
+            out.writeShort(i);
+            out.writeByte(changed[i]);
+            for (int j = 0; j < FIELDS.length - 1; j++)
+                if ((changed[i] & 1 << j) != 0)
+                    out.write(players, i * PLAYERSIZE + FIELDS[j], FIELDS[j + 1]
+                            - FIELDS[j]);
+        }
+    }
+
+    /*
+     * Returns the bit mask of the fields of the i'th Player that differ in any
+     * of the given Snapshots.
+     */
+    private byte changedFields(List<Snapshot> since, int i) {
+        if (since == null)
+            return ALLFIELDS;
+        byte changed = 0;
+        for (int k = 0; k < since.size(); k++) {
+            byte[] other = since.get(k).players;
+            if (other.length <= i * PLAYERSIZE)
+                return ALLFIELDS; // the Player has joined since
+            for (int j = 0; j < FIELDS.length - 1; j++)
+                if (!equal(players, i * PLAYERSIZE + FIELDS[j], other, i
+                        * PLAYERSIZE + FIELDS[j], FIELDS[j + 1] - FIELDS[j]))
+                    changed |= 1 << j;
+        }
+        return changed;
+    }
+
+    private static boolean equal(byte[] a, int offA, byte[] b, int offB,
+            int length) {
+        for (int i = 0; i < length; i++)
+            if (a[offA + i] != b[offB + i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Reads a delta written by writeDelta() and applies it to the given Level
+     * and Players, i.e. a client's copy of the Match. Tiles are replaced (see
+     * Level.restoreTile()) and changed fields of the Players are overwritten.
+     * A Bomb that is counting down gets the deadline of the Snapshot (relative
+     * to the ticks of the given Level); a Bomb that is missing is created if
+     * it is still counting down. Any other Bomb is left alone, as its blast is
+     * part of the tiles anyway.
+     * 
+     * @param in The input to read the delta from.
+     * @param lvl The Level to apply the delta to.
+     * @param players The Players of the Level in the order they joined.
+     * @throws IOException If the delta cannot be read or is invalid.
+     */
+    public static void apply(DataInput in, Level lvl,
+            List<? extends Player> players) throws IOException {
+        long offset = lvl.getTicks() - in.readLong();
+        int runs = in.readInt();
+        for (int i = 0; i < runs; i++) {
+            int index = in.readInt();
+            int length = in.readShort();
+            for (int j = index; j < index + length; j++) {
+                short tile = in.readShort();
+                int posX = j / lvl.getHeight(), posY = j % lvl.getHeight();
+                if (lvl.contains(posX, posY) && Level.isValidTile(tile)
+                        && lvl.getTile(posX, posY) != tile)
+                    lvl.restoreTile(posX, posY, tile);
+            }
+        }
+
+        byte[] bomb = new byte[BOMBSIZE];
+        int count = in.readShort();
+        for (int i = 0; i < count; i++) {
+            int index = in.readInt();
+            in.readFully(bomb);
+            int owner = (bomb[0] & 0xFF) << 8 | bomb[1] & 0xFF;
+            int posX = index / lvl.getHeight(), posY = index % lvl.getHeight();
+            Player player = owner < players.size() ? players.get(owner) : null;
+            if (player != null && lvl.contains(posX, posY)
+                    && bomb[3] == Bomb.COUNTING)
+                lvl.restoreBomb(posX, posY, player, bomb[2] != 0,
+                        new DataInputStream(new ByteArrayInputStream(bomb, 3,
+                                BOMBSIZE - 3)), offset);
+        }
+
+        byte[] state = new byte[PLAYERSIZE];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(PLAYERSIZE);
+        count = in.readShort();
+        for (int i = 0; i < count; i++) {
+            int num = in.readShort();
+            byte changed = in.readByte();
+            Player player = num < players.size() ? players.get(num) : null;
+            if (player != null) {
+                bytes.reset();
+                player.writeState(new DataOutputStream(bytes));
+                System.arraycopy(bytes.toByteArray(), 0, state, 0, PLAYERSIZE);
+            }
+            for (int j = 0; j < FIELDS.length - 1; j++)
+                if ((changed & 1 << j) != 0)
+                    in.readFully(state, FIELDS[j], FIELDS[j + 1] - FIELDS[j]);
+            if (player != null)
+                player.readState(new DataInputStream(new ByteArrayInputStream(
+                        state)));
+        }
+    }
+}
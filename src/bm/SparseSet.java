@@ -0,0 +1,94 @@
+package bm;
+
+import java.util.Arrays;
+
+/**
+ * This class provides a set of tile indices (see Level.index(posX, posY)) that
+ * keeps its indices densely packed in an array, along with the position of
+ * each index in that array. Adding and removing an index (the latter by moving
+ * the last one into its place) as well as picking the i'th index take
+ * constant time, so an index can be picked uniformly at random in constant
+ * time, no matter how the indices are spread. The order of the indices
+ * depends on the order they have been added and removed in.
+ * 
+ * It is used by Level to keep track of its spawn cells.
+ */
+final class SparseSet {
+
+    private int[] indices; // the indices in this set, densely packed
+    private final int[] positions; // position + 1 of each index, or 0
+    private int size; // number of indices in this set
+
+    /**
+     * Creates a new, empty SparseSet that is able to hold the indices 0 to
+     * capacity - 1.
+     * 
+     * @param capacity The number of indices this set can hold.
+     */
+    SparseSet(int capacity) {
+        indices = new int[Math.min(capacity, 16)];
+        positions = new int[capacity];
+    }
+
+    /**
+     * Adds the given index to this set.
+     * 
+     * @param index The index to be added.
+     * @return true if the index was not yet in this set.
+     */
+    boolean add(int index) {
+        if (positions[index] != 0)
+            return false;
+        if (size == indices.length)
+            indices = Arrays.copyOf(indices, 2 * size);
+        indices[size++] = index;
+        positions[index] = size;
+        return true;
+    }
+
+    /**
+     * Removes the given index from this set. The last index takes its place.
+     * 
+     * @param index The index to be removed.
+     * @return true if the index was in this set.
+     */
+    boolean remove(int index) {
+        int position = positions[index] - 1;
+        if (position < 0)
+            return false;
+        int last = indices[--size];
+        indices[position] = last;
+        positions[last] = position + 1;
+        positions[index] = 0;
+        return true;
+    }
+
+    /**
+     * Returns true if the given index is in this set.
+     * 
+     * @param index The index to be checked.
+     * @return true if the index is in this set, false otherwise.
+     */
+    boolean contains(int index) {
+        return positions[index] != 0;
+    }
+
+    /**
+     * Returns the number of indices in this set.
+     * 
+     * @return The number of indices in this set.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the i'th index of this set, 0 <= i < size().
+     * 
+     * @param i The position of the index.
+     * @return The i'th index.
+     */
+    int get(int i) {
+        return indices[i];
+    }
+}
@@ -0,0 +1,69 @@
+package bm;
+
+/**
+ * This class provides the SplitMix64 random number generator. It draws the
+ * same numbers as a java.util.SplittableRandom created with the same seed,
+ * but its whole state is a single long that can be read and set again (see
+ * getState()), so a Level restored from a checkpoint goes on drawing where it
+ * has left off without drawing all the numbers again.
+ * 
+ * Its finalizer (see mix()) also serves as the mixing function for the keys
+ * of Level.getStateHash().
+ */
+final class SplitMix64 {
+
+    // added to the state for every number drawn (the golden ratio)
+    private static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+    private long state; // the state, advanced by GAMMA for every number drawn
+
+    /**
+     * Creates a new SplitMix64 with the given seed, which is its initial
+     * state.
+     * 
+     * @param seed The seed.
+     */
+    SplitMix64(long seed) {
+        state = seed;
+    }
+
+    /**
+     * Returns the current state of this SplitMix64. A SplitMix64 created with
+     * it as seed draws the same numbers from now on.
+     * 
+     * @return The current state.
+     */
+    long getState() {
+        return state;
+    }
+
+    /**
+     * Returns the next random number.
+     * 
+     * @return The next random number, all 64 bits of which are random.
+     */
+    long nextLong() {
+        return mix(state += GAMMA);
+    }
+
+    /**
+     * Returns the next random number between 0 (inclusive) and 1 (exclusive).
+     * 
+     * @return The next random number.
+     */
+    double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Scrambles the bits of the given value (the finalizer of SplitMix64).
+     * 
+     * @param value The value to be scrambled.
+     * @return The scrambled value.
+     */
+    static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
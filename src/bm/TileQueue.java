@@ -0,0 +1,135 @@
+package bm;
+
+import java.util.Arrays;
+
+/**
+ * This class provides a first-in-first-out queue of tiles, stored unboxed in a
+ * ring buffer that doubles its size whenever it is full. Besides head and tail,
+ * it keeps a cursor marking the tiles that have not been transmitted yet: all
+ * tiles offered after the last call to markTransmitted() (or the last one
+ * handed out by nextUntransmitted()). Tiles polled before they have been
+ * transmitted are skipped.
+ * 
+ * It is used by Level for its powerup queue, so spawning a powerup and handing
+ * out the new ones to the server neither allocates memory nor takes time
+ * proportional to the length of the queue.
+ */
+final class TileQueue {
+
+    private short[] tiles; // the ring buffer, its length is a power of two
+    // the positions count the tiles offered so far; tile n is stored at
+    // tiles[n & (tiles.length - 1)]
+    private long head; // position of the first tile in this queue
+    private long tail; // position behind the last tile in this queue
+    private long transmitted; // position behind the last transmitted tile
+
+    /**
+     * Creates a new, empty TileQueue that is able to hold the given number of
+     * tiles without growing.
+     * 
+     * @param capacity The initial capacity.
+     */
+    TileQueue(int capacity) {
+        tiles = new short[Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1)];
+    }
+
+    /**
+     * Returns the number of tiles in this queue.
+     * 
+     * @return The number of tiles in this queue.
+     */
+    int size() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * Returns true if there are no tiles in this queue.
+     * 
+     * @return true if this queue is empty.
+     */
+    boolean isEmpty() {
+        return head == tail;
+    }
+
+    /**
+     * Returns the i'th tile of this queue without removing it.
+     * 
+     * @param i The number of the tile, 0 <= i < size().
+     * @return The i'th tile, counted from the head of this queue.
+     */
+    short get(int i) {
+        return tiles[(int) (head + i) & (tiles.length - 1)];
+    }
+
+    /**
+     * Adds the given tile to the tail of this queue.
+     * 
+     * @param tile The tile to be added.
+     */
+    void offer(short tile) {
+        if (size() == tiles.length)
+            grow();
+        tiles[(int) tail & (tiles.length - 1)] = tile;
+        tail++;
+    }
+
+    /**
+     * Removes and returns the tile at the head of this queue, which must not
+     * be empty.
+     * 
+     * @return The first tile of this queue.
+     */
+    short poll() {
+        return tiles[(int) head++ & (tiles.length - 1)];
+    }
+
+    /**
+     * Returns true if there is a tile in this queue that has not been
+     * transmitted yet.
+     * 
+     * @return true if nextUntransmitted() has a tile to hand out.
+     */
+    boolean hasUntransmitted() {
+        return Math.max(transmitted, head) < tail;
+    }
+
+    /**
+     * Returns the number of tiles in this queue that have not been transmitted
+     * yet. They are the last ones.
+     * 
+     * @return The number of tiles nextUntransmitted() has to hand out.
+     */
+    int untransmittedCount() {
+        return (int) (tail - Math.max(transmitted, head));
+    }
+
+    /**
+     * Returns the first tile in this queue that has not been transmitted yet
+     * and moves the cursor behind it. The tile stays in this queue. There
+     * must be such a tile, see hasUntransmitted().
+     * 
+     * @return The next tile to be transmitted.
+     */
+    short nextUntransmitted() {
+        transmitted = Math.max(transmitted, head);
+        return tiles[(int) transmitted++ & (tiles.length - 1)];
+    }
+
+    /**
+     * Marks all tiles in this queue as transmitted.
+     */
+    void markTransmitted() {
+        transmitted = tail;
+    }
+
+    /**
+     * Doubles the capacity of the ring buffer.
+     */
+    private void grow() {
+        short[] old = tiles;
+        tiles = new short[old.length * 2];
+        int oldMask = old.length - 1, mask = tiles.length - 1;
+        for (long i = head; i < tail; i++)
+            tiles[(int) i & mask] = old[(int) i & oldMask];
+    }
+}
@@ -0,0 +1,182 @@
+package bm;
+
+import java.util.Arrays;
+
+/**
+ * This class provides a hierarchical timing wheel. Each timer carries a key
+ * (for Level: the index of a tile) and the tick on which it expires. Every call
+ * to advance() moves the wheel one tick forward and hands the keys of all
+ * timers expiring on that tick to an IndexSet.
+ * 
+ * The wheel consists of LEVELS levels of SLOTS slots each. A timer expiring
+ * within the next SLOTS ticks is kept in a slot of the lowest level, one
+ * expiring later in a slot of a higher level; whenever the lowest level has
+ * completed a revolution, the timers of the next slot of the level above are
+ * moved down (and so on). Scheduling a timer and letting it expire thus takes
+ * constant time, no matter how many timers are pending or how far they lie in
+ * the future.
+ * 
+ * Timers cannot be cancelled. Whoever handles an expired key has to check if
+ * the timer is still of interest (see Bomb.update()).
+ */
+final class TimingWheel {
+
+    /** Number of bits used to select a slot on each level. */
+    private static final int BITS = 6;
+    /** Number of slots on each level. */
+    private static final int SLOTS = 1 << BITS;
+    /** Number of levels. */
+    private static final int LEVELS = 4;
+    /** Timers expiring even later are parked on the top level. */
+    private static final long HORIZON = (1L << (BITS * LEVELS)) - 1;
+    /** Initial number of timers that can be pending without growing. */
+    private static final int INITIALTIMERS = 16;
+
+    private long time; // tick the wheel has been advanced to
+    private final int[] slots; // first timer of each slot or -1
+    // the timers are stored in parallel arrays and linked through next[]
+    private int[] next; // next timer in the same slot or in the free list
+    private int[] key; // key of each timer
+    private long[] when; // tick on which each timer expires
+    private int free; // first unused timer or -1
+    private int size; // number of pending timers
+
+    /**
+     * Creates a new, empty TimingWheel whose time is 0.
+     */
+    TimingWheel() {
+        this(0);
+    }
+
+    /**
+     * Creates a new, empty TimingWheel whose time is the given tick.
+     * 
+     * @param time The tick the new TimingWheel starts at.
+     */
+    TimingWheel(long time) {
+        this.time = time;
+        slots = new int[LEVELS * SLOTS];
+        Arrays.fill(slots, -1);
+        next = new int[0];
+        key = new int[0];
+        when = new long[0];
+        free = -1;
+        grow(INITIALTIMERS);
+    }
+
+    /**
+     * Returns the tick this TimingWheel has been advanced to.
+     * 
+     * @return The current tick of this TimingWheel.
+     */
+    long getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the number of timers that have not yet expired.
+     * 
+     * @return The number of pending timers.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds a timer with the given key that expires on the given tick. The tick
+     * must lie in the future, i.e. be greater than getTime().
+     * 
+     * @param key The key that is handed out when the timer expires.
+     * @param when The tick on which the timer expires.
+     */
+    void schedule(int key, long when) {
+        if (free < 0)
+            grow(next.length * 2);
+        int timer = free;
+        free = next[timer];
+        this.key[timer] = key;
+        this.when[timer] = when;
+        insert(timer);
+        size++;
+    }
+
+    /**
+     * Advances this TimingWheel by one tick and adds the keys of all timers
+     * expiring on that tick to the given set.
+     * 
+     * @param expired The set that receives the keys of the expired timers.
+     */
+    void advance(IndexSet expired) {
+        time++;
+        // move timers down from the levels above if a revolution is complete
+        int level = 1;
+        while (level < LEVELS && (time & ((1L << (BITS * level)) - 1)) == 0)
+            level++;
+        for (level--; level > 0; level--)
+            cascade(level);
+        // everything left in the current slot of the lowest level expires now
+        int slot = (int) (time & (SLOTS - 1));
+        int timer = slots[slot];
+        slots[slot] = -1;
+        while (timer >= 0) {
+            int following = next[timer];
+            expired.add(key[timer]);
+            next[timer] = free;
+            free = timer;
+            size--;
+            timer = following;
+        }
+    }
+
+    /**
+     * Puts the given timer into the slot matching its expiry tick.
+     * 
+     * @param timer The timer to be inserted.
+     */
+    private void insert(int timer) {
+        long when = Math.min(this.when[timer], time + HORIZON);
+        long delta = when - time;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1)))
+            level++;
+        int slot = level * SLOTS
+                + (int) ((when >>> (BITS * level)) & (SLOTS - 1));
+        next[timer] = slots[slot];
+        slots[slot] = timer;
+    }
+
+    /**
+     * Redistributes the timers of the current slot of the given level among the
+     * levels below.
+     * 
+     * @param level The level whose current slot is to be emptied.
+     */
+    private void cascade(int level) {
+        int slot = level * SLOTS
+                + (int) ((time >>> (BITS * level)) & (SLOTS - 1));
+        int timer = slots[slot];
+        slots[slot] = -1;
+        while (timer >= 0) {
+            int following = next[timer];
+            insert(timer);
+            timer = following;
+        }
+    }
+
+    /**
+     * Enlarges the timer arrays to the given capacity and adds the new timers
+     * to the free list.
+     * 
+     * @param capacity The new number of timers.
+     */
+    private void grow(int capacity) {
+        int old = next.length;
+        next = Arrays.copyOf(next, capacity);
+        key = Arrays.copyOf(key, capacity);
+        when = Arrays.copyOf(when, capacity);
+        for (int i = capacity - 1; i >= old; i--) {
+            next[i] = free;
+            free = i;
+        }
+    }
+}
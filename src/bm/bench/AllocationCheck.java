@@ -0,0 +1,124 @@
+package bm.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import bm.Level;
+import bm.Match;
+import bm.network.GameManager;
+
+/**
+ * A small stand-alone check that a steady-state server tick does not allocate
+ * any memory. A Match is played in a randomly filled Level by Players that walk
+ * around randomly (but don't plant Bombs, as every Bomb is a new object), the
+ * same way GameManager moves and updates them. Then a GameManager restored
+ * from a checkpoint of that Match, whose Players have no clients, is updated
+ * the way it is served (see GameManager.bombermanUpdate()), including its
+ * frames, HASHes and Snapshots. After a warm-up, the memory allocated by the
+ * current thread during the measured ticks is reported for either; if it is
+ * more than zero bytes, the check fails with exit code 1.
+ * 
+ * Usage: AllocationCheck [size] [players] [ticks]
+ * 
+ * This relies on the HotSpot extension of ThreadMXBean to count the allocated
+ * bytes.
+ */
+public class AllocationCheck {
+
+    /** Default width/height of the Level. */
+    public static final int DEFAULTSIZE = 101;
+    /** Default number of Players walking around the Level. */
+    public static final int DEFAULTPLAYERS = 128;
+    /** Default number of ticks that will be measured. */
+    public static final int DEFAULTTICKS = 10000;
+
+    /** Format for reporting the result. */
+    public static final String RESULT = "%s, %dx%d, %d players: %d bytes allocated in %d ticks (%.3f bytes/tick)";
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULTSIZE;
+        int players = args.length > 1 ? Integer.parseInt(args[1])
+                : DEFAULTPLAYERS;
+        int ticks = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULTTICKS;
+
+        final WalkingMatch match = new WalkingMatch(new Level(size, size, true,
+                false, size * 31 + players), players, new Random(
+                size * 31 + players));
+        for (int i = 0; i < players; i++)
+            match.addPlayer("player" + i, i, i);
+
+        long allocated = measure(new Runnable() {
+            @Override
+            public void run() {
+                match.update();
+            }
+        }, ticks);
+        System.out.println(String.format(RESULT, "Match", size, size, players,
+                allocated, ticks, (double) allocated / ticks));
+
+        ByteArrayOutputStream checkpoint = new ByteArrayOutputStream();
+        match.writeCheckpoint(new DataOutputStream(checkpoint));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                checkpoint.toByteArray()));
+        final GameManager gameManager = new GameManager(Match.restoreLevel(in));
+        gameManager.restorePlayers(in);
+        long served = measure(new Runnable() {
+            @Override
+            public void run() {
+                gameManager.bombermanUpdate();
+            }
+        }, ticks);
+        System.out.println(String.format(RESULT, "GameManager", size, size,
+                players, served, ticks, (double) served / ticks));
+        if (allocated > 0 || served > 0)
+            System.exit(1);
+    }
+
+    /*
+     * Runs the given tick as often as given to let the JIT compiler do its
+     * work, then as often again and returns the number of bytes allocated by
+     * the current thread meanwhile.
+     */
+    private static long measure(Runnable tick, int ticks) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int t = 0; t < ticks; t++)
+            tick.run(); // warm-up
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int t = 0; t < ticks; t++)
+            tick.run();
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+    /*
+     * A Match whose Players change their direction with a chance of 1/20.
+     */
+    private static class WalkingMatch extends Match {
+
+        private final Random random;
+        private final byte[] dirX, dirY; // current direction of each Player
+
+        WalkingMatch(Level lvl, int players, Random random) {
+            super(lvl);
+            this.random = random;
+            dirX = new byte[players];
+            dirY = new byte[players];
+        }
+
+        @Override
+        protected void updatePlayer(int num) {
+            if (random.nextInt(20) == 0) {
+                dirX[num] = (byte) (random.nextInt(3) - 1);
+                dirY[num] = (byte) (random.nextInt(3) - 1);
+            }
+            players.get(num).move(dirX[num], dirY[num]);
+            players.get(num).update();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package bm.bench;
+
+/**
+ * A single benchmark run by BenchmarkSuite. It is set up for a combination of a
+ * map size and a count (of Players or Bombs, depending on the benchmark) and
+ * then asked to perform its operation over and over again. Only the calls to
+ * run() are measured, both in time and in memory allocated; everything that has
+ * to happen before (e.g. building a Level that is about to explode) belongs
+ * into prepare().
+ */
+abstract class Benchmark {
+
+    private final String name;
+    private final boolean counted;
+
+    /**
+     * Creates a new Benchmark.
+     * 
+     * @param name The name reported for this Benchmark.
+     * @param counted true if this Benchmark makes use of the count, i.e. has
+     * to be run for every count and not just for every size.
+     */
+    Benchmark(String name, boolean counted) {
+        this.name = name;
+        this.counted = counted;
+    }
+
+    /**
+     * Returns the name reported for this Benchmark.
+     * 
+     * @return The name of this Benchmark.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Returns true if this Benchmark makes use of the count.
+     * 
+     * @return true if this Benchmark is run for every count.
+     */
+    boolean isCounted() {
+        return counted;
+    }
+
+    /**
+     * Sets this Benchmark up for the given parameters. Everything created by a
+     * previous call is to be discarded.
+     * 
+     * @param size The width/height of the Level (or whatever is to be sized).
+     * @param count The number of Players or Bombs.
+     * @param seed The seed for everything left to chance.
+     * @throws Exception If this Benchmark cannot be set up, e.g. because a
+     * resource is missing. It is skipped in that case.
+     */
+    abstract void setUp(int size, int count, long seed) throws Exception;
+
+    /**
+     * Returns the number of operations performed by a single call to run().
+     * Cheap operations are measured in batches, so the measurement itself
+     * doesn't distort the result.
+     * 
+     * @return The number of operations per call to run().
+     */
+    int getBatchSize() {
+        return 1;
+    }
+
+    /**
+     * Prepares the next call to run(). Is not measured.
+     * 
+     * @throws Exception If something goes wrong.
+     */
+    void prepare() throws Exception {
+    }
+
+    /**
+     * Performs getBatchSize() operations. This is what is measured.
+     * 
+     * @throws Exception If something goes wrong.
+     */
+    abstract void run() throws Exception;
+}
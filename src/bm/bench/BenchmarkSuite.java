@@ -0,0 +1,383 @@
+package bm.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import bm.Bomb;
+import bm.Level;
+import bm.Player;
+import bm.gfx.Texture;
+import bm.io.LevelParser;
+import bm.log.Logger;
+
+/**
+ * Runs a suite of benchmarks covering the hot paths of the game, so changes to
+ * Level, Bomb or Player can be checked for making things faster or slower. Each
+ * benchmark is run for every map size and every count (of Players or Bombs,
+ * depending on the benchmark) given. It is warmed up first and then measured
+ * for a given time; the throughput (ns/op and ops/s) as well as the memory
+ * allocated per operation (bytes/op) are reported. Allocations are counted by
+ * the HotSpot extension of ThreadMXBean and only while the operation itself
+ * runs.
+ * 
+ * Usage: BenchmarkSuite [benchmarks] [sizes] [counts] [seconds]
+ * 
+ * benchmarks is a comma-separated list of (parts of) benchmark names or "all",
+ * sizes and counts are comma-separated lists of numbers. The benchmarks are:
+ * 
+ * level.update: one tick of a Level in which count Bombs are alive at a time
+ * 
+ * bomb.chain: the tick of a chain reaction through a Level full of Bombs in
+ * Quad Damage mode with count Players standing around (see ChainBenchmark)
+ * 
+ * player.move: a single move (including collision detection) of one of count
+ * Players walking around randomly
+ * 
+ * level.getSpawnPoint: looking up the spawn point of one of count Players
+ * 
+ * parser.parseMap: parsing a map of size x size tiles from a file
+ * 
+ * texture.replaceColors: replacing the house colors of a texture of size x
+ * size pixels (needs img/ on the class path)
+ */
+public class BenchmarkSuite {
+
+    /** Default map sizes. */
+    public static final String DEFAULTSIZES = "21,101,401";
+    /** Default counts of Players or Bombs. */
+    public static final String DEFAULTCOUNTS = "4,128";
+    /** Default time (in seconds) each benchmark is measured for. */
+    public static final double DEFAULTSECONDS = 1;
+    /** Minimum number of calls to Benchmark.run() per measurement. */
+    public static final int MINRUNS = 5;
+
+    /** Format for the header of the report. */
+    public static final String HEADER = "%-22s %5s %5s %14s %14s %12s";
+    /** Format for reporting the result of a benchmark. */
+    public static final String RESULT = "%-22s %5d %5s %14.1f %14.1f %12.1f";
+    /** Format for reporting a benchmark that could not be run. */
+    public static final String SKIPPED = "%-22s %5d %5s skipped: %s";
+
+    public static void main(String[] args) {
+        String[] names = (args.length > 0 ? args[0] : "all").split(",");
+        int[] sizes = parse(args.length > 1 ? args[1] : DEFAULTSIZES);
+        int[] counts = parse(args.length > 2 ? args[2] : DEFAULTCOUNTS);
+        double seconds = args.length > 3 ? Double.parseDouble(args[3])
+                : DEFAULTSECONDS;
+        Benchmark[] benchmarks = { new LevelUpdate(), new BombChain(),
+                new PlayerMove(), new SpawnPoint(), new ParseMap(),
+                new ReplaceColors() };
+
+        // dying Players tell everyone about it; nobody wants to read that here
+        Logger.setQuiet(true);
+        System.out.println(String.format(HEADER, "benchmark", "size", "count",
+                "ns/op", "ops/s", "bytes/op"));
+        for (Benchmark benchmark : benchmarks) {
+            if (!matches(benchmark.getName(), names))
+                continue;
+            for (int size : sizes)
+                for (int i = 0; i < counts.length; i++) {
+                    if (!benchmark.isCounted() && i > 0)
+                        break; // one run per size is enough
+                    int count = counts[i];
+                    String countText = benchmark.isCounted() ? String
+                            .valueOf(count) : "-";
+                    try {
+                        benchmark.setUp(size, count, size * 31 + count);
+                        measure(benchmark, seconds / 2); // warm-up
+                        long[] result = measure(benchmark, seconds);
+                        double ops = result[0];
+                        System.out.println(String.format(RESULT, benchmark
+                                .getName(), size, countText, result[1] / ops,
+                                ops * 1e9 / result[1], result[2] / ops));
+                    } catch (Exception e) {
+                        System.out.println(String.format(SKIPPED,
+                                benchmark.getName(), size, countText, e));
+                    } catch (LinkageError e) {
+                        // e.g. a class that cannot load its resources
+                        System.out.println(String.format(SKIPPED,
+                                benchmark.getName(), size, countText, e));
+                    }
+                }
+        }
+    }
+
+    /*
+     * Runs the given benchmark for (at least) the given time. Returns the
+     * number of operations, the time (in ns) and the memory (in bytes) they
+     * took.
+     */
+    private static long[] measure(Benchmark benchmark, double seconds)
+            throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long end = System.nanoTime() + (long) (seconds * 1e9);
+        long runs = 0, time = 0, allocated = 0;
+        while (runs < MINRUNS || System.nanoTime() < end) {
+            benchmark.prepare();
+            long before = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            benchmark.run();
+            time += System.nanoTime() - start;
+            allocated += threads.getThreadAllocatedBytes(thread) - before;
+            runs++;
+        }
+        return new long[] { runs * benchmark.getBatchSize(), time, allocated };
+    }
+
+    /*
+     * Returns true if the given name contains one of the given parts or if
+     * one of them is "all".
+     */
+    private static boolean matches(String name, String[] parts) {
+        for (String part : parts)
+            if (part.equals("all") || name.contains(part))
+                return true;
+        return false;
+    }
+
+    /*
+     * Parses a comma-separated list of numbers.
+     */
+    private static int[] parse(String list) {
+        String[] parts = list.split(",");
+        int[] numbers = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            numbers[i] = Integer.parseInt(parts[i].trim());
+        return numbers;
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // ///////////////////////////BENCHMARKS////////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /*
+     * One tick of a randomly filled Level. New Bombs are planted at random
+     * (before each tick, unmeasured) so that about count of them are alive at
+     * any time.
+     */
+    private static class LevelUpdate extends Benchmark {
+
+        private static final int LIFETIME = Bomb.COUNTDOWN
+                + Bomb.EXPLODINGTIME;
+        private static final byte RANGE = 3;
+
+        private Level lvl;
+        private Player owner;
+        private Random random;
+        private int bombs;
+        private long ticks;
+
+        LevelUpdate() {
+            super("level.update", true);
+        }
+
+        void setUp(int size, int count, long seed) {
+            lvl = new Level(size, size, true, false, seed);
+            owner = new Player(lvl, -1, -1); // out of harm's way
+            random = new Random(seed);
+            bombs = count;
+            ticks = 0;
+            for (int t = 0; t < LIFETIME; t++) { // until Bombs start to die
+                prepare();
+                lvl.update();
+            }
+        }
+
+        void prepare() {
+            // plant as many Bombs as die on average per tick
+            int plant = (int) (bombs * (ticks + 1) / LIFETIME - bombs * ticks
+                    / LIFETIME);
+            for (int i = 0; i < plant; i++)
+                for (int tries = 0; tries < Level.MAXLOOPCOUNT; tries++)
+                    if (lvl.putBomb(random.nextInt(lvl.getWidth()),
+                            random.nextInt(lvl.getHeight()), owner, RANGE,
+                            false))
+                        break;
+            ticks++;
+        }
+
+        void run() {
+            lvl.update();
+        }
+    }
+
+    /*
+     * The tick of a chain reaction, set up as by ChainBenchmark with count
+     * Players.
+     */
+    private static class BombChain extends Benchmark {
+
+        private static final int SPACING = 4;
+
+        private int size, players;
+        private Random random;
+        private Level lvl;
+
+        BombChain() {
+            super("bomb.chain", true);
+        }
+
+        void setUp(int size, int count, long seed) {
+            this.size = size;
+            players = count;
+            random = new Random(seed);
+        }
+
+        void prepare() {
+            lvl = null; // let the previous Level go first
+            lvl = ChainBenchmark.setUp(size, players, SPACING,
+                    Player.MAXRANGE, true, random);
+        }
+
+        void run() {
+            lvl.update();
+        }
+    }
+
+    /*
+     * Single moves of count Players walking around a randomly filled Level,
+     * each of them changing its direction with a chance of 1/20.
+     */
+    private static class PlayerMove extends Benchmark {
+
+        private Player[] players;
+        private byte[] dirX, dirY;
+        private Random random;
+        private int next;
+
+        PlayerMove() {
+            super("player.move", true);
+        }
+
+        void setUp(int size, int count, long seed) {
+            Level lvl = new Level(size, size, true, false, seed);
+            players = new Player[count];
+            for (int i = 0; i < count; i++) {
+                int[] spawnPoint = lvl.getSpawnPoint(i);
+                players[i] = new Player(lvl, spawnPoint[0], spawnPoint[1]);
+            }
+            dirX = new byte[count];
+            dirY = new byte[count];
+            random = new Random(seed);
+            next = 0;
+        }
+
+        int getBatchSize() {
+            return 1024;
+        }
+
+        void run() {
+            for (int i = 0; i < 1024; i++) {
+                if (random.nextInt(20) == 0) {
+                    dirX[next] = (byte) (random.nextInt(3) - 1);
+                    dirY[next] = (byte) (random.nextInt(3) - 1);
+                }
+                players[next].move(dirX[next], dirY[next]);
+                next = (next + 1) % players.length;
+            }
+        }
+    }
+
+    /*
+     * Looking up the spawn points of count Players in a randomly filled Level.
+     */
+    private static class SpawnPoint extends Benchmark {
+
+        private Level lvl;
+        private int count, next;
+
+        SpawnPoint() {
+            super("level.getSpawnPoint", true);
+        }
+
+        void setUp(int size, int count, long seed) {
+            lvl = new Level(size, size, true, false, seed);
+            this.count = count;
+            next = 0;
+        }
+
+        int getBatchSize() {
+            return 1024;
+        }
+
+        void run() {
+            for (int i = 0; i < 1024; i++) {
+                lvl.getSpawnPoint(next);
+                next = (next + 1) % count;
+            }
+        }
+    }
+
+    /*
+     * Parsing a randomly filled map of size x size tiles from a temporary
+     * file.
+     */
+    private static class ParseMap extends Benchmark {
+
+        private File map;
+
+        ParseMap() {
+            super("parser.parseMap", false);
+        }
+
+        void setUp(int size, int count, long seed) throws IOException {
+            Level lvl = new Level(size, size, true, false, seed);
+            map = File.createTempFile("bench", ".map");
+            map.deleteOnExit();
+            PrintWriter writer = new PrintWriter(new FileWriter(map));
+            writer.println("[DIM]");
+            writer.println(lvl.getWidth() + "," + lvl.getHeight() + ";");
+            writer.println("[LEVEL]");
+            for (int j = 0; j < lvl.getHeight(); j++) {
+                for (int i = 0; i < lvl.getWidth(); i++)
+                    writer.print((i > 0 ? "," : "") + lvl.getTile(i, j));
+                writer.println(";");
+            }
+            writer.close();
+        }
+
+        void run() throws Exception {
+            LevelParser.parseMap(map.getPath(), true);
+        }
+    }
+
+    /*
+     * Replacing the house colors of a texture of size x size pixels made up of
+     * these and other colors.
+     */
+    private static class ReplaceColors extends Benchmark {
+
+        private Texture texture;
+        private int[] colors;
+
+        ReplaceColors() {
+            super("texture.replaceColors", false);
+        }
+
+        void setUp(int size, int count, long seed) {
+            Random random = new Random(seed);
+            BufferedImage image = new BufferedImage(size, size,
+                    BufferedImage.TYPE_4BYTE_ABGR);
+            for (int i = 0; i < size; i++)
+                for (int j = 0; j < size; j++)
+                    image.setRGB(i, j, random.nextBoolean() ? random.nextInt()
+                            : Texture.HOUSECOLORS[random
+                                    .nextInt(Texture.HOUSECOLORS.length)]);
+            texture = new Texture(image);
+            colors = new int[Texture.HOUSECOLORS.length];
+            for (int i = 0; i < colors.length; i++)
+                colors[i] = random.nextInt() | 0xFF000000;
+        }
+
+        void run() {
+            texture.replaceColors(Texture.HOUSECOLORS, colors);
+        }
+    }
+}
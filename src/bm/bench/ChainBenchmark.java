@@ -0,0 +1,119 @@
+package bm.bench;
+
+import java.util.Random;
+
+import bm.Bomb;
+import bm.Level;
+import bm.Player;
+import bm.log.Logger;
+
+/**
+ * A small stand-alone benchmark measuring the time a server needs for a tick
+ * with a heavy chain reaction. An open Level (GRASS surrounded by BEDROCK) is
+ * covered with Bombs. By default, they are in Quad Damage mode and have maximum
+ * range, so every exploding Bomb sets its whole row and column on fire. Players
+ * stand around randomly. All Bombs are planted on the same tick, so the first
+ * one to explode sets off all the others.
+ * 
+ * Usage: ChainBenchmark [size] [players] [spacing] [range] [quad] [rounds]
+ * 
+ * The Level will be size x size tiles big, with a Bomb on every spacing'th tile
+ * in both directions. Only the tick of the explosion is measured. Half as many
+ * rounds as measured are used as warm-up.
+ * 
+ * The worst case for the depth of a chain reaction is a Level packed with
+ * Bombs of range 1 without Quad Damage (spacing 1, range 1, quad false): every
+ * Bomb sets off its neighbours only, so the chain reaction snakes through the
+ * whole Level, one Bomb after another.
+ */
+public class ChainBenchmark {
+
+    /** Default width/height of the benchmarked Level. */
+    public static final int DEFAULTSIZE = 101;
+    /** Default number of Players standing around in the benchmarked Level. */
+    public static final int DEFAULTPLAYERS = 128;
+    /** Default distance between two Bombs. */
+    public static final int DEFAULTSPACING = 4;
+    /** Default range of the Bombs. */
+    public static final byte DEFAULTRANGE = Player.MAXRANGE;
+    /** Default for Quad Damage mode of the Bombs. */
+    public static final boolean DEFAULTQUAD = true;
+    /** Default number of chain reactions that will be measured. */
+    public static final int DEFAULTROUNDS = 40;
+
+    /** Format for reporting the result. */
+    public static final String RESULT = "%dx%d, %d players, %d bombs (range %d%s): %.3f ms/chain (%d rounds)";
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULTSIZE;
+        int players = args.length > 1 ? Integer.parseInt(args[1])
+                : DEFAULTPLAYERS;
+        int spacing = args.length > 2 ? Integer.parseInt(args[2])
+                : DEFAULTSPACING;
+        byte range = args.length > 3 ? Byte.parseByte(args[3]) : DEFAULTRANGE;
+        boolean quad = args.length > 4 ? Boolean.parseBoolean(args[4])
+                : DEFAULTQUAD;
+        int rounds = args.length > 5 ? Integer.parseInt(args[5])
+                : DEFAULTROUNDS;
+        int bombs = (size - 3) / spacing + 1;
+        bombs *= bombs;
+
+        // dying Players tell everyone about it; nobody wants to read that here
+        Logger.setQuiet(true);
+        Random random = new Random(size * 31 + players);
+        for (int i = 0; i < rounds / 2; i++)
+            run(size, players, spacing, range, quad, random); // warm-up
+        long time = 0;
+        for (int i = 0; i < rounds; i++)
+            time += run(size, players, spacing, range, quad, random);
+        System.out.println(String.format(RESULT, size, size, players, bombs,
+                range, quad ? ", quad damage" : "", time / 1e6 / rounds,
+                rounds));
+    }
+
+    /*
+     * Sets up a new Level with Players and Bombs and lets the Bombs count down.
+     * Returns the time (in ns) it took to perform the tick of the explosion.
+     */
+    private static long run(int size, int players, int spacing, byte range,
+            boolean quad, Random random) {
+        Level lvl = setUp(size, players, spacing, range, quad, random);
+        long start = System.nanoTime();
+        lvl.update(); // this is where everything explodes
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Sets up a new Level with Players and Bombs as described above and lets
+     * the Bombs count down. The next call to update() on the returned Level
+     * will set off the chain reaction.
+     * 
+     * @param size The width/height of the Level.
+     * @param players The number of Players standing around.
+     * @param spacing The distance between two Bombs.
+     * @param range The range of the Bombs.
+     * @param quad true if the Bombs are in Quad Damage mode.
+     * @param random Decides where the Players stand.
+     * @return A Level about to explode.
+     */
+    static Level setUp(int size, int players, int spacing, byte range,
+            boolean quad, Random random) {
+        short[][] tiles = new short[size][size];
+        for (int i = 0; i < size; i++) {
+            tiles[i][0] = tiles[i][size - 1] = Level.BEDROCK;
+            tiles[0][i] = tiles[size - 1][i] = Level.BEDROCK;
+        }
+        Level lvl = new Level(tiles, false);
+        Player[] player = new Player[players];
+        for (int i = 0; i < players; i++)
+            player[i] = new Player(lvl, 1 + random.nextDouble() * (size - 3),
+                    1 + random.nextDouble() * (size - 3));
+        int n = 0;
+        for (int i = 1; i < size - 1; i += spacing)
+            for (int j = 1; j < size - 1; j += spacing)
+                lvl.putBomb(i, j, player[n++ % players], range, quad);
+        for (int t = 0; t < Bomb.COUNTDOWN; t++)
+            lvl.update();
+        return lvl;
+    }
+}
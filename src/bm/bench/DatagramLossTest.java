@@ -0,0 +1,545 @@
+package bm.bench;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import bm.Level;
+import bm.Player;
+import bm.Snapshot;
+import bm.network.DatagramClient;
+import bm.network.GameManager;
+import bm.network.NetworkServer;
+
+/**
+ * A stand-alone test of the UDP transport (see DatagramClient) over a lossy
+ * network. A GameManager is served by a NetworkServer on a free port and
+ * updated 60 times per second by the main thread. The clients connect to it
+ * through a proxy on the loopback interface, which drops the given share of
+ * the datagrams in either direction and delays the others by the given time
+ * plus up to half of it again, so they also arrive out of order.
+ * 
+ * Each client keeps a replica of the match, i.e. a Level and its Players, and
+ * applies everything the server sends it just like a real client, while it
+ * presses and releases random keys. After the given time, all keys are
+ * released and the match is left to settle for SETTLETIME; then each replica
+ * is compared with the server's match between two ticks (every tile and the
+ * position and state of every Player) until it matches or MAXCHECKS ticks
+ * have passed.
+ * 
+ * Usage: DatagramLossTest [clients] [loss in percent] [delay in ms] [seconds]
+ * 
+ * Reports the number of replicas that have converged, the share of the
+ * Snapshots that have been applied, the time from the tick a Snapshot has
+ * been taken at until a replica applies it (its median, 99th percentile and
+ * maximum) and the number of messages that could not be decoded or Snapshots
+ * that have been applied out of order, both of which have to be 0.
+ */
+public class DatagramLossTest {
+
+    /** Default number of clients connecting to the server. */
+    public static final int DEFAULTCLIENTS = 8;
+    /** Default share of datagrams dropped (in percent). */
+    public static final int DEFAULTLOSS = 10;
+    /** Default delay of datagrams (in milliseconds). */
+    public static final int DEFAULTDELAY = 30;
+    /** Default time (in seconds) the clients press keys for. */
+    public static final int DEFAULTSECONDS = 10;
+    /** Time (in seconds) the match is left to settle before the check. */
+    public static final int SETTLETIME = 5;
+    /** Maximum number of ticks the replicas are checked for. */
+    public static final int MAXCHECKS = 100;
+    /** Width/height of the Level played. */
+    public static final int SIZE = 41;
+
+    /** Format for reporting the result. */
+    public static final String RESULT = "%d clients, %d%% loss, %d ms delay: "
+            + "%d/%d converged, %.1f%% of %d snapshots applied, "
+            + "latency p50 %.1f ms, p99 %.1f ms, max %.1f ms, "
+            + "%d out of order, %d decode errors, %d/%d datagrams dropped";
+
+    // System.nanoTime() when each tick has started, by the ticks of the Level
+    private static AtomicLongArray started;
+
+    private static final long TICK = 1000000000 / 60; // 60 UPS
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0])
+                : DEFAULTCLIENTS;
+        int loss = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULTLOSS;
+        int delay = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULTDELAY;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3])
+                : DEFAULTSECONDS;
+
+        final GameManager match = new GameManager(new Level(SIZE, SIZE));
+        NetworkServer server = new NetworkServer(0, true) {
+            @Override
+            protected GameManager findMatch(String name) {
+                return match.isFull() ? null : match;
+            }
+        };
+        new Thread(server).start();
+        Proxy proxy = new Proxy(server.getPort(), loss / 100.0,
+                delay * 1000000L);
+        Thread proxyThread = new Thread(proxy);
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+
+        started = new AtomicLongArray((seconds + SETTLETIME) * 60 + MAXCHECKS
+                + 1);
+        Random random = new Random(count);
+        Replica[] replicas = new Replica[count];
+        for (int i = 0; i < count; i++)
+            replicas[i] = new Replica(i, proxy.getPort(), random);
+
+        long next = System.nanoTime();
+        for (int t = 0; t < seconds * 60; t++) {
+            update(match);
+            // every client changes a key with a chance of 1/20
+            for (int i = 0; i < count; i++) {
+                if (random.nextInt(20) != 0)
+                    continue;
+                byte keyword = random.nextBoolean() ? GameManager.PRESSED
+                        : GameManager.RELEASED;
+                replicas[i].send((byte) (keyword | random
+                        .nextInt(GameManager.ATTACK + 1)));
+            }
+            next = sleep(next);
+        }
+        for (int i = 0; i < count; i++)
+            for (byte key = GameManager.LEFT; key <= GameManager.ATTACK; key++)
+                replicas[i].send((byte) (GameManager.RELEASED | key));
+        for (int t = 0; t < SETTLETIME * 60; t++) {
+            update(match);
+            next = sleep(next);
+        }
+
+        // between two ticks, the match has the state of its last Snapshot
+        boolean[] converged = new boolean[count];
+        int convergedCount = 0;
+        for (int t = 0; t < MAXCHECKS && convergedCount < count; t++) {
+            update(match);
+            Thread.sleep(4 * delay + 50); // long enough for the Snapshot
+            synchronized (match) {
+                for (int i = 0; i < count; i++)
+                    if (!converged[i] && replicas[i].matches(match)) {
+                        converged[i] = true;
+                        convergedCount++;
+                    }
+            }
+        }
+
+        int applied = 0, outOfOrder = 0, errors = 0, span = 0;
+        List<Long> latencies = new ArrayList<Long>();
+        for (int i = 0; i < count; i++) {
+            replicas[i].close();
+            synchronized (replicas[i]) {
+                latencies.addAll(replicas[i].latencies);
+            }
+            applied += replicas[i].applied;
+            outOfOrder += replicas[i].outOfOrder;
+            errors += replicas[i].errors;
+            span += replicas[i].lastId - replicas[i].firstId + 1;
+        }
+        server.close();
+        Collections.sort(latencies);
+        System.out.println(String.format(RESULT, count, loss, delay,
+                convergedCount, count, 100.0 * applied / Math.max(span, 1),
+                span, percentile(latencies, 50), percentile(latencies, 99),
+                percentile(latencies, 100), outOfOrder, errors, proxy.dropped,
+                proxy.forwarded + proxy.dropped));
+    }
+
+    /*
+     * Updates the match, noting when the tick has started.
+     */
+    private static void update(GameManager match) {
+        int ticks = (int) match.getLevel().getTicks() + 1;
+        if (ticks < started.length())
+            started.set(ticks, System.nanoTime());
+        match.bombermanUpdate();
+    }
+
+    /*
+     * Returns the given percentile of the given sorted latencies in
+     * milliseconds.
+     */
+    private static double percentile(List<Long> latencies, int percent) {
+        if (latencies.isEmpty())
+            return 0;
+        int i = (latencies.size() - 1) * percent / 100;
+        return latencies.get(i) / 1e6;
+    }
+
+    /*
+     * Sleeps until the given time and returns the time of the next tick.
+     */
+    private static long sleep(long next) throws InterruptedException {
+        next += TICK;
+        long sleep = next - System.nanoTime();
+        if (sleep > 0)
+            Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+        return next;
+    }
+
+    /*
+     * A client keeping a replica of the match, decoding what the server sends
+     * reliably in a thread of its own and what it sends unreliably in the
+     * DatagramClient's, see ClientGameComponent.
+     */
+    private static class Replica implements Runnable {
+
+        private final DatagramClient client;
+        private final DataOutputStream toServer;
+        private final DataInputStream fromServer;
+        private Level lvl;
+        private final List<Player> players = new ArrayList<Player>();
+        private volatile boolean running = true;
+        int firstId = -1, lastId = -1; // of the Snapshots applied
+        int applied, outOfOrder, errors; // read once the replica is closed
+        final List<Long> latencies = new ArrayList<Long>(); // in nanoseconds
+
+        Replica(int i, int port, Random random) throws IOException {
+            client = new DatagramClient(InetAddress.getLoopbackAddress()
+                    .getHostAddress(), port);
+            client.setHandler(new DatagramClient.Handler() {
+                @Override
+                public void handle(byte[] message) throws IOException {
+                    receiveUnreliable(message);
+                }
+            });
+            toServer = new DataOutputStream(client.getOutputStream());
+            fromServer = new DataInputStream(new BufferedInputStream(
+                    client.getInputStream()));
+            toServer.writeInt(random.nextInt());
+            toServer.writeInt(random.nextInt());
+            toServer.writeChars("bot" + i + '\0');
+            toServer.flush();
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void send(byte message) throws IOException {
+            toServer.writeByte(message);
+            toServer.flush();
+        }
+
+        void close() {
+            running = false;
+            client.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                fromServer.readShort(); // the number of the Player
+                while (running) {
+                    byte keyword = fromServer.readByte();
+                    synchronized (this) {
+                        if (!decode(keyword, fromServer)) {
+                            errors++;
+                            return;
+                        }
+                    }
+                }
+            } catch (EOFException e) {
+                // closed
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                    errors++;
+                }
+            }
+        }
+
+        /*
+         * Decodes and applies what the server has sent unreliably: a SNAPSHOT,
+         * which is dropped along with the rest if it is older than the last
+         * one applied or its base has not been applied yet, and the messages
+         * about the state it leads to.
+         */
+        private synchronized void receiveUnreliable(byte[] message)
+                throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    message));
+            if (message[0] == GameManager.SNAPSHOT) {
+                ByteBuffer header = ByteBuffer.wrap(message, 1, 8);
+                int id = header.getInt();
+                int base = header.getInt();
+                if (lvl == null || id <= lastId || base > lastId)
+                    return;
+            }
+            while (in.available() > 0)
+                if (!decode(in.readByte(), in)) {
+                    errors++;
+                    return;
+                }
+        }
+
+        /*
+         * Decodes and applies a single message from the given input, see
+         * GameManager. Returns false if it is unknown or not meant for a
+         * client over UDP.
+         */
+        private boolean decode(byte keyword, DataInputStream in)
+                throws IOException {
+            byte rest = (byte) (keyword & ~GameManager.KEYWORD);
+            switch (keyword & GameManager.KEYWORD) {
+            case GameManager.LEVEL:
+                short[][] tiles = new short[in.readInt()][in
+                        .readInt()];
+                long seed = in.readLong();
+                for (int i = 0; i < tiles.length; i++)
+                    for (int j = 0; j < tiles[i].length; j++)
+                        tiles[i][j] = in.readShort();
+                lvl = new Level(tiles, false, seed);
+                return in.readByte() == GameManager.END;
+            case GameManager.PLAYER:
+                String name = "";
+                int fstClr = 0, sndClr = 0;
+                if (rest == GameManager.COLOR) {
+                    fstClr = in.readInt();
+                    sndClr = in.readInt();
+                    char c;
+                    while ((c = in.readChar()) != '\0')
+                        name += c;
+                }
+                int num = in.readShort();
+                int posX = in.readInt();
+                int posY = in.readInt();
+                if (num < players.size())
+                    players.get(num).setFixedPos(posX, posY);
+                else players.add(num, new Player(lvl, name, fstClr, sndClr,
+                        (double) posX / Player.UNIT, (double) posY
+                                / Player.UNIT));
+                return true;
+            case GameManager.BOMB:
+                int bombX = in.readInt();
+                int bombY = in.readInt();
+                byte range = in.readByte();
+                lvl.putBomb(bombX, bombY, players.get(in.readShort()),
+                        range, rest == GameManager.QUADDAMAGE);
+                return true;
+            case GameManager.POWERUP:
+                lvl.setNextPowerup(rest);
+                return true;
+            case GameManager.HASH:
+                in.readLong(); // the replicas do not simulate the Bombs
+                return true;
+            case GameManager.CORRECTION: // the replicas do not predict
+                in.readInt();
+                in.readShort();
+                in.readInt();
+                in.readInt();
+                return true;
+            case GameManager.SNAPSHOT:
+                int id = in.readInt();
+                in.readInt(); // the base
+                in.mark(8);
+                long ticks = in.readLong();
+                in.reset();
+                Snapshot.apply(in, lvl, players);
+                if (ticks < started.length() && started.get((int) ticks) > 0)
+                    latencies.add(System.nanoTime()
+                            - started.get((int) ticks));
+                if (id <= lastId)
+                    outOfOrder++;
+                if (firstId < 0)
+                    firstId = id;
+                lastId = id;
+                applied++;
+                client.acknowledge(id);
+                return true;
+            default: // MOVEs are not sent over UDP
+                return false;
+            }
+        }
+
+        /*
+         * Returns true if this replica has the same tiles and Players as the
+         * given match. The match must not be updated meanwhile.
+         */
+        synchronized boolean matches(GameManager match) {
+            Level level = match.getLevel();
+            if (lvl == null || players.size() != match.getPlayerCount())
+                return false;
+            for (int i = 0; i < level.getWidth(); i++)
+                for (int j = 0; j < level.getHeight(); j++)
+                    if ((level.getTile(i, j) & Level.TILE) != (lvl.getTile(i,
+                            j) & Level.TILE))
+                        return false;
+            for (int i = 0; i < players.size(); i++) {
+                Player a = match.getPlayer(i), b = players.get(i);
+                if (a.getFixedX() != b.getFixedX()
+                        || a.getFixedY() != b.getFixedY()
+                        || a.isDead() != b.isDead()
+                        || a.getRange() != b.getRange()
+                        || a.getAmmo() != b.getAmmo()
+                        || a.isChuck() != b.isChuck()
+                        || a.hasQuadDamage() != b.hasQuadDamage()
+                        || a.getCounter() != b.getCounter()
+                        || a.getQdCounter() != b.getQdCounter())
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /*
+     * The lossy network between the clients and the server. Every client is
+     * given a channel of its own to the server, so the server tells them apart
+     * by their address as usual.
+     */
+    private static class Proxy implements Runnable {
+
+        private final Selector selector;
+        private final DatagramChannel front; // the clients send to
+        private final SocketAddress server;
+        private final Map<SocketAddress, DatagramChannel> upstream;
+        private final Map<DatagramChannel, SocketAddress> clients;
+        private final PriorityQueue<Delayed> queue;
+        private final double loss;
+        private final long delay; // in nanoseconds
+        private final Random random = new Random(42);
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private long sequence; // keeps datagrams due at once in order
+        volatile int forwarded, dropped; // only written by the proxy
+
+        Proxy(int serverPort, double loss, long delay) throws IOException {
+            selector = Selector.open();
+            front = DatagramChannel.open();
+            front.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    0));
+            front.configureBlocking(false);
+            front.register(selector, SelectionKey.OP_READ);
+            server = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    serverPort);
+            upstream = new HashMap<SocketAddress, DatagramChannel>();
+            clients = new HashMap<DatagramChannel, SocketAddress>();
+            queue = new PriorityQueue<Delayed>();
+            this.loss = loss;
+            this.delay = delay;
+        }
+
+        int getPort() {
+            return front.socket().getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    long wait = 10;
+                    if (!queue.isEmpty())
+                        wait = Math.max(1, (queue.peek().due - System
+                                .nanoTime()) / 1000000);
+                    selector.select(wait);
+                    for (SelectionKey key : selector.selectedKeys())
+                        receive((DatagramChannel) key.channel());
+                    selector.selectedKeys().clear();
+                    long now = System.nanoTime();
+                    while (!queue.isEmpty() && queue.peek().due <= now) {
+                        Delayed datagram = queue.poll();
+                        datagram.channel.send(ByteBuffer.wrap(datagram.bytes),
+                                datagram.target);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /*
+         * Receives the datagrams that have arrived at the given channel and
+         * passes each one on, unless it is lost.
+         */
+        private void receive(DatagramChannel channel) throws IOException {
+            SocketAddress from;
+            buffer.clear();
+            while ((from = channel.receive(buffer)) != null) {
+                buffer.flip();
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                buffer.clear();
+                if (random.nextDouble() < loss) {
+                    dropped++;
+                    continue;
+                }
+                forwarded++;
+                long due = System.nanoTime() + delay
+                        + (long) (random.nextDouble() * delay / 2);
+                if (channel == front)
+                    queue.add(new Delayed(due, sequence++, bytes,
+                            upstream(from), server));
+                else queue.add(new Delayed(due, sequence++, bytes, front,
+                        clients.get(channel)));
+            }
+        }
+
+        /*
+         * Returns the channel to the server of the client at the given
+         * address, opening it if needed.
+         */
+        private DatagramChannel upstream(SocketAddress client)
+                throws IOException {
+            DatagramChannel channel = upstream.get(client);
+            if (channel == null) {
+                channel = DatagramChannel.open();
+                channel.bind(new InetSocketAddress(
+                        InetAddress.getLoopbackAddress(), 0));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+                upstream.put(client, channel);
+                clients.put(channel, client);
+            }
+            return channel;
+        }
+    }
+
+    /*
+     * A datagram on its way.
+     */
+    private static class Delayed implements Comparable<Delayed> {
+
+        final long due; // System.nanoTime() when it arrives
+        final long sequence;
+        final byte[] bytes;
+        final DatagramChannel channel; // the channel to send it from
+        final SocketAddress target;
+
+        Delayed(long due, long sequence, byte[] bytes,
+                DatagramChannel channel, SocketAddress target) {
+            this.due = due;
+            this.sequence = sequence;
+            this.bytes = bytes;
+            this.channel = channel;
+            this.target = target;
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (due != other.due)
+                return due < other.due ? -1 : 1;
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package bm.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import bm.Level;
+import bm.network.GameManager;
+import bm.network.NetworkServer;
+
+/**
+ * A stand-alone load test of the network code of the server. A NetworkServer
+ * is started on a free port and opens a new match whenever the others are
+ * full; the matches are updated 60 times per second by the main thread, which
+ * measures how long every tick takes. Meanwhile, a single client thread
+ * connects the given number of clients over the loopback interface, lets them
+ * introduce themselves and press and release random keys, and decodes
+ * everything the server sends them, acknowledging every SNAPSHOT like a real
+ * client.
+ * 
+ * Usage: NetworkLoadTest [connections] [players per match] [seconds]
+ * 
+ * Reports the number of Players that have joined, the median, 99th percentile
+ * and maximum duration of a tick (of all matches together) and the amount of
+ * data received by the clients.
+ */
+public class NetworkLoadTest {
+
+    /** Default number of clients connecting to the server. */
+    public static final int DEFAULTCONNECTIONS = 500;
+    /** Default number of Players that can join a single match. */
+    public static final int DEFAULTPLAYERS = 64;
+    /** Default time (in seconds) the test runs for. */
+    public static final int DEFAULTSECONDS = 10;
+    /** Width/height of the Levels played. */
+    public static final int SIZE = 101;
+
+    /** Format for reporting the result. */
+    public static final String RESULT = "%d/%d joined, %d matches, %d ticks: "
+            + "p50 %.3f ms, p99 %.3f ms, max %.3f ms per tick, %.1f MB received";
+
+    private static final long TICK = 1000000000 / 60; // 60 UPS
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0])
+                : DEFAULTCONNECTIONS;
+        final int playersPerMatch = args.length > 1 ? Integer
+                .parseInt(args[1]) : DEFAULTPLAYERS;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2])
+                : DEFAULTSECONDS;
+
+        final List<GameManager> matches;
+        matches = new CopyOnWriteArrayList<GameManager>();
+        NetworkServer server = new NetworkServer(0) {
+            @Override
+            protected GameManager findMatch(String name) {
+                for (GameManager match : matches)
+                    if (match.getClientCount() < playersPerMatch)
+                        return match;
+                GameManager match = new GameManager(new Level(SIZE, SIZE));
+                matches.add(match);
+                return match;
+            }
+        };
+        new Thread(server).start();
+        Clients clients = new Clients(server.getPort(), connections);
+        Thread clientThread = new Thread(clients);
+        clientThread.start();
+
+        long[] time = new long[seconds * 60];
+        long next = System.nanoTime();
+        for (int t = 0; t < time.length; t++) {
+            long start = System.nanoTime();
+            for (GameManager match : matches)
+                match.bombermanUpdate();
+            time[t] = System.nanoTime() - start;
+            next += TICK;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0)
+                Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+        }
+
+        clients.stop();
+        clientThread.join();
+        server.close();
+
+        int joined = 0;
+        for (GameManager match : matches)
+            joined += match.getPlayerCount();
+        Arrays.sort(time);
+        System.out.println(String.format(RESULT, joined, connections,
+                matches.size(), time.length, time[time.length / 2] / 1e6,
+                time[time.length * 99 / 100] / 1e6,
+                time[time.length - 1] / 1e6, clients.received / 1e6));
+    }
+
+    /*
+     * The clients, all served by a single thread and Selector.
+     */
+    private static class Clients implements Runnable {
+
+        // the sizes of the fields of a Player in a SNAPSHOT, see Snapshot
+        private static final int[] PLAYERFIELDS = { 8, 1, 1, 2, 2, 4, 4 };
+
+        private final int port;
+        private final int count;
+        private volatile boolean running = true;
+        long received; // read by main() once the thread has terminated
+
+        Clients(int port, int count) {
+            this.port = port;
+            this.count = count;
+        }
+
+        void stop() {
+            running = false;
+        }
+
+        @Override
+        public void run() {
+            Random random = new Random(count);
+            ByteBuffer key = ByteBuffer.allocate(1);
+            SocketChannel[] channels = new SocketChannel[count];
+            ByteBuffer[] input = new ByteBuffer[count]; // undecoded input
+            try {
+                Selector selector = Selector.open();
+                InetSocketAddress address = new InetSocketAddress(
+                        InetAddress.getLoopbackAddress(), port);
+                for (int i = 0; i < count; i++) {
+                    channels[i] = SocketChannel.open(address);
+                    channels[i].write(introduction(i, random));
+                    channels[i].configureBlocking(false);
+                    channels[i].register(selector, SelectionKey.OP_READ, i);
+                    input[i] = ByteBuffer.allocate(1 << 16);
+                    input[i].limit(2); // the number of the client's Player
+                }
+                long next = System.nanoTime();
+                while (running) {
+                    selector.select(1);
+                    for (SelectionKey selected : selector.selectedKeys()) {
+                        int i = (Integer) selected.attachment();
+                        ByteBuffer in = input[i];
+                        if (in.position() == 2 && in.limit() == 2)
+                            in.clear(); // the number has arrived
+                        int n = channels[i].read(in);
+                        if (n < 0) {
+                            selected.cancel(); // disconnected by the server
+                            continue;
+                        }
+                        received += n;
+                        if (in.limit() == 2)
+                            continue;
+                        in.flip();
+                        decode(in, channels[i], key);
+                        in.compact();
+                        if (!in.hasRemaining()) { // a message of its own size
+                            in.flip();
+                            input[i] = ByteBuffer.allocate(in.capacity() * 2)
+                                    .put(in);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    if (System.nanoTime() < next)
+                        continue;
+                    next += TICK;
+                    // every client changes a key with a chance of 1/20
+                    for (int i = 0; i < count; i++) {
+                        if (random.nextInt(20) != 0)
+                            continue;
+                        byte keyword = random.nextBoolean()
+                                ? GameManager.PRESSED : GameManager.RELEASED;
+                        key.clear();
+                        key.put((byte) (keyword | random
+                                .nextInt(GameManager.ATTACK + 1)));
+                        key.flip();
+                        if (channels[i].isOpen())
+                            channels[i].write(key);
+                    }
+                }
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (int i = 0; i < count; i++)
+                    if (channels[i] != null)
+                        try {
+                            channels[i].close();
+                        } catch (IOException e) {
+                            // nothing left to do
+                        }
+            }
+        }
+
+        /*
+         * Decodes as many complete messages as the given input holds and
+         * acknowledges every SNAPSHOT, see GameManager and Snapshot. The input
+         * is left at the first message that has not arrived completely.
+         */
+        private static void decode(ByteBuffer in, SocketChannel channel,
+                ByteBuffer ack) throws IOException {
+            while (in.hasRemaining()) {
+                in.mark();
+                try {
+                    byte keyword = in.get();
+                    switch (keyword & GameManager.KEYWORD) {
+                    case GameManager.LEVEL:
+                        int tiles = in.getInt() * in.getInt();
+                        in.getLong();
+                        skip(in, 2 * tiles + 1); // the tiles and END
+                        break;
+                    case GameManager.PLAYER:
+                        if ((keyword & GameManager.COLOR) != 0) {
+                            skip(in, 8);
+                            while (in.getChar() != '\0')
+                                continue;
+                        }
+                        skip(in, 2 + 8);
+                        break;
+                    case GameManager.MOVE:
+                        skip(in, 2);
+                        break;
+                    case GameManager.BOMB:
+                        skip(in, 4 + 4 + 1 + 2);
+                        break;
+                    case GameManager.HASH:
+                        skip(in, 8);
+                        break;
+                    case GameManager.CORRECTION:
+                        skip(in, 4 + 2 + 4 + 4);
+                        break;
+                    case GameManager.SNAPSHOT:
+                        int id = in.getInt();
+                        skipSnapshot(in);
+                        ack.clear();
+                        ack.put((byte) (GameManager.ACK | id & 0x0F));
+                        ack.flip();
+                        channel.write(ack);
+                        break;
+                    }
+                } catch (BufferUnderflowException e) {
+                    in.reset(); // wait for the rest of the message
+                    return;
+                }
+            }
+        }
+
+        /*
+         * Skips a SNAPSHOT after its id (see Snapshot.writeDelta()).
+         */
+        private static void skipSnapshot(ByteBuffer in) {
+            skip(in, 4 + 8); // the id of its base and the ticks
+            int runs = in.getInt();
+            for (int i = 0; i < runs; i++) {
+                in.getInt();
+                skip(in, 2 * in.getShort());
+            }
+            skip(in, in.getShort() * (4 + 2 + 1 + 15));
+            int players = in.getShort();
+            for (int i = 0; i < players; i++) {
+                in.getShort();
+                byte changed = in.get();
+                for (int j = 0; j < PLAYERFIELDS.length; j++)
+                    if ((changed & 1 << j) != 0)
+                        skip(in, PLAYERFIELDS[j]);
+            }
+        }
+
+        private static void skip(ByteBuffer in, int n) {
+            if (in.remaining() < n)
+                throw new BufferUnderflowException();
+            in.position(in.position() + n);
+        }
+
+        /*
+         * The introduction of the i'th client: its colors and its name.
+         */
+        private static ByteBuffer introduction(int i, Random random) {
+            String name = "bot" + i;
+            ByteBuffer out = ByteBuffer.allocate(8 + 2 * (name.length() + 1));
+            out.putInt(random.nextInt());
+            out.putInt(random.nextInt());
+            for (int j = 0; j < name.length(); j++)
+                out.putChar(name.charAt(j));
+            out.putChar('\0');
+            out.flip();
+            return out;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package bm.bench;
+
+import java.util.Random;
+
+import bm.Level;
+import bm.Player;
+
+/**
+ * A small stand-alone benchmark measuring the time a server needs for one game
+ * tick, i.e. one call to Level.update() followed by moving, updating and
+ * possibly planting a Bomb for each Player. Only the non-visual classes are
+ * used, so neither textures nor sounds are loaded.
+ * 
+ * Usage: TickBenchmark [size] [players] [ticks]
+ * 
+ * The Level will be size x size tiles big and filled randomly. The Players walk
+ * around randomly and plant Bombs every now and then. The first half of the
+ * ticks is used as warm-up and not measured.
+ */
+public class TickBenchmark {
+
+    /** Default width/height of the benchmarked Level. */
+    public static final int DEFAULTSIZE = 401;
+    /** Default number of Players walking around the benchmarked Level. */
+    public static final int DEFAULTPLAYERS = 16;
+    /** Default number of ticks that will be measured. */
+    public static final int DEFAULTTICKS = 20000;
+
+    /** Format for reporting the result. */
+    public static final String RESULT = "%dx%d, %d players: %.1f ns/tick (%d ticks)";
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULTSIZE;
+        int players = args.length > 1 ? Integer.parseInt(args[1])
+                : DEFAULTPLAYERS;
+        int ticks = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULTTICKS;
+
+        Level lvl = new Level(size, size, true, false, size * 31 + players);
+        Player[] player = new Player[players];
+        for (int i = 0; i < players; i++) {
+            int[] spawnPoint = lvl.getSpawnPoint(i);
+            player[i] = new Player(lvl, spawnPoint[0], spawnPoint[1]);
+        }
+        Random random = new Random(size * 31 + players);
+        byte[][] dir = new byte[players][2];
+
+        run(lvl, player, dir, random, ticks / 2); // warm-up
+        long start = System.nanoTime();
+        run(lvl, player, dir, random, ticks);
+        long time = System.nanoTime() - start;
+        System.out.println(String.format(RESULT, lvl.getWidth(),
+                lvl.getHeight(), players, (double) time / ticks, ticks));
+    }
+
+    /*
+     * Performs the given number of ticks. Every Player changes its direction
+     * with a chance of 1/20 and tries to plant a Bomb with a chance of 1/30.
+     */
+    private static void run(Level lvl, Player[] player, byte[][] dir,
+            Random random, int ticks) {
+        for (int t = 0; t < ticks; t++) {
+            lvl.update();
+            for (int i = 0; i < player.length; i++) {
+                if (random.nextInt(20) == 0) {
+                    dir[i][0] = (byte) (random.nextInt(3) - 1);
+                    dir[i][1] = (byte) (random.nextInt(3) - 1);
+                }
+                player[i].move(dir[i][0], dir[i][1]);
+                player[i].update();
+                if (random.nextInt(30) == 0)
+                    player[i].putBomb();
+            }
+        }
+    }
+}
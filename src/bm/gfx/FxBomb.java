@@ -18,7 +18,6 @@ import bm.sfx.SoundManager;
  */
 public class FxBomb extends Bomb implements Drawable {
 
-    private byte animCounter = (byte) (EXPLODINGTIME / EXPLBOT.length);
     protected byte animFrame = 0;
 
     protected FxLevel bLevel;
@@ -34,28 +33,6 @@ public class FxBomb extends Bomb implements Drawable {
         this.bLevel = bLevel;
     }
 
-    @Override
-    protected void updateCountingBomb() {
-        super.updateCountingBomb();
-        if (animCounter > 0)
-            animCounter--;
-        else {
-            animFrame = (byte) ((animFrame + 1) % BOMB.length);
-            animCounter = (byte) (EXPLODINGTIME / EXPLBOT.length);
-        }
-    }
-
-    @Override
-    protected void updateExplodingBomb() {
-        super.updateExplodingBomb();
-        if (animCounter > 0)
-            animCounter--;
-        else {
-            animFrame = (byte) ((animFrame + 1) % BOMB.length);
-            animCounter = (byte) (EXPLODINGTIME / EXPLBOT.length);
-        }
-    }
-
     @Override
     public void explode() {
         explode(true);
@@ -64,7 +41,6 @@ public class FxBomb extends Bomb implements Drawable {
     public void explode(boolean playSound) {
         if (playSound)
             playExplodingSound();
-        animCounter = animFrame = 0;
         super.explode();
     }
 
@@ -75,6 +51,7 @@ public class FxBomb extends Bomb implements Drawable {
     public void draw(Graphics2D g) {
         if (state == EXPLODED)
             return;
+        updateAnimFrame();
         if (state == COUNTING)
             drawBomb(g);
         else if (state == EXPLODING) {
@@ -90,6 +67,20 @@ public class FxBomb extends Bomb implements Drawable {
         }
     }
 
+    /*
+     * The animation advances every few ticks, starting over when the Bomb
+     * explodes. While exploding, the first frame is only shown until the first
+     * tick has passed.
+     */
+    private void updateAnimFrame() {
+        int frameTime = EXPLODINGTIME / EXPLBOT.length + 1;
+        int elapsed;
+        if (state == COUNTING)
+            elapsed = COUNTDOWN - getCounter();
+        else elapsed = EXPLODINGTIME - getCounter() + frameTime - 1;
+        animFrame = (byte) (elapsed / frameTime % BOMB.length);
+    }
+
     private void drawBomb(Graphics2D g) {
         bLevel.markForUpdate(posX, posY);
         int dim = bLevel.getTileDim();
@@ -1,7 +1,9 @@
 package bm.gfx;
 
 import java.awt.Graphics2D;
+import java.util.SplittableRandom;
 
+import bm.Bomb;
 import bm.Level;
 import bm.Player;
 
@@ -84,7 +86,7 @@ public class FxLevel extends Level implements Drawable {
         // setze dann das G-Flag
         for (int i = leftX; i <= rightX; i++) {
             for (int j = topY; j <= bottomY; j++)
-                if (Math.random() < GOREPROB)
+                if (effects.nextDouble() < GOREPROB)
                     addGore(i, j);
         }
 
@@ -93,13 +95,14 @@ public class FxLevel extends Level implements Drawable {
     private void addGore(int posX, int posY) {
         if (posX < 0 || posX >= width || posY < 0 || posY >= height)
             return;
-        tiles[posX][posY] |= GORE;
+        int index = index(posX, posY);
+        setRawTileAt(index, (short) (rawTileAt(index) | GORE));
     }
 
     public boolean hasGore(int posX, int posY) {
         if (posX < 0 || posX >= width || posY < 0 || posY >= height)
             return false;
-        return (tiles[posX][posY] & GORE) != 0;
+        return (rawTileAt(index(posX, posY)) & GORE) != 0;
     }
 
     private static final byte ANIMDURATION = 20;
@@ -107,6 +110,9 @@ public class FxLevel extends Level implements Drawable {
     private static int animFrame = 0;
     private int tileDim;
     private boolean drawAll, drawPwups;
+    // own generator for effects, so drawing never changes the game's outcome
+    private final SplittableRandom effects = new SplittableRandom(getSeed())
+            .split();
 
     public FxLevel(int width, int height, int pixelWidth, int pixelHeight,
             boolean spawnPowerups, boolean spawnExit) {
@@ -126,10 +132,29 @@ public class FxLevel extends Level implements Drawable {
         drawAll = drawPwups = true;
     }
 
+    public FxLevel(short[][] tiles, int pixelWidth, int pixelHeight,
+            boolean spawnPowerups, long seed) {
+        super(tiles, spawnPowerups, seed);
+        updateTileDimensions(pixelWidth, pixelHeight);
+        drawAll = drawPwups = true;
+    }
+
     public FxLevel(short[][] tiles, int pixelWidth, int pixelHeight) {
         this(tiles, pixelWidth, pixelHeight, true);
     }
 
+    /**
+     * Liefert einen zufaelligen Versatz (in Pixeln) zurueck, um den das
+     * Spielfeld verschoben gezeichnet wird, solange Bomben explodieren.
+     * 
+     * @return Der Versatz in Pixeln.
+     */
+    public int getShakeOffset() {
+        int explodeCount = getExplodeCount();
+        return (int) (effects.nextDouble() * 2 * explodeCount) - explodeCount
+                * 2;
+    }
+
     /**
      * Liefert die aktuelle Kantenlaenge aller Kacheln in Pixeln zurueck. Der
      * hier zurueckgegebene Wert wird auch von der draw()-Methode der gleichen
@@ -186,6 +211,12 @@ public class FxLevel extends Level implements Drawable {
         markForUpdate(posX, posY);
     }
 
+    @Override
+    protected void restoreTile(int posX, int posY, short tile) {
+        super.restoreTile(posX, posY, tile);
+        markForUpdate(posX, posY);
+    }
+
     /**
      * Diese Methode zeichnet das Spielfeld auf den zum Graphics-Objekt
      * gehoerenden Bereich (zum Beispiel ein BufferedImage). Es wird immer nur
@@ -199,18 +230,16 @@ public class FxLevel extends Level implements Drawable {
     public void draw(Graphics2D g) {
         short currentTile;
         boolean gore;
+        int index = 0;
         for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                if (drawAll || markedForUpdate(tiles[i][j])) {
-                    if (!drawAll)
-                        unmarkForUpdate(i, j); // if-Abfrage spart
-                                               // unnoetige
-                                               // Bitoperationen
-                    currentTile = (short) (tiles[i][j] & TILE); // Betrachtung
-                                                                // unabhaengig
-                                                                // von D oder F
-                                                                // Flags
-                    gore = hasGore(i, j);
+            for (int j = 0; j < height; j++, index++) {
+                if (drawAll || markedForUpdate(rawTileAt(index))) {
+                    if (!drawAll) // if-Abfrage spart unnoetige Bitoperationen
+                        setRawTileAt(index,
+                                (short) (rawTileAt(index) & ~DRAW));
+                    currentTile = tileAt(index); // Betrachtung unabhaengig
+                                                 // von D oder F Flags
+                    gore = (rawTileAt(index) & GORE) != 0;
                     if (currentTile == GRASS)
                         drawGrass(i, j, gore, g);
 
@@ -258,10 +287,8 @@ public class FxLevel extends Level implements Drawable {
             }
         }
         drawAll = drawPwups = false;
-        for (int i = 0; i < width; i++)
-            for (int j = 0; j < height; j++)
-                if (bombs[i][j] != null)
-                    ((Drawable) bombs[i][j]).draw((Graphics2D) g);
+        for (int i = 0; i < getBombCount(); i++)
+            ((Drawable) getBomb(i)).draw(g);
     }
 
     // es folgen Methoden zum einzelnen Zeichnen von Kacheln.
@@ -355,42 +382,23 @@ public class FxLevel extends Level implements Drawable {
     public void markForUpdate(int posX, int posY) {
         if (posX < 0 || posX >= width || posY < 0 || posY >= height)
             return;
-        tiles[posX][posY] |= DRAW;
-    }
-
-    /*
-     * Interne Methode, welche sowohl von obiger Methode als auch (bzw
-     * insbesondere) von der draw-Methode genutzt wird.
-     */
-    private void unmarkForUpdate(int posX, int posY) {
-        if (posX < 0 || posX >= width || posY < 0 || posY >= height)
-            return;
-        tiles[posX][posY] &= ~DRAW;
-
+        int index = index(posX, posY);
+        setRawTileAt(index, (short) (rawTileAt(index) | DRAW));
     }
 
     @Override
-    public boolean putBomb(int posX, int posY, Player player) {
-        if (posX < 0 || posX >= width || posY < 0 || posY >= height
-                || hasBomb(posX, posY))
-            return false;
+    protected Bomb createBomb(int posX, int posY, Player player) {
         if (!player.hasQuadDamage())
-            bombs[posX][posY] = new FxBomb(posX, posY, this, player);
-        else bombs[posX][posY] = new QdBomb(posX, posY, this, player);
-        return true;
+            return new FxBomb(posX, posY, this, player);
+        return new QdBomb(posX, posY, this, player);
     }
 
-    public boolean putBomb(int posX, int posY, Player player, byte radius,
+    @Override
+    protected Bomb createBomb(int posX, int posY, Player player, byte radius,
             boolean quadDamage) {
-        if (posX < 0 || posX >= width || posY < 0 || posY >= height
-                || hasBomb(posX, posY))
-            return false;
         if (!quadDamage)
-            bombs[posX][posY] = new FxBomb(posX, posY, this, player, radius,
-                    quadDamage);
-        else bombs[posX][posY] = new QdBomb(posX, posY, this, player, radius,
-                quadDamage);
-        return true;
+            return new FxBomb(posX, posY, this, player, radius, quadDamage);
+        return new QdBomb(posX, posY, this, player, radius, quadDamage);
     }
 
     /**
@@ -430,6 +438,6 @@ public class FxLevel extends Level implements Drawable {
     }
 
     protected void invokeChainReaction(int posX, int posY) {
-        ((FxBomb) bombs[posX][posY]).explode(false);
+        ((FxBomb) bombAt(index(posX, posY))).explode(false);
     }
 }
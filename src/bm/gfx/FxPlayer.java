@@ -190,7 +190,7 @@ public class FxPlayer extends Player implements Drawable {
 
     protected void die() {
         super.die();
-        lvl.addGore(posX, posY, GORERADIUS);
+        lvl.addGore(getPosX(), getPosY(), GORERADIUS);
         animFrame = (byte) (player_die.length - 1);
     }
 
@@ -240,21 +240,21 @@ public class FxPlayer extends Player implements Drawable {
     }
 
     @Override
-    public byte[] move(byte dirX, byte dirY) {
-        byte[] moved = super.move(dirX, dirY);
+    public byte move(byte dirX, byte dirY) {
+        byte moved = super.move(dirX, dirY);
         // calculate direction
         if (state != MOVING)
             return moved; // no movement -> no direction switch
 
         // see if horizontal or vertical movement was more important
-        if (Math.abs(moved[0]) > Math.abs(moved[1])) {
+        if ((moved & (MOVEDUP | MOVEDDOWN)) == 0) {
             // horizontal
-            if (moved[0] < 0)
+            if ((moved & MOVEDLEFT) != 0)
                 dir = LEFT;
             else dir = RIGHT;
         } else {
             // vertical
-            if (moved[1] < 0)
+            if ((moved & MOVEDUP) != 0)
                 dir = UP;
             else dir = DOWN;
         }
@@ -272,6 +272,7 @@ public class FxPlayer extends Player implements Drawable {
      * @param g The Graphics2D context.
      */
     public void draw(Graphics2D g) {
+        double posX = getPosX(), posY = getPosY();
         lvl.markForUpdate(posX, posY, MINUPDATERADIUS);
         int drawX = (int) (posX * lvl.getTileDim());
         int drawY = (int) ((posY - HALFTILEDIM) * lvl.getTileDim());
@@ -13,8 +13,6 @@ import java.util.HashMap;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
 
-import bm.Bomb;
-import bm.Player;
 import bm.input.KeyPoller;
 import bm.io.LevelParser;
 import bm.sfx.SoundManager;
@@ -146,7 +144,6 @@ public class GameComponent extends JComponent implements Runnable {
     }
 
     private void initializePlayers() {
-        Player.resetPlayers();
         player = new FxPlayer(bLevel, "tobi", 0xff0000ff, 0xff00ff00, 1, 1);
         hud = new HUD(player, (int) (height * 0.1));
         player2 = new FxPlayer(bLevel, "ulf", 0xff00ff00, 0xff00aa00,
@@ -165,8 +162,7 @@ public class GameComponent extends JComponent implements Runnable {
         player.draw(gameG);
         player2.draw(gameG);
 
-        int randomOffset = (int) (Math.random() * 2 * Bomb.explodeCount)
-                - Bomb.explodeCount * 2;
+        int randomOffset = bLevel.getShakeOffset();
 
         dbg.setColor(Color.BLACK);
         dbg.fillRect(0, 0, width, height);
@@ -26,6 +26,10 @@ public class NetworkKeyPoller extends KeyPoller {
     public static final byte ATTACK = 4;
 
     private DataOutputStream toServer;
+    // die Tasten, die der Server demnach für gedrückt hält, und die Anzahl
+    // der PRESSED- und RELEASED-Nachrichten, siehe getInputs()
+    private final boolean[] keyPressed = new boolean[5];
+    private int inputs;
 
     public NetworkKeyPoller(DataOutputStream toServer) {
         super();
@@ -55,6 +59,10 @@ public class NetworkKeyPoller extends KeyPoller {
     }
 
     private void sendKeyPress(byte keyCode) {
+        synchronized (this) {
+            keyPressed[keyCode] = true;
+            inputs++;
+        }
         try {
             toServer.writeByte(PRESSED | keyCode);
             toServer.flush();
@@ -86,6 +94,10 @@ public class NetworkKeyPoller extends KeyPoller {
     }
 
     private void sendKeyRelease(byte keyCode) {
+        synchronized (this) {
+            keyPressed[keyCode] = false;
+            inputs++;
+        }
         try {
             toServer.writeByte(RELEASED | keyCode);
             toServer.flush();
@@ -94,4 +106,19 @@ public class NetworkKeyPoller extends KeyPoller {
         }
     }
 
+    /**
+     * Gibt die Anzahl der bisher gesendeten PRESSED- und RELEASED-Nachrichten
+     * zurück und kopiert die Tasten (LEFT bis ATTACK), die der Server nach
+     * ihnen für gedrückt hält, in keys. Der Server zählt die Nachrichten
+     * genauso mit, die Anzahl nummeriert also die Eingaben (siehe
+     * bm.network.Prediction).
+     * 
+     * @param keys Feld mit mindestens fünf Einträgen für die Tasten.
+     * @return Die Anzahl der gesendeten Eingaben.
+     */
+    public synchronized int getInputs(boolean[] keys) {
+        System.arraycopy(keyPressed, 0, keys, 0, keyPressed.length);
+        return inputs;
+    }
+
 }
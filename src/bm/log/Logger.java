@@ -35,6 +35,7 @@ public class Logger {
 
     private BufferedWriter bfWrt;
     private boolean verbose = false;
+    private boolean quiet = false;
     private boolean available;
 
     /*
@@ -99,6 +100,29 @@ public class Logger {
         return STATICINSTANCE.verbose && STATICINSTANCE.available;
     }
 
+    /**
+     * Static method which sets the Logger to be quiet. This does not in any
+     * way affect the Logger internal behavior. It is rather meant as a globally
+     * accessible flag for tools that run many matches without anyone watching,
+     * so messages meant for the console (like the kills reported by Player)
+     * are not printed.
+     * 
+     * @param quiet New value for the quiet flag of the static Logger instance.
+     */
+    public static void setQuiet(boolean quiet) {
+        STATICINSTANCE.quiet = quiet;
+    }
+
+    /**
+     * Returns true if the static Logger instance is set to be quiet, see
+     * setQuiet(quiet).
+     * 
+     * @return true if the static Logger instance is set to be quiet.
+     */
+    public static boolean quiet() {
+        return STATICINSTANCE.quiet;
+    }
+
     /**
      * Closes the OutputStream (rather BufferedWriter) used by the static Logger
      * instance. It is recommended to invoke this method when the program is
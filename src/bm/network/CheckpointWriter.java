@@ -0,0 +1,139 @@
+package bm.network;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import bm.Checkpoint;
+
+/**
+ * This class provides a thread writing the Checkpoints of a GameManager to a
+ * file, so the match can be restored after the server has crashed (see
+ * GameManager.restore()). The GameManager hands over its snapshots through
+ * offer() and goes on right away; if it is faster than the disk, snapshots
+ * that have not been written yet are replaced by newer ones.
+ * 
+ * Every Checkpoint is written to a temporary file first, which is then moved
+ * over the previous one. A crash while writing thus leaves the previous
+ * Checkpoint intact. Once the match is over or the server is shut down, the
+ * CheckpointWriter is closed and its file deleted (see close() and delete()),
+ * so the match is not restored again.
+ */
+final class CheckpointWriter implements Runnable {
+
+    private final File file; // the file holding the last Checkpoint
+    private final File temp; // the file the next Checkpoint is written to
+    private final Thread thread; // the thread writing the Checkpoints
+    private Checkpoint next; // the Checkpoint to be written next or null
+    private boolean closed; // true once close() has been called
+
+    /**
+     * Creates a new CheckpointWriter writing to the given file and starts its
+     * thread.
+     * 
+     * @param path Path to the file the Checkpoints are written to.
+     */
+    CheckpointWriter(String path) {
+        file = new File(path);
+        temp = new File(path + ".tmp");
+        thread = new Thread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Hands over the given Checkpoint to be written as soon as possible.
+     * 
+     * @param checkpoint The Checkpoint to be written.
+     */
+    synchronized void offer(Checkpoint checkpoint) {
+        if (closed)
+            return;
+        next = checkpoint;
+        notifyAll();
+    }
+
+    /**
+     * Stops the thread, dropping the Checkpoint that has not been written yet.
+     * A Checkpoint being written is finished first, so the file always holds a
+     * whole one. Nothing is written after this method has returned.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+            next = null;
+            thread.interrupt();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deletes the file holding the last Checkpoint and the temporary file, if
+     * any. Must only be called once this CheckpointWriter has been closed.
+     */
+    void delete() {
+        file.delete();
+        temp.delete();
+    }
+
+    /**
+     * Waits for the next Checkpoint to be written and takes it.
+     * 
+     * @return The Checkpoint to be written.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    private synchronized Checkpoint take() throws InterruptedException {
+        while (next == null || closed)
+            wait();
+        Checkpoint checkpoint = next;
+        next = null;
+        return checkpoint;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                try {
+                    write(take());
+                } catch (IOException e) {
+                    // keep the previous Checkpoint and try again next time
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed, see close()
+        }
+    }
+
+    /**
+     * Writes the given Checkpoint to the temporary file, forces it to the disk
+     * and replaces the previous Checkpoint by it.
+     * 
+     * @param checkpoint The Checkpoint to be written.
+     * @throws IOException If the Checkpoint cannot be written.
+     */
+    private void write(Checkpoint checkpoint) throws IOException {
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(stream));
+            checkpoint.write(out);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+}
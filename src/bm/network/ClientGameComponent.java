@@ -11,11 +11,13 @@ import java.awt.event.KeyEvent;
 import java.awt.image.VolatileImage;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -23,7 +25,7 @@ import java.util.List;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
 
-import bm.Bomb;
+import bm.Player;
 import bm.gfx.FxLevel;
 import bm.gfx.FxPlayer;
 import bm.gfx.Texture;
@@ -48,6 +50,11 @@ public class ClientGameComponent extends JComponent implements Runnable {
     public static final byte PAUSE = (byte) (9 << 4);
     public static final byte UNPAUSE = 1;
     public static final byte MOVE = (byte) (10 << 4);
+    public static final byte HASH = (byte) (11 << 4);
+    public static final byte RESYNC = (byte) (12 << 4);
+    public static final byte SNAPSHOT = (byte) (13 << 4);
+    public static final byte ACK = (byte) (14 << 4);
+    public static final byte CORRECTION = (byte) (15 << 4);
 
     public static final byte COLOR = 1;
     public static final byte LEFTMOVE = 0x01;
@@ -86,6 +93,8 @@ public class ClientGameComponent extends JComponent implements Runnable {
     // managet die Tastatur.. stellt im Grunde eine auf Polling basierende
     // Lösung dar (statt Interrupts)
     private NetworkKeyPoller keyPoller;
+    // bewegt den eigenen Spieler sofort, siehe Prediction
+    private Prediction prediction;
 
     // fuer die Pause(ntaste)
     private boolean pausePressed = false;
@@ -128,15 +137,22 @@ public class ClientGameComponent extends JComponent implements Runnable {
 
     private static final Color STATBG = new Color(0x88000000);
 
-    private byte myID;
+    private int myID;
     private boolean playerReceived;
     private List<FxPlayer> players;
 
     private Socket socket;
+    private DatagramClient datagramClient; // null if connected over TCP
     private DataOutputStream toServer;
     private DataInputStream fromServer;
 
     private FxLevel bLevel;
+    private int lastSnapshot = -1; // die Id des zuletzt angewendeten
+
+    // a RESYNC is requested once the hashes differ this many times in a row,
+    // as the server may be a tick ahead of this client
+    private static final int MISMATCHES = 2;
+    private int mismatches;
 
     private int fps = 0, ups = 0; // wird durch den main-loop gesetzt
     private static final int[] FPSCOLORS = new int[] { 0xffff0000, 0xffffff00 };
@@ -145,6 +161,17 @@ public class ClientGameComponent extends JComponent implements Runnable {
 
     public ClientGameComponent(String playerName, int fstClr, int sndClr,
             String host, int port) {
+        this(playerName, fstClr, sndClr, host, port, false);
+    }
+
+    /**
+     * Verbindet sich mit dem Server, wahlweise über UDP statt TCP (siehe
+     * DatagramClient). Über UDP hält ein verlorenes Paket nicht alle
+     * folgenden auf; die Spieler werden dann allein durch die SNAPSHOTs
+     * bewegt, die der Server jeden Tick schickt.
+     */
+    public ClientGameComponent(String playerName, int fstClr, int sndClr,
+            String host, int port, boolean datagrams) {
         super();
         setFocusable(true);
         // soundManager.repeatSound(0);
@@ -153,17 +180,29 @@ public class ClientGameComponent extends JComponent implements Runnable {
         initializePlayers();
 
         try {
-            socket = new Socket(host, 1337);
-            socket.setTcpNoDelay(true);
-            toServer = new DataOutputStream(new BufferedOutputStream(
-                    socket.getOutputStream()));
-            fromServer = new DataInputStream(new BufferedInputStream(
-                    socket.getInputStream()));
+            if (datagrams) {
+                datagramClient = new DatagramClient(host, port);
+                toServer = new DataOutputStream(
+                        datagramClient.getOutputStream());
+                fromServer = new DataInputStream(new BufferedInputStream(
+                        datagramClient.getInputStream()));
+            } else {
+                socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                toServer = new DataOutputStream(new BufferedOutputStream(
+                        socket.getOutputStream()));
+                fromServer = new DataInputStream(new BufferedInputStream(
+                        socket.getInputStream()));
+            }
             keyPoller = new NetworkKeyPoller(toServer);
-
-            // receive ID
-            myID = fromServer.readByte();
-            System.out.println("Connected with ID " + myID);
+            prediction = new Prediction(keyPoller);
+            if (datagramClient != null)
+                datagramClient.setHandler(new DatagramClient.Handler() {
+                    @Override
+                    public void handle(byte[] message) throws IOException {
+                        receiveUnreliable(message);
+                    }
+                });
 
             // send color
             toServer.writeInt(fstClr);
@@ -171,6 +210,11 @@ public class ClientGameComponent extends JComponent implements Runnable {
 
             // send your name!
             toServer.writeChars(playerName + '\0');
+            toServer.flush();
+
+            // receive ID
+            myID = fromServer.readShort();
+            System.out.println("Connected with ID " + myID);
 
             playerReceived = false;
             new ServerInputThread();
@@ -227,11 +271,14 @@ public class ClientGameComponent extends JComponent implements Runnable {
         players = new ArrayList<FxPlayer>();
     }
 
-    private void createNewPlayer(byte num, double posX, double posY,
-            String name, int fstClr, int sndClr) {
-        players.add(num, new FxPlayer(bLevel, name, fstClr, sndClr, posX, posY));
-        if (num == myID)
+    private void createNewPlayer(int num, int posX, int posY, String name,
+            int fstClr, int sndClr) {
+        players.add(num, new FxPlayer(bLevel, name, fstClr, sndClr,
+                (double) posX / Player.UNIT, (double) posY / Player.UNIT));
+        if (num == myID) {
+            prediction.setPlayer(players.get(num));
             playerReceived = true;
+        }
     }
 
     /**
@@ -329,7 +376,7 @@ public class ClientGameComponent extends JComponent implements Runnable {
     /**
      * Startet das Programm ;-)
      * 
-     * @param args Bisher werden alle Parameter ignoriert.
+     * @param args "-udp", um über UDP statt TCP zu spielen.
      */
     public static void main(String[] args) {
         int fstClr = (int) (Math.random() * Integer.MAX_VALUE);
@@ -343,8 +390,9 @@ public class ClientGameComponent extends JComponent implements Runnable {
         String host = "sparrowprince.dyndns-remote.com";
         host = "localhost";
 
+        boolean datagrams = args.length > 0 && args[0].equals("-udp");
         ClientGameComponent bGui = new ClientGameComponent("tobi", fstClr,
-                sndClr, host, 1337);
+                sndClr, host, 1337, datagrams);
 
         frame.add(bGui);
         frame.pack(); // passt die Groesse dem Inhalt an
@@ -421,6 +469,9 @@ public class ClientGameComponent extends JComponent implements Runnable {
      * sichtbare) Updates an der Spielumgebung durchführt. Hierzu gehören das
      * Einlesen von Tastatureingaben, Bewegen des Spielerobjekts, Herunterzählen
      * des BombenCounters etc.
+     * 
+     * Der eigene Spieler wird dabei schon vorhergesagt, bevor der Server die
+     * Tasten erhalten hat (siehe Prediction); seine MOVEs werden ignoriert.
      */
     public void bombermanUpdate() {
         if (bLevel == null)
@@ -444,8 +495,11 @@ public class ClientGameComponent extends JComponent implements Runnable {
 
         bLevel.update();
 
-        for (int i = 0; i < players.size(); i++)
-            players.get(i).update();
+        synchronized (prediction) { // die Korrekturen kommen dazwischen
+            prediction.tick();
+            for (int i = 0; i < players.size(); i++)
+                players.get(i).update();
+        }
         if (keyPoller.isKeyDown(KeyEvent.VK_F1))
             showStats = true;
         else showStats = false;
@@ -453,8 +507,7 @@ public class ClientGameComponent extends JComponent implements Runnable {
             SoundManager.staticInstance.decreaseVolume();
         if (keyPoller.isKeyDown(KeyEvent.VK_P))
             SoundManager.staticInstance.increaseVolume();
-        randomOffset = (int) (Math.random() * 2 * Bomb.explodeCount)
-                - Bomb.explodeCount * 2;
+        randomOffset = bLevel.getShakeOffset();
     }
 
     private void rescale() {
@@ -468,6 +521,156 @@ public class ClientGameComponent extends JComponent implements Runnable {
         initializeGraphics();
     }
 
+    /**
+     * Verarbeitet eine Nachricht des Servers, deren Schlüsselwort schon
+     * gelesen wurde. Wird mit der Sperre von prediction aufgerufen, da die
+     * Nachrichten über TCP bzw. den zuverlässigen Kanal und die über den
+     * unzuverlässigen Kanal von verschiedenen Threads gelesen werden.
+     * 
+     * @param keyword Das Schlüsselwort der Nachricht.
+     * @param in Die Eingabe, aus der der Rest der Nachricht gelesen wird.
+     * @throws IOException Falls die Nachricht nicht gelesen werden kann.
+     */
+    private void decode(byte keyword, DataInputStream in) throws IOException {
+        byte rest;
+        int num;
+        boolean left, right, up, down;
+        byte dirX, dirY;
+        rest = (byte) (keyword & ~KEYWORD);
+        keyword &= KEYWORD;
+        switch (keyword) {
+        case MOVE:
+            dirX = dirY = 0;
+            num = in.readShort();
+            left = (rest & LEFTMOVE) != 0;
+            right = (rest & RIGHTMOVE) != 0;
+            up = (rest & UPMOVE) != 0;
+            down = (rest & DOWNMOVE) != 0;
+            if (left)
+                dirX--;
+            if (right)
+                dirX++;
+            if (up)
+                dirY--;
+            if (down)
+                dirY++;
+            if (num != myID) // wird vorhergesagt
+                players.get(num).move(dirX, dirY);
+            break;
+        case CORRECTION:
+            int inputs = in.readInt();
+            int ticks = in.readShort();
+            int fixedX = in.readInt();
+            int fixedY = in.readInt();
+            prediction.correct(inputs, ticks, fixedX, fixedY);
+            break;
+        case PLAYER:
+            int fstClr = 0,
+            sndClr = 0;
+            String name = "";
+            if (rest == COLOR) {
+                fstClr = in.readInt();
+                sndClr = in.readInt();
+                name = "";
+                char buffer;
+                while ((buffer = in.readChar()) != '\0')
+                    name += buffer;
+            }
+            num = in.readShort();
+            int posX = in.readInt();
+            int posY = in.readInt();
+            if (num >= players.size() || players.get(num) == null)
+                createNewPlayer(num, posX, posY, name, fstClr, sndClr);
+            else players.get(num).setFixedPos(posX, posY);
+            break;
+        case BOMB:
+            boolean quadDamage = (rest == QUADDAMAGE);
+            int bombX = in.readInt();
+            int bombY = in.readInt();
+            byte range = (byte) (in.readByte() & 0xFF);
+            num = in.readShort();
+            bLevel.putBomb(bombX, bombY, players.get(num), range, quadDamage);
+            break;
+        case POWERUP:
+            bLevel.setNextPowerup(rest);
+            System.out.println("Powerup " + rest);
+            break;
+        case LEVEL:
+            int w = in.readInt();
+            int h = in.readInt();
+            long seed = in.readLong();
+            short[][] tiles = new short[w][h];
+            System.out.println("w" + w + "h" + h);
+            for (int i = 0; i < w; i++)
+                for (int j = 0; j < h; j++)
+                    tiles[i][j] = in.readShort();
+            if (in.readByte() != END)
+                System.exit(-1);
+            System.out.println("Received Level.");
+            bLevel = new FxLevel(tiles, width, height, false, seed);
+            initializeGraphics();
+            break;
+        case SNAPSHOT:
+            int id = in.readInt();
+            int base = in.readInt();
+            prediction.applySnapshot(in, bLevel, players);
+            if (datagramClient != null)
+                datagramClient.acknowledge(id);
+            else {
+                toServer.writeByte(ACK | id & 0x0F);
+                toServer.flush();
+            }
+            if (base < 0)
+                System.out.println("Resynchronized Level.");
+            break;
+        case HASH:
+            long hash = in.readLong();
+            if (hash == prediction.getStateHash(bLevel))
+                mismatches = 0;
+            else if (++mismatches == MISMATCHES) {
+                mismatches = 0;
+                toServer.writeByte(RESYNC);
+                toServer.flush();
+            }
+            break;
+        // case END: break;
+        case OK:
+            break;
+        case PAUSE:
+            if (rest == UNPAUSE)
+                paused = false;
+            else paused = true;
+            break;
+        }
+    }
+
+    /**
+     * Verarbeitet, was der Server über den unzuverlässigen Kanal geschickt hat
+     * (siehe DatagramClient): einen SNAPSHOT und die Nachrichten über den
+     * Zustand, zu dem er führt. Er wird angewendet, sobald seine Basis
+     * angewendet wurde, ohne auf den zuverlässigen Kanal zu warten; ein
+     * älterer oder einer, dessen Basis noch fehlt, wird mitsamt dem Rest
+     * verworfen.
+     * 
+     * @param message Die Nachrichten des Servers.
+     * @throws IOException Falls die Nachrichten nicht gelesen werden können.
+     */
+    private void receiveUnreliable(byte[] message) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                message));
+        synchronized (prediction) {
+            if (message[0] == SNAPSHOT) {
+                ByteBuffer header = ByteBuffer.wrap(message, 1, 8);
+                int id = header.getInt();
+                int base = header.getInt();
+                if (bLevel == null || id <= lastSnapshot || base > lastSnapshot)
+                    return;
+            }
+            while (in.available() > 0)
+                decode(in.readByte(), in);
+        }
+    }
+
     private class ServerInputThread implements Runnable {
 
         boolean running = true;
@@ -478,88 +681,12 @@ public class ClientGameComponent extends JComponent implements Runnable {
 
         @Override
         public void run() {
-            byte keyword, rest, num;
-            boolean left, right, up, down;
-            byte dirX, dirY;
+            byte keyword;
             while (running) {
                 try {
-                    keyword = (byte) (fromServer.readByte() & 0xFF);
-                    rest = (byte) (keyword & ~KEYWORD);
-                    keyword &= KEYWORD;
-                    switch (keyword) {
-                    case MOVE:
-                        dirX = dirY = 0;
-                        num = (byte) (fromServer.readByte() & 0xFF);
-                        left = (rest & LEFTMOVE) != 0;
-                        right = (rest & RIGHTMOVE) != 0;
-                        up = (rest & UPMOVE) != 0;
-                        down = (rest & DOWNMOVE) != 0;
-                        if (left)
-                            dirX--;
-                        if (right)
-                            dirX++;
-                        if (up)
-                            dirY--;
-                        if (down)
-                            dirY++;
-                        players.get(num).move(dirX, dirY);
-                        break;
-                    case PLAYER:
-                        int fstClr = 0,
-                        sndClr = 0;
-                        String name = "";
-                        if (rest == COLOR) {
-                            fstClr = fromServer.readInt();
-                            sndClr = fromServer.readInt();
-                            name = "";
-                            char buffer;
-                            while ((buffer = fromServer.readChar()) != '\0')
-                                name += buffer;
-                        }
-                        num = (byte) (fromServer.readByte() & 0xFF);
-                        double posX = fromServer.readDouble();
-                        double posY = fromServer.readDouble();
-                        if (num >= players.size() || players.get(num) == null)
-                            createNewPlayer(num, posX, posY, name, fstClr,
-                                    sndClr);
-                        else players.get(num).setPos(posX, posY);
-                        break;
-                    case BOMB:
-                        boolean quadDamage = (rest == QUADDAMAGE);
-                        int bombX = fromServer.readInt();
-                        int bombY = fromServer.readInt();
-                        byte range = (byte) (fromServer.readByte() & 0xFF);
-                        num = fromServer.readByte();
-                        bLevel.putBomb(bombX, bombY, players.get(num), range,
-                                quadDamage);
-                        break;
-                    case POWERUP:
-                        bLevel.setNextPowerup(rest);
-                        System.out.println("Powerup " + rest);
-                        break;
-                    case LEVEL:
-                        int w = fromServer.readInt();
-                        int h = fromServer.readInt();
-                        short[][] tiles = new short[w][h];
-                        System.out.println("w" + w + "h" + h);
-                        for (int i = 0; i < w; i++)
-                            for (int j = 0; j < h; j++)
-                                tiles[i][j] = fromServer.readShort();
-                        if (fromServer.readByte() != END)
-                            System.exit(-1);
-                        System.out.println("Received Level.");
-                        bLevel = new FxLevel(tiles, width, height, false);
-                        initializeGraphics();
-                        break;
-                    // case TILE: break;
-                    // case END: break;
-                    case OK:
-                        break;
-                    case PAUSE:
-                        if (rest == UNPAUSE)
-                            paused = false;
-                        else paused = true;
-                        break;
+                    keyword = fromServer.readByte();
+                    synchronized (prediction) { // siehe receiveUnreliable()
+                        decode(keyword, fromServer);
                     }
                 } catch (IOException e) {
                     // TODO Auto-generated catch block
@@ -0,0 +1,257 @@
+package bm.network;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import bm.Snapshot;
+
+/**
+ * This class provides the connection of a NetworkServer to a single client,
+ * whatever transport it uses: a TCP stream (see StreamConnection) or UDP
+ * datagrams (see DatagramConnection).
+ * 
+ * A client introduces itself first: two ints (its colors) and its name as
+ * chars terminated by '\0'. If it does not do so within
+ * NetworkServer.HANDSHAKETIMEOUT, it is disconnected. Then it joins the match
+ * chosen by the NetworkServer (see GameManager.join()), which tells it the
+ * number of its Player at the start of the next tick. From then on, every byte
+ * it sends is a message of its own that is handed to the GameManager (see
+ * GameManager.input()).
+ * 
+ * The GameManager writes to the client through getOutput(); what it writes is
+ * sent once the output is flushed. SNAPSHOTs and the messages that merely
+ * describe the state of a tick are handed over separately (see sendSnapshot()
+ * and sendState()), so each transport can send them its own way.
+ */
+abstract class Connection {
+
+    /** Maximum number of chars of the name a client introduces itself with. */
+    static final int MAXNAMELENGTH = 32;
+
+    protected final NetworkServer server;
+    final long accepted; // System.nanoTime() when the client connected
+    private final ByteBuffer in; // input that has not been decoded yet
+    private int fstClr, sndClr; // the colors the client introduced itself with
+    private StringBuilder name; // its name so far, null before the colors
+
+    private GameManager match; // the match the client has joined or null
+    private int num = -1; // the number of the client's Player
+    final boolean[] keyPressed = new boolean[5]; // see GameManager.input()
+    int inputs; // PRESSED and RELEASED received, guarded by keyPressed
+    volatile boolean resyncRequested; // see GameManager.RESYNC
+    Snapshot joined; // see GameManager.sendSnapshots()
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a new Connection to a client that has just connected.
+     * 
+     * @param server The NetworkServer that has accepted the client.
+     */
+    protected Connection(NetworkServer server) {
+        this.server = server;
+        accepted = System.nanoTime();
+        in = ByteBuffer.allocateDirect(NetworkServer.BUFFERSIZE);
+    }
+
+    /**
+     * Returns the stream the GameManager writes the messages for the client
+     * to. They are sent once it is flushed.
+     * 
+     * @return The output to the client.
+     */
+    abstract DataOutputStream getOutput();
+
+    /**
+     * Sends the client the given SNAPSHOT, which follows whatever has been
+     * written to the output so far. Is only called by the thread holding the
+     * GameManager's lock.
+     * 
+     * @param snapshot The encoded SNAPSHOT (see GameManager.writeSnapshot()).
+     * @param id The id of the Snapshot.
+     * @throws IOException If the SNAPSHOT cannot be written.
+     */
+    abstract void sendSnapshot(byte[] snapshot, int id) throws IOException;
+
+    /**
+     * Sends the client the given message about the state of the current tick,
+     * such as a CORRECTION or a HASH, which a later one of its kind makes up
+     * for if it is lost. The bytes are copied, so the array may be reused. Is
+     * only called by the thread holding the GameManager's lock.
+     * 
+     * @param b The array holding the encoded message.
+     * @param off The offset of the message in the array.
+     * @param len The length of the message.
+     * @throws IOException If the message cannot be written.
+     */
+    abstract void sendState(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Counts an ACK the client has sent along with its other input. Is invoked
+     * by the thread of the NetworkServer.
+     * 
+     * @param nibble The lowest four bits of the id of the Snapshot.
+     */
+    abstract void acknowledge(int nibble);
+
+    /**
+     * Returns the id of the latest Snapshot the client is known to have
+     * applied. Is only called by the thread holding the GameManager's lock.
+     * 
+     * @return The id of the Snapshot or -1 if there is none.
+     */
+    abstract int getAckedSnapshot();
+
+    /**
+     * Returns true if the client is connected over UDP. Such a client is sent
+     * a Snapshot every tick instead of the MOVEs of the Players.
+     * 
+     * @return true if the client uses datagrams, false otherwise.
+     */
+    abstract boolean isDatagram();
+
+    /**
+     * Releases the transport once this Connection has been closed. Further
+     * output is dropped.
+     */
+    protected abstract void release();
+
+    /**
+     * Returns the name the client has introduced itself with.
+     * 
+     * @return The name of the client.
+     */
+    String getName() {
+        return name.toString();
+    }
+
+    /**
+     * Returns the first color the client has introduced itself with.
+     * 
+     * @return The first color of the client.
+     */
+    int getFstClr() {
+        return fstClr;
+    }
+
+    /**
+     * Returns the second color the client has introduced itself with.
+     * 
+     * @return The second color of the client.
+     */
+    int getSndClr() {
+        return sndClr;
+    }
+
+    /**
+     * Returns the number of the client's Player. Is only called by the thread
+     * holding the GameManager's lock.
+     * 
+     * @return The number of the Player or -1 if the client has not been let in
+     *         yet.
+     */
+    int getNum() {
+        return num;
+    }
+
+    /**
+     * Tells this Connection that the client has been let in as the num'th
+     * Player of its match.
+     * 
+     * @param num The number of the client's Player.
+     */
+    void joined(int num) {
+        this.num = num;
+    }
+
+    /**
+     * Returns true if the client has introduced itself and joined a match.
+     * 
+     * @return true if the client has introduced itself, false otherwise.
+     */
+    boolean hasIntroduced() {
+        return match != null;
+    }
+
+    /**
+     * Returns true if this Connection has been closed.
+     * 
+     * @return true if this Connection has been closed, false otherwise.
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the buffer the client's input is put into before it is decoded
+     * (see decode()). It is only used by the NetworkServer's thread.
+     * 
+     * @return The input buffer.
+     */
+    protected ByteBuffer getInput() {
+        return in;
+    }
+
+    /**
+     * Decodes the input that has been put into the input buffer. Is invoked by
+     * the NetworkServer's thread whenever the client has sent something.
+     * 
+     * @throws IOException If the client misbehaves.
+     */
+    protected void decode() throws IOException {
+        in.flip();
+        if (match == null)
+            readIntroduction();
+        while (match != null && in.hasRemaining())
+            match.input(this, in.get());
+        in.compact();
+    }
+
+    /**
+     * Reads as much of the client's introduction as has arrived. Once it is
+     * complete, the client joins the match the NetworkServer finds for it.
+     * 
+     * @throws IOException If the introduction is invalid or there is no room.
+     */
+    private void readIntroduction() throws IOException {
+        if (name == null) {
+            if (in.remaining() < 8)
+                return;
+            fstClr = in.getInt() | 0xFF000000;
+            sndClr = in.getInt() | 0xFF000000;
+            name = new StringBuilder();
+        }
+        while (in.remaining() >= 2) {
+            char c = in.getChar();
+            if (c != '\0') {
+                if (name.length() == MAXNAMELENGTH)
+                    throw new IOException("Name too long.");
+                name.append(c);
+                continue;
+            }
+            GameManager match = server.findMatch(name.toString());
+            if (match == null)
+                throw new IOException("No room left.");
+            this.match = match; // before it can be let in and closed
+            match.join(this);
+            return;
+        }
+    }
+
+    /**
+     * Closes the connection to the client and lets its Player go (see
+     * GameManager.leave()). Further output is dropped. May be called by any
+     * thread, even more than once.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        release();
+        if (match != null)
+            match.leave(this);
+    }
+}
@@ -0,0 +1,371 @@
+package bm.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * This class provides the client side of a connection to a NetworkServer over
+ * UDP (see DatagramSession), for clients that would rather not have a lost
+ * packet hold up everything after it.
+ * 
+ * It looks like a socket: what is written to getOutputStream() is sent over
+ * the reliable channel once it is flushed, and getInputStream() returns the
+ * server's messages in the order they have been sent. What the server sends
+ * over the unreliable channel (a SNAPSHOT and the messages about the state it
+ * leads to) is handed to the Handler set by setHandler() as soon as it
+ * arrives instead, so it is not held up by what the reliable channel waits
+ * for. As some of those may be lost, the Snapshots applied are to be
+ * acknowledged by acknowledge() rather than by writing an ACK; the server then
+ * bases the next ones on the latest of them.
+ * 
+ * A thread of its own receives the datagrams and sends what the session has to
+ * send again; another one hands the messages of the unreliable channel to the
+ * Handler. If the server has not been heard of for TIMEOUT or closes the
+ * connection, the input ends.
+ */
+public class DatagramClient {
+
+    /**
+     * Handles what the server has sent over the unreliable channel.
+     */
+    public interface Handler {
+
+        /**
+         * Handles a message of the unreliable channel. Is invoked by a
+         * thread of its own, one message at a time and never with an older
+         * one after a newer one. It may wait for a thread reading the input,
+         * as the datagrams keep being received meanwhile.
+         * 
+         * @param message The message, a whole number of the server's
+         *            messages.
+         * @throws IOException If the message is invalid; the connection is
+         *             closed then.
+         */
+        void handle(byte[] message) throws IOException;
+    }
+
+    /** Time (in milliseconds) without a datagram before giving up. */
+    public static final long TIMEOUT = DatagramConnection.TIMEOUT;
+    // time (in milliseconds) between two polls of the session
+    private static final int POLLINTERVAL = 5;
+
+    private final DatagramSocket socket;
+    private final Session session;
+    private final Input input;
+    private final Output output;
+    private final ArrayDeque<byte[]> unreliable; // see Dispatcher
+    private volatile Handler handler; // see setHandler()
+    private volatile boolean closed;
+
+    /**
+     * Creates a new DatagramClient connected to the NetworkServer listening on
+     * the given host and port. Nothing is sent until the output is flushed.
+     * 
+     * @param host The host of the NetworkServer.
+     * @param port The port of the NetworkServer.
+     * @throws IOException If the socket cannot be opened.
+     */
+    public DatagramClient(String host, int port) throws IOException {
+        socket = new DatagramSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        socket.setSoTimeout(POLLINTERVAL);
+        session = new Session();
+        input = new Input();
+        output = new Output();
+        unreliable = new ArrayDeque<byte[]>();
+        Thread receiver = new Thread(new Receiver());
+        receiver.setDaemon(true);
+        receiver.start();
+        Thread dispatcher = new Thread(new Dispatcher());
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Returns the stream of messages from the server. Reading blocks until
+     * something has arrived; the stream ends once the connection is closed.
+     * 
+     * @return The input from the server.
+     */
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    /**
+     * Returns the stream to the server. What is written to it is sent
+     * reliably once it is flushed. It may be written to by any thread.
+     * 
+     * @return The output to the server.
+     */
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Sets the Handler of what the server sends over the unreliable channel.
+     * What arrives before it is set is dropped.
+     * 
+     * @param handler The Handler.
+     */
+    public void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Acknowledges the Snapshot of the given id, which has been applied. The
+     * ACK is sent unreliably, but carries the whole id, so a later one makes
+     * up for it if it is lost.
+     * 
+     * @param id The id of the Snapshot.
+     * @throws IOException If the ACK cannot be sent.
+     */
+    public void acknowledge(int id) throws IOException {
+        byte[] ack = ByteBuffer.allocate(5).put(GameManager.ACK).putInt(id)
+                .array();
+        session.sendUnreliable(ack, 0, ack.length);
+    }
+
+    /**
+     * Returns true if the connection has been closed, by either end.
+     * 
+     * @return true if the connection has been closed, false otherwise.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Tells the server that this client is leaving and closes the socket. The
+     * input ends once what has arrived has been read.
+     */
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        session.close();
+        socket.close();
+        input.end();
+        synchronized (unreliable) {
+            unreliable.notifyAll();
+        }
+    }
+
+    /*
+     * Receives the datagrams and polls the session until the connection is
+     * closed.
+     */
+    private class Receiver implements Runnable {
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[DatagramSession.MAXDATAGRAM];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (!closed) {
+                try {
+                    try {
+                        packet.setLength(buffer.length);
+                        socket.receive(packet);
+                        session.receive(ByteBuffer.wrap(buffer, 0,
+                                packet.getLength()));
+                    } catch (SocketTimeoutException e) {
+                        // nothing has arrived, time to poll
+                    }
+                    long idle = session.getIdleTime(System.nanoTime());
+                    if (idle / 1000000 >= TIMEOUT)
+                        throw new IOException("The server has timed out.");
+                    session.poll();
+                } catch (IOException e) {
+                    if (!closed)
+                        e.printStackTrace();
+                    close();
+                }
+            }
+        }
+    }
+
+    /*
+     * Hands the messages of the unreliable channel to the Handler until the
+     * connection is closed.
+     */
+    private class Dispatcher implements Runnable {
+
+        @Override
+        public void run() {
+            while (!closed) {
+                byte[] message;
+                synchronized (unreliable) {
+                    try {
+                        while (unreliable.isEmpty() && !closed)
+                            unreliable.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    message = unreliable.poll();
+                }
+                Handler handler = DatagramClient.this.handler;
+                if (message == null || handler == null)
+                    continue;
+                try {
+                    handler.handle(message);
+                } catch (IOException e) {
+                    if (!closed)
+                        e.printStackTrace();
+                    close();
+                }
+            }
+        }
+    }
+
+    /*
+     * The session with the server. Its reliable channel goes to the input,
+     * its unreliable one to the Handler.
+     */
+    private class Session extends DatagramSession {
+
+        @Override
+        protected void send(ByteBuffer datagram) throws IOException {
+            int offset = datagram.arrayOffset() + datagram.position();
+            socket.send(new DatagramPacket(datagram.array(), offset,
+                    datagram.remaining()));
+        }
+
+        @Override
+        protected void deliver(byte[] payload) {
+            input.append(payload);
+        }
+
+        @Override
+        protected void deliverUnreliable(byte[] payload) {
+            synchronized (unreliable) {
+                unreliable.add(payload);
+                unreliable.notifyAll();
+            }
+        }
+
+        @Override
+        protected void closed() {
+            closed = true;
+            socket.close();
+            input.end();
+            synchronized (unreliable) {
+                unreliable.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * The stream beneath getInputStream(), filled by the thread receiving the
+     * datagrams.
+     */
+    private class Input extends InputStream {
+
+        private byte[] buffer = new byte[8192];
+        private int start, end; // the bytes that have not been read
+        private boolean ended;
+
+        synchronized void append(byte[] b) {
+            if (end + b.length > buffer.length) {
+                if (end - start + b.length > buffer.length)
+                    buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length,
+                            end - start + b.length));
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            System.arraycopy(b, 0, buffer, end, b.length);
+            end += b.length;
+            notifyAll();
+        }
+
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            return await() ? buffer[start++] & 0xFF : -1;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len)
+                throws IOException {
+            if (len == 0)
+                return 0;
+            if (!await())
+                return -1;
+            int n = Math.min(len, end - start);
+            System.arraycopy(buffer, start, b, off, n);
+            start += n;
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return end - start;
+        }
+
+        @Override
+        public void close() {
+            DatagramClient.this.close();
+        }
+
+        /**
+         * Waits until there is something to read.
+         * 
+         * @return false if the input has ended.
+         */
+        private boolean await() throws IOException {
+            try {
+                while (start == end && !ended)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return start < end;
+        }
+    }
+
+    /*
+     * The stream beneath getOutputStream().
+     */
+    private class Output extends OutputStream {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void write(int b) {
+            bytes.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            bytes.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (closed)
+                throw new IOException("The connection has been closed.");
+            if (bytes.size() == 0)
+                return;
+            session.flush(bytes.toByteArray(), 0, bytes.size());
+            bytes.reset();
+        }
+
+        @Override
+        public void close() {
+            DatagramClient.this.close();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package bm.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * This class provides the connection of a NetworkServer to a single client
+ * over UDP (see DatagramSession), sharing the NetworkServer's DatagramChannel
+ * with all other such clients.
+ * 
+ * What the GameManager writes to getOutput() is sent over the reliable channel
+ * once it is flushed, so the roster, the Level, Bombs and POWERUPs arrive in
+ * order just like over TCP. A SNAPSHOT is sent over the unreliable channel
+ * instead, so a lost one does not hold up the next, together with the
+ * messages of the same tick handed to sendState(), which the client checks
+ * against it; if they do not fit into a single datagram, they are all sent
+ * reliably.
+ * The client applies an unreliable SNAPSHOT as soon as it has applied its
+ * base, and acknowledges every Snapshot it applies with an unreliable ACK
+ * carrying its whole id, so the latest of them is always known, whichever
+ * ones have been lost. A Snapshot sent reliably counts as acknowledged right
+ * away: it will arrive, and the client drops the SNAPSHOTs based on it until
+ * it has. So a client that has fallen behind is sent a single large
+ * SNAPSHOT, not one every tick until it catches up.
+ * 
+ * A client that has not been heard of for TIMEOUT is disconnected.
+ */
+final class DatagramConnection extends Connection {
+
+    /** Time (in milliseconds) without a datagram before giving up. */
+    static final long TIMEOUT = 10000;
+
+    private final DatagramChannel channel;
+    final SocketAddress address;
+    private final Session session;
+    private final ByteArrayOutputStream bytes; // output not flushed yet
+    private final DataOutputStream output; // see getOutput()
+    private final ByteArrayOutputStream state; // see sendState()
+    private volatile int acked = -1; // the latest Snapshot acknowledged
+
+    /**
+     * Creates a new DatagramConnection to the client at the given address.
+     * 
+     * @param server The NetworkServer that has received the client's first
+     *            datagram.
+     * @param channel The DatagramChannel of the NetworkServer.
+     * @param address The address of the client.
+     */
+    DatagramConnection(NetworkServer server, DatagramChannel channel,
+            SocketAddress address) {
+        super(server);
+        this.channel = channel;
+        this.address = address;
+        session = new Session();
+        bytes = new ByteArrayOutputStream();
+        state = new ByteArrayOutputStream();
+        output = new DataOutputStream(bytes) {
+            @Override
+            public void flush() {
+                DatagramConnection.this.flush();
+            }
+        };
+    }
+
+    @Override
+    DataOutputStream getOutput() {
+        return output;
+    }
+
+    @Override
+    void sendSnapshot(byte[] snapshot, int id) throws IOException {
+        int length = snapshot.length + state.size();
+        if (length > DatagramSession.MAXPAYLOAD) {
+            output.write(snapshot); // sent along with the other output
+            state.writeTo(output);
+            acknowledged(id);
+        } else {
+            // the SNAPSHOT goes first, the rest is about the state it leads to
+            ByteBuffer datagram = ByteBuffer.allocate(length).put(snapshot)
+                    .put(state.toByteArray());
+            session.sendUnreliable(datagram.array(), 0, length);
+        }
+        state.reset();
+    }
+
+    /**
+     * Keeps the given message to be sent along with the next SNAPSHOT, which
+     * is sent at the end of the same tick (see GameManager.sendSnapshots()).
+     */
+    @Override
+    void sendState(byte[] b, int off, int len) {
+        state.write(b, off, len);
+    }
+
+    @Override
+    void acknowledge(int nibble) {
+        // the unreliable ACKs carry the whole id, see Session
+    }
+
+    @Override
+    int getAckedSnapshot() {
+        return acked;
+    }
+
+    @Override
+    boolean isDatagram() {
+        return true;
+    }
+
+    /**
+     * Takes the given Snapshot as the latest one the client has applied
+     * unless a later one has been acknowledged already. May be called by any
+     * thread.
+     * 
+     * @param id The id of the Snapshot.
+     */
+    private synchronized void acknowledged(int id) {
+        if (id > acked)
+            acked = id;
+    }
+
+    /**
+     * Handles a datagram the client has sent. Is invoked by the thread of the
+     * NetworkServer.
+     * 
+     * @param datagram The datagram.
+     */
+    void receive(ByteBuffer datagram) {
+        try {
+            session.receive(datagram);
+        } catch (IOException e) {
+            close(); // the client misbehaves
+        }
+    }
+
+    /**
+     * Sends what the session has to send again and disconnects the client if
+     * it has not been heard of for TIMEOUT. Is invoked regularly by the thread
+     * of the NetworkServer.
+     * 
+     * @param now The current System.nanoTime().
+     */
+    void poll(long now) {
+        try {
+            if (session.getIdleTime(now) / 1000000 < TIMEOUT) {
+                session.poll();
+                return;
+            }
+        } catch (IOException e) {
+            // give up just the same
+        }
+        close();
+    }
+
+    /**
+     * Hands the output written so far over to the reliable channel.
+     */
+    private void flush() {
+        if (bytes.size() == 0)
+            return;
+        try {
+            session.flush(bytes.toByteArray(), 0, bytes.size());
+        } catch (IOException e) {
+            close(); // the client has gone or does not keep up
+        }
+        bytes.reset();
+    }
+
+    @Override
+    protected void release() {
+        session.close();
+        server.removeDatagramConnection(this);
+    }
+
+    /*
+     * The session with the client. Its reliable channel carries the client's
+     * input, its unreliable one the ACKs of Snapshots.
+     */
+    private class Session extends DatagramSession {
+
+        @Override
+        protected void send(ByteBuffer datagram) throws IOException {
+            channel.send(datagram, address); // dropped if there is no room
+        }
+
+        @Override
+        protected void deliver(byte[] payload) throws IOException {
+            ByteBuffer in = getInput();
+            if (payload.length > in.remaining())
+                throw new IOException("Input too long.");
+            in.put(payload);
+            decode();
+        }
+
+        @Override
+        protected void deliverUnreliable(byte[] payload) {
+            if (payload.length == 5 && payload[0] == GameManager.ACK)
+                acknowledged(ByteBuffer.wrap(payload, 1, 4).getInt());
+        }
+
+        @Override
+        protected void closed() {
+            close();
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package bm.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * This class provides the reliability layer of a connection over UDP, which is
+ * the same at both ends (see DatagramConnection and DatagramClient). It
+ * carries two channels over the same datagrams:
+ * 
+ * The reliable channel is an ordered stream of bytes like TCP, cut into
+ * datagrams of at most MAXPAYLOAD bytes whenever it is flushed. Every
+ * datagram is numbered and sent again until the other end has acknowledged
+ * it; up to WINDOW of them may be on their way at the same time. The time to
+ * wait for an acknowledgement follows the measured round trip time (RTO).
+ * 
+ * The unreliable channel carries single messages that are never sent again,
+ * so a lost one does not hold up those that follow. Each one is delivered as
+ * soon as it arrives, whatever the reliable channel is waiting for; one that
+ * arrives after a later one is dropped, so the newest always wins.
+ * 
+ * Every datagram starts with a header of HEADERSIZE bytes: its kind, its
+ * number, the number of the next reliable datagram the sender expects and a
+ * bit for each of the 32 reliable datagrams after that one, which is set if
+ * the sender has already received it. Acknowledgements thus travel along with
+ * whatever is sent; if there is nothing to send, an ACKNOWLEDGE is sent on
+ * its own after ACKDELAY.
+ * 
+ * All methods are synchronized, so the thread writing to a session and the
+ * one receiving its datagrams may differ. poll() has to be called regularly,
+ * as retransmissions and delayed acknowledgements are sent from there.
+ */
+abstract class DatagramSession {
+
+    /** Kind of a datagram of the reliable channel. */
+    static final byte RELIABLE = 1;
+    /** Kind of a datagram of the unreliable channel. */
+    static final byte UNRELIABLE = 2;
+    /** Kind of a datagram that carries nothing but acknowledgements. */
+    static final byte ACKNOWLEDGE = 3;
+    /** Kind of a datagram telling the other end that the session is over. */
+    static final byte CLOSE = 4;
+
+    /** Size of the header of a datagram in bytes. */
+    static final int HEADERSIZE = 1 + 4 + 4 + 4;
+    /** Maximum size of the payload of a datagram, fitting a common MTU. */
+    static final int MAXPAYLOAD = 1200;
+    /** Maximum size of a datagram. */
+    static final int MAXDATAGRAM = HEADERSIZE + MAXPAYLOAD;
+    /** Maximum number of unacknowledged reliable datagrams. */
+    static final int WINDOW = 256;
+    /** Maximum number of bytes waiting to be sent before giving up. */
+    static final int MAXQUEUED = 1 << 20;
+
+    private static final long MILLISECOND = 1000000; // in nanoseconds
+    private static final long INITIALRTO = 200 * MILLISECOND;
+    private static final long MINRTO = 20 * MILLISECOND;
+    private static final long MAXRTO = 2000 * MILLISECOND;
+    private static final long ACKDELAY = 5 * MILLISECOND;
+
+    // the reliable datagrams sent, by number % WINDOW, null once acknowledged
+    private final byte[][] unacked = new byte[WINDOW][];
+    private final long[] sentAt = new long[WINDOW]; // last time sent
+    private final boolean[] resent = new boolean[WINDOW]; // see Karn's rule
+    private int oldest, next; // the oldest unacknowledged and next number
+    private final ArrayDeque<byte[]> waiting; // datagrams not in the window
+    private int queued; // payload waiting or unacknowledged, in bytes
+    private int nextUnreliable; // the number of the next unreliable datagram
+    private long srtt = -1, rttvar; // smoothed round trip time and variation
+    private long rto = INITIALRTO;
+
+    private int expected; // the number of the next reliable datagram
+    private final byte[][] early = new byte[WINDOW][]; // arrived too early
+    private int lastUnreliable = -1; // number of the last one delivered
+    private long ackOwed = -1; // since when an acknowledgement is owed
+    private long lastHeard; // the last time a datagram has been received
+    private boolean closed;
+
+    /**
+     * Creates a new DatagramSession.
+     */
+    protected DatagramSession() {
+        waiting = new ArrayDeque<byte[]>();
+        lastHeard = System.nanoTime();
+    }
+
+    /**
+     * Sends the given datagram to the other end.
+     * 
+     * @param datagram The datagram.
+     * @throws IOException If the datagram cannot be sent.
+     */
+    protected abstract void send(ByteBuffer datagram) throws IOException;
+
+    /**
+     * Handles the payload of the next datagram of the reliable channel.
+     * 
+     * @param payload The payload.
+     * @throws IOException If the payload is invalid.
+     */
+    protected abstract void deliver(byte[] payload) throws IOException;
+
+    /**
+     * Handles a message of the unreliable channel.
+     * 
+     * @param payload The message.
+     * @throws IOException If the message is invalid.
+     */
+    protected abstract void deliverUnreliable(byte[] payload)
+            throws IOException;
+
+    /**
+     * Handles the end of the session, as the other end has closed it.
+     */
+    protected abstract void closed();
+
+    /**
+     * Sends the given bytes over the reliable channel. They are cut into as
+     * many datagrams as needed; those that do not fit into the window are sent
+     * as soon as the ones before have been acknowledged.
+     * 
+     * @param b The bytes to be sent.
+     * @param off The offset of the first byte.
+     * @param len The number of bytes.
+     * @throws IOException If too many bytes are waiting to be sent.
+     */
+    synchronized void flush(byte[] b, int off, int len) throws IOException {
+        if (closed)
+            return;
+        for (int end = off + len; off < end; off += MAXPAYLOAD) {
+            int n = Math.min(MAXPAYLOAD, end - off);
+            byte[] datagram = new byte[HEADERSIZE + n];
+            datagram[0] = RELIABLE;
+            System.arraycopy(b, off, datagram, HEADERSIZE, n);
+            waiting.add(datagram);
+        }
+        queued += len;
+        if (queued > MAXQUEUED)
+            throw new IOException("Too much output waiting.");
+        fillWindow(System.nanoTime());
+    }
+
+    /**
+     * Sends the given message over the unreliable channel right away.
+     * 
+     * @param b The message.
+     * @param off The offset of its first byte.
+     * @param len Its length, at most MAXPAYLOAD bytes.
+     * @throws IOException If the datagram cannot be sent.
+     */
+    synchronized void sendUnreliable(byte[] b, int off, int len)
+            throws IOException {
+        if (len > MAXPAYLOAD)
+            throw new IllegalArgumentException("Message too long: " + len);
+        if (closed)
+            return;
+        ByteBuffer datagram = ByteBuffer.allocate(HEADERSIZE + len);
+        datagram.put(UNRELIABLE).putInt(nextUnreliable++);
+        datagram.position(HEADERSIZE);
+        datagram.put(b, off, len);
+        transmit(datagram.array());
+    }
+
+    /**
+     * Handles a datagram that has been received from the other end. Datagrams
+     * that are too short are ignored.
+     * 
+     * @param datagram The datagram.
+     * @throws IOException If a payload is invalid.
+     */
+    synchronized void receive(ByteBuffer datagram) throws IOException {
+        if (closed || datagram.remaining() < HEADERSIZE)
+            return;
+        long now = System.nanoTime();
+        lastHeard = now;
+        byte kind = datagram.get();
+        int number = datagram.getInt();
+        acknowledged(datagram.getInt(), datagram.getInt(), now);
+        switch (kind) {
+        case RELIABLE:
+            if (ackOwed < 0)
+                ackOwed = now; // even for a duplicate, as the ack was lost
+            if (number - expected < 0 || number - expected >= WINDOW
+                    || early[number & WINDOW - 1] != null)
+                break; // duplicate or too far ahead
+            early[number & WINDOW - 1] = payload(datagram);
+            while (early[expected & WINDOW - 1] != null) {
+                byte[] payload = early[expected & WINDOW - 1];
+                early[expected++ & WINDOW - 1] = null;
+                deliver(payload);
+            }
+            break;
+        case UNRELIABLE:
+            if (number - lastUnreliable <= 0)
+                break; // a later one has been delivered already
+            lastUnreliable = number;
+            deliverUnreliable(payload(datagram));
+            break;
+        case CLOSE:
+            closed = true;
+            closed();
+            break;
+        }
+    }
+
+    /**
+     * Sends the reliable datagrams again that have not been acknowledged in
+     * time and an ACKNOWLEDGE if one is owed for longer than ACKDELAY.
+     * 
+     * @throws IOException If a datagram cannot be sent.
+     */
+    synchronized void poll() throws IOException {
+        if (closed)
+            return;
+        long now = System.nanoTime();
+        boolean timedOut = false;
+        for (int number = oldest; number != next; number++) {
+            int slot = number & WINDOW - 1;
+            if (unacked[slot] == null || now - sentAt[slot] < rto)
+                continue;
+            transmit(unacked[slot]);
+            sentAt[slot] = now;
+            resent[slot] = true;
+            timedOut = true;
+        }
+        if (timedOut)
+            rto = Math.min(rto * 2, MAXRTO); // back off
+        if (ackOwed >= 0 && now - ackOwed >= ACKDELAY) {
+            byte[] datagram = new byte[HEADERSIZE];
+            datagram[0] = ACKNOWLEDGE;
+            transmit(datagram);
+        }
+    }
+
+    /**
+     * Tells the other end that the session is over and ends it.
+     */
+    synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        byte[] datagram = new byte[HEADERSIZE];
+        datagram[0] = CLOSE;
+        try {
+            transmit(datagram);
+        } catch (IOException e) {
+            // the other end will time out
+        }
+    }
+
+    /**
+     * Returns the time that has passed since the last datagram has been
+     * received.
+     * 
+     * @param now The current System.nanoTime().
+     * @return The time in nanoseconds.
+     */
+    synchronized long getIdleTime(long now) {
+        return now - lastHeard;
+    }
+
+    /**
+     * Sends the reliable datagrams waiting for room in the window.
+     */
+    private void fillWindow(long now) throws IOException {
+        while (!waiting.isEmpty() && next - oldest < WINDOW) {
+            byte[] datagram = waiting.poll();
+            ByteBuffer.wrap(datagram, 1, 4).putInt(next);
+            int slot = next++ & WINDOW - 1;
+            unacked[slot] = datagram;
+            sentAt[slot] = now;
+            resent[slot] = false;
+            transmit(datagram);
+        }
+    }
+
+    /**
+     * Sends the given datagram along with the current acknowledgements.
+     */
+    private void transmit(byte[] datagram) throws IOException {
+        int bits = 0;
+        for (int i = 0; i < 32; i++)
+            if (early[(expected + 1 + i) & WINDOW - 1] != null)
+                bits |= 1 << i;
+        ByteBuffer.wrap(datagram, 5, 8).putInt(expected).putInt(bits);
+        ackOwed = -1;
+        send(ByteBuffer.wrap(datagram));
+    }
+
+    /**
+     * Takes the given acknowledgements of the other end into account: every
+     * reliable datagram before ack and those whose bits are set.
+     */
+    private void acknowledged(int ack, int bits, long now) throws IOException {
+        if (ack - oldest > 0 && ack - next <= 0)
+            for (int number = oldest; number != ack; number++)
+                acknowledged(number & WINDOW - 1, now);
+        for (int i = 0; i < 32; i++) {
+            int number = ack + 1 + i;
+            if ((bits & 1 << i) != 0 && number - oldest >= 0
+                    && number - next < 0)
+                acknowledged(number & WINDOW - 1, now);
+        }
+        int before = oldest;
+        while (oldest != next && unacked[oldest & WINDOW - 1] == null)
+            oldest++;
+        if (oldest != before)
+            fillWindow(now);
+    }
+
+    /**
+     * Releases an acknowledged datagram, measuring the round trip time unless
+     * it has been sent more than once.
+     */
+    private void acknowledged(int slot, long now) {
+        if (unacked[slot] == null)
+            return;
+        queued -= unacked[slot].length - HEADERSIZE;
+        unacked[slot] = null;
+        if (resent[slot])
+            return;
+        long rtt = now - sentAt[slot];
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        rto = Math.max(MINRTO, Math.min(srtt + 4 * rttvar, MAXRTO));
+    }
+
+    private static byte[] payload(ByteBuffer datagram) {
+        byte[] payload = new byte[datagram.remaining()];
+        datagram.get(payload);
+        return payload;
+    }
+}
@@ -1,21 +1,88 @@
 package bm.network;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import bm.Level;
+import bm.Match;
 import bm.Player;
+import bm.Snapshot;
 import bm.io.LevelParser;
 
-public class GameManager implements Runnable {
+/**
+ * This class provides the server side of a Match played over the network. Each
+ * client controls one Player; the server sends the Level, the Players and
+ * everything that happens to all clients.
+ * 
+ * A GameManager can either run on its own (see main(), listening on PORT and
+ * updating itself in its own thread) or be one of many matches run by a
+ * MatchHost, which lets its clients join it and calls bombermanUpdate() every
+ * tick. Either way, the clients are served by a NetworkServer, whose single
+ * thread accepts them, hands their input to the GameManager (see input()) and
+ * sends what the GameManager has written to them. A client introduces itself
+ * before it joins (see join()) and is let in at the start of the next tick, so
+ * the match never waits for a client; the other clients are only sent the new
+ * Player.
+ * 
+ * Whatever all clients are sent during a tick (the moves of the Players, new
+ * Bombs and POWERUPs, the roster entries of new Players and the HASH) is
+ * encoded only once into a frame, which is then written to every client as a
+ * whole (see broadcastFrame()). A Player standing still is only sent once.
+ * 
+ * Every SNAPSHOTTIME ticks (unless no client is connected), a Snapshot of the
+ * match is taken and each client is sent what has changed since the last
+ * Snapshot it has acknowledged (see Snapshot.writeDelta()): the fields of the
+ * Players, the Bombs and the tiles that differ. A client acknowledges every
+ * Snapshot it applies with an ACK, so the server knows which one it has; the
+ * last HISTORY Snapshots are kept to compare with. A client that has not
+ * acknowledged any of them is sent all Players and Bombs and the tiles that
+ * have changed since it was sent the Level. Clients that have acknowledged
+ * the same Snapshot share the encoded delta.
+ * 
+ * Clients connected over UDP (see DatagramConnection) are not sent the MOVEs
+ * of the Players, which would have to arrive reliably and in order; instead, a
+ * Snapshot is taken every tick as long as there is any such client, and each
+ * of them is sent one every tick, which it may as well lose. The HASH goes
+ * along with it (see Connection.sendState()), so it is compared with the
+ * state it belongs to. Everything else in the frame still reaches them
+ * reliably.
+ * 
+ * A client moves its own Player as soon as a key is pressed instead of
+ * waiting for its MOVE (see Prediction). The server counts the PRESSED and
+ * RELEASED messages of each client, which thereby number its inputs, and
+ * sends it a CORRECTION whenever its Player has moved or a new input has been
+ * applied: the number of inputs applied, the number of ticks they have been
+ * applied for and the position of the Player after this tick. A client
+ * connected over UDP is sent one every tick along with its SNAPSHOT instead,
+ * so a lost one does not hold up anything.
+ * 
+ * Every HASHTIME ticks, the clients receive the hash of the Level's state (see
+ * Level.getStateHash()). A client whose own Level has drifted apart asks for a
+ * RESYNC and is sent a full Snapshot with all tiles next.
+ * 
+ * On its own, a GameManager writes a checkpoint of its match to CHECKPOINTFILE
+ * every CHECKPOINTINTERVAL ticks (see enableCheckpoints()) and restores the
+ * match from it when it is started again after a crash (see restore()). Once
+ * the match is over (see Match.isOver()) or the server is shut down (see
+ * shutdown()), the checkpoint is deleted, so a finished match is never
+ * restored. The Players of a restored match have no clients; a client joining
+ * it takes over the Player of the same name or the first Player without one.
+ * The same goes for the Player of a client that has disconnected.
+ */
+public class GameManager extends Match implements Runnable {
     // protocol!
     public static final byte KEYWORD = (byte) 0xF0;
     // keywords are always stored inside the first four bits
@@ -32,6 +99,11 @@ public class GameManager implements Runnable {
     public static final byte PAUSE = (byte) (9 << 4);
     public static final byte UNPAUSE = 1;
     public static final byte MOVE = (byte) (10 << 4);
+    public static final byte HASH = (byte) (11 << 4);
+    public static final byte RESYNC = (byte) (12 << 4);
+    public static final byte SNAPSHOT = (byte) (13 << 4);
+    public static final byte ACK = (byte) (14 << 4);
+    public static final byte CORRECTION = (byte) (15 << 4);
 
     public static final byte COLOR = 1;
     public static final byte LEFTMOVE = 0x01;
@@ -45,15 +117,38 @@ public class GameManager implements Runnable {
     public static final byte DOWN = 3;
     public static final byte ATTACK = 4;
 
+    /** The port a GameManager on its own listens on. */
+    public static final int PORT = 1337;
+    /** The map a GameManager plays if no other Level is given. */
+    public static final String DEFAULTMAP = "a../map/test.map";
+    /** The maximum number of Players in a single match (sent as shorts). */
+    public static final int MAXPLAYERS = 1024;
+    /** The file a GameManager on its own writes its checkpoints to. */
+    public static final String CHECKPOINTFILE = "gamemanager.checkpoint";
+    /** Number of ticks between two checkpoints (five seconds). */
+    public static final int CHECKPOINTINTERVAL = 5 * 60;
+
     private static final long SECOND = 1000000000; // one second
-    private static final long SLEEPTIME = SECOND / 60; // 60 UPS
+    static final long SLEEPTIME = SECOND / 60; // 60 UPS
+
+    private static final int HASHTIME = 60;
+    private int hashCounter = HASHTIME;
+
+    private static final int SNAPSHOTTIME = 30;
+    // Snapshots kept to compute deltas, enough for a client over TCP to
+    // acknowledge one within SNAPSHOTTIME ticks while they are taken every tick
+    private static final int HISTORY = 64;
+    private Snapshot[] history; // indexed by id % HISTORY
+    private int snapshots; // number of Snapshots taken, i.e. the next id
+    private byte[][] deltas; // see sendSnapshots()
+    private List<Snapshot> since; // see writeSnapshot()
 
-    private static final int EXACTPOSTIME = 300;
-    private int exactPosCounter = EXACTPOSTIME;
+    // clients let in per tick at most, so a rush of them is spread out
+    private static final int JOINSPERTICK = 2;
 
     private static final double STEPSIZE = 0.075;
 
-    private boolean running = true;
+    private volatile boolean running = true;
 
     private boolean pausePressed = false;
     private boolean paused = false;
@@ -61,24 +156,37 @@ public class GameManager implements Runnable {
     private static final int WAITAFTERWIN = 90;
     private int wawCounter = WAITAFTERWIN;
 
-    private ServerSocket serverSocket;
-    private AcceptThread acceptThread;
-    private boolean accepting;
+    private NetworkServer server; // null if run by a MatchHost
 
-    private List<Player> players;
-    private List<Socket> clients;
+    private List<Connection> clients; // null for orphaned Players
     private List<DataOutputStream> toClients;
-    private List<DataInputStream> fromClients;
     private List<boolean[]> keyPressed;
-
-    private List<Long> beforePing;
-    private List<Long> ping;
+    private Queue<Connection> joining; // see join()
+    private Queue<Connection> leaving; // see leave()
+    private volatile int orphans; // number of Players without a client
+    private volatile boolean closed; // true once close() has been called
+    private int datagramClients; // number of clients connected over UDP
+
+    private ByteArrayOutputStream frame; // see broadcastFrame()
+    private ByteArrayOutputStream reliableFrame; // the frame without MOVEs
+    private DataOutputStream toAll; // writes to both frames
+    private DataOutputStream toStreams; // writes to frame only
+    private ByteBuffer message; // see sendCorrection() and sendHash()
+    private byte[] lastMove; // the last MOVE sent of every Player
+    private int[] applied; // inputs of every Player's client applied so far
+    private int[] held; // ticks every Player has been updated with them
 
     private Level bLevel;
 
+    private CheckpointWriter checkpointWriter; // null if disabled
+    private int checkpointInterval;
+
+    /**
+     * Creates a new GameManager playing the default map that listens on PORT
+     * for clients on its own.
+     */
     public GameManager() {
-        initializeLevel("a../map/test.map");
-        initializePlayers();
+        this(createLevel(DEFAULTMAP));
         try {
             initializeNetwork();
         } catch (IOException e) {
@@ -88,34 +196,185 @@ public class GameManager implements Runnable {
         }
     }
 
-    private void initializeLevel(String pathToMap) {
+    /**
+     * Creates a new GameManager playing the given Level. It does not listen
+     * for clients; they have to join it through the NetworkServer of another
+     * (see join()).
+     * 
+     * @param bLevel The Level to be played.
+     */
+    public GameManager(Level bLevel) {
+        super(bLevel);
+        this.bLevel = bLevel;
+        initializePlayers();
+        initializeClients();
+    }
+
+    /**
+     * Creates a new Level from the given map. If the map cannot be read, a
+     * random Level is created instead.
+     * 
+     * @param pathToMap Path to the map to be played.
+     * @return The new Level.
+     */
+    public static Level createLevel(String pathToMap) {
         try {
-            bLevel = new Level(LevelParser.parseMap(pathToMap), true);
+            return new Level(LevelParser.parseMap(pathToMap), true);
         } catch (Exception e) {
-            bLevel = new Level(35, 21);
+            return new Level(35, 21);
         }
     }
 
     private void initializePlayers() {
-        players = new ArrayList<Player>();
         keyPressed = new ArrayList<boolean[]>();
     }
 
-    private void initializeNetwork() throws IOException {
-        serverSocket = new ServerSocket(1337);
-        accepting = false;
-        clients = new ArrayList<Socket>();
+    private void initializeClients() {
+        clients = new ArrayList<Connection>();
         toClients = new ArrayList<DataOutputStream>();
-        fromClients = new ArrayList<DataInputStream>();
-        beforePing = new ArrayList<Long>();
-        ping = new ArrayList<Long>();
-        acceptThread = new AcceptThread();
-        new Thread(acceptThread).start();
+        joining = new ConcurrentLinkedQueue<Connection>();
+        leaving = new ConcurrentLinkedQueue<Connection>();
+        frame = new ByteArrayOutputStream();
+        reliableFrame = new ByteArrayOutputStream();
+        toAll = new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                frame.write(b);
+                reliableFrame.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                frame.write(b, off, len);
+                reliableFrame.write(b, off, len);
+            }
+        });
+        toStreams = new DataOutputStream(frame);
+        message = ByteBuffer.allocate(16);
+        lastMove = new byte[MAXPLAYERS];
+        applied = new int[MAXPLAYERS];
+        held = new int[MAXPLAYERS];
+        history = new Snapshot[HISTORY];
+        deltas = new byte[HISTORY + 1][];
+        since = new ArrayList<Snapshot>(HISTORY);
     }
 
-    public static void main(String[] args) {
-        GameManager gameManager = new GameManager();
+    private void initializeNetwork() throws IOException {
+        server = new NetworkServer(PORT, true) {
+            @Override
+            protected GameManager findMatch(String name) {
+                return isFull() ? null : GameManager.this;
+            }
+        };
+        new Thread(server).start();
+    }
+
+    /**
+     * Restores the match from the checkpoint in the given file, see
+     * Match.writeCheckpoint(). Like GameManager(bLevel), the restored
+     * GameManager does not listen for clients on its own. Its Players have no
+     * clients until new ones take them over (see join()).
+     * 
+     * @param path Path to the checkpoint.
+     * @return The restored GameManager.
+     * @throws IOException If the checkpoint cannot be read or is invalid.
+     */
+    public static GameManager restore(String path) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(path)));
+        try {
+            GameManager gameManager = new GameManager(restoreLevel(in));
+            gameManager.restorePlayers(in);
+            return gameManager;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Restores the Players of a checkpoint (see Match.restorePlayers()). They
+     * are orphaned, i.e. they have no clients yet.
+     */
+    @Override
+    public synchronized void restorePlayers(DataInput in) throws IOException {
+        super.restorePlayers(in);
+        for (int i = clients.size(); i < players.size(); i++) {
+            clients.add(null);
+            toClients.add(null);
+            keyPressed.add(new boolean[5]);
+            orphans++;
+        }
+    }
+
+    /**
+     * Lets this GameManager hand a snapshot of its match to a background
+     * thread writing it to the given file every interval ticks.
+     * 
+     * @param path Path to the file the checkpoints are written to.
+     * @param interval Number of ticks between two checkpoints.
+     */
+    public synchronized void enableCheckpoints(String path, int interval) {
+        disableCheckpoints(false);
+        checkpointWriter = new CheckpointWriter(path);
+        checkpointInterval = interval;
+    }
+
+    /**
+     * Stops writing checkpoints, see enableCheckpoints(). The last checkpoint
+     * written is deleted if delete is true, so the match is not restored from
+     * it.
+     * 
+     * @param delete true if the last checkpoint is to be deleted.
+     */
+    public synchronized void disableCheckpoints(boolean delete) {
+        if (checkpointWriter == null)
+            return;
+        checkpointWriter.close();
+        if (delete)
+            checkpointWriter.delete();
+        checkpointWriter = null;
+    }
+
+    /**
+     * Stops the game loop (see run()) after the current tick and deletes the
+     * last checkpoint, as a match that has been shut down on purpose is not to
+     * be restored. The clients are not disconnected.
+     */
+    public void shutdown() {
+        running = false;
+        disableCheckpoints(true);
+    }
 
+    /**
+     * Starts a GameManager on its own. If there is a checkpoint (in the file
+     * given as the first argument or CHECKPOINTFILE), the match is restored
+     * from it; otherwise the default map is played. When the JVM exits
+     * normally, e.g. on SIGTERM, the GameManager is shut down (see shutdown());
+     * after a crash, the checkpoint is left for the next start.
+     * 
+     * @param args The path to the checkpoint, optionally.
+     */
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : CHECKPOINTFILE;
+        GameManager gameManager = null;
+        if (new File(path).isFile()) {
+            try {
+                gameManager = restore(path);
+                gameManager.initializeNetwork();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        } else gameManager = new GameManager();
+        gameManager.enableCheckpoints(path, CHECKPOINTINTERVAL);
+
+        final GameManager shutdown = gameManager;
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                shutdown.shutdown();
+            }
+        });
         new Thread(gameManager).start();
     }
 
@@ -173,7 +432,7 @@ public class GameManager implements Runnable {
      * Einlesen von Tastatureingaben, Bewegen des Spielerobjekts, Herunterzählen
      * des BombenCounters etc.
      */
-    public void bombermanUpdate() {
+    public synchronized void bombermanUpdate() {
 
         // if (player.hasWon()) {
         // if (wawCounter > 0) {
@@ -193,47 +452,380 @@ public class GameManager implements Runnable {
         // }
         // }
 
-        if (accepting)
-            return;
+        admitClients();
+        update();
+        if (checkpointWriter != null) {
+            if (getPlayerCount() > 0 && isOver())
+                disableCheckpoints(true); // not to be restored any more
+            else if (bLevel.getTicks() % checkpointInterval == 0)
+                checkpointWriter.offer(checkpoint());
+        }
+        if (hashCounter > 0) {
+            hashCounter--;
+        } else {
+            hashCounter = HASHTIME;
+            sendHash();
+        }
+        sendPowerups();
+        broadcastFrame();
+        if (datagramClients > 0 || bLevel.getTicks() % SNAPSHOTTIME == 0
+                && orphans < getPlayerCount()) // anyone to send them to
+            sendSnapshots();
+        flushPackets();
+    }
 
-        bLevel.update();
-        byte[] dir = { 0, 0 };
-        // check for keyboard input from clients & update players
-        for (byte i = 0; i < keyPressed.size(); i++) {
-            if (keyPressed.get(i)[LEFT]) {
-                dir[0]--;
+    /**
+     * Checks for keyboard input from the num'th client and updates its Player.
+     * The keys are read along with the number of inputs they result from,
+     * which the client is sent with the new position of its Player (see
+     * sendCorrection()).
+     */
+    @Override
+    protected void updatePlayer(int i) {
+        boolean[] keys = keyPressed.get(i);
+        Connection connection = clients.get(i);
+        byte dirX = 0, dirY = 0;
+        boolean attack;
+        int inputs = 0;
+        synchronized (keys) { // see input()
+            if (keys[LEFT]) {
+                dirX--;
             }
-            if (keyPressed.get(i)[RIGHT]) {
-                dir[0]++;
+            if (keys[RIGHT]) {
+                dirX++;
             }
-            if (keyPressed.get(i)[UP]) {
-                dir[1]--;
+            if (keys[UP]) {
+                dirY--;
             }
-            if (keyPressed.get(i)[DOWN]) {
-                dir[1]++;
+            if (keys[DOWN]) {
+                dirY++;
             }
-            dir = players.get(i).move(dir[0], dir[1]);
-            players.get(i).update();
-            sendMovement(dir[0], dir[1], i);
-            if (keyPressed.get(i)[ATTACK]) {
-                if (players.get(i).putBomb())
-                    sendBomb(i);
+            attack = keys[ATTACK];
+            if (connection != null)
+                inputs = connection.inputs;
+        }
+        byte moved = players.get(i).move(dirX, dirY);
+        players.get(i).update();
+        sendMovement(moved, i);
+        if (connection != null)
+            sendCorrection(moved, inputs, i);
+        if (attack) {
+            if (players.get(i).putBomb())
+                sendBomb(i);
+        }
+    }
+
+    /**
+     * Returns true if no more clients can join this match. Does not lock this
+     * GameManager.
+     * 
+     * @return true if this match is full, false otherwise.
+     */
+    public boolean isFull() {
+        return getClientCount() >= MAXPLAYERS;
+    }
+
+    /**
+     * Returns true if this match has been closed, see close(). Does not lock
+     * this GameManager.
+     * 
+     * @return true if this match has been closed, false otherwise.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Disconnects all clients of this match, including those about to join
+     * it, and turns away any that try to join it from now on. Is invoked by
+     * MatchHost once the match has ended.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (int i = 0; i < clients.size(); i++)
+            if (clients.get(i) != null)
+                clients.get(i).close();
+        Connection connection;
+        while ((connection = joining.poll()) != null)
+            connection.close();
+    }
+
+    /**
+     * Returns the number of clients that have joined this match or are about
+     * to join it at the next tick. Does not lock this GameManager.
+     * 
+     * @return The number of clients.
+     */
+    public int getClientCount() {
+        return getPlayerCount() - orphans + joining.size();
+    }
+
+    /**
+     * Lets the client of the given Connection, which has introduced itself,
+     * join this match at the start of the next tick (see admitClients()). Is
+     * invoked by the thread of the NetworkServer without locking this
+     * GameManager, so neither of them waits for the other.
+     * 
+     * @param connection The Connection of the new client.
+     * @throws IOException If this match is full or has been closed.
+     */
+    void join(Connection connection) throws IOException {
+        if (isFull())
+            throw new IOException("Match is full.");
+        joining.add(connection);
+        // close() might have missed it; if not, it has been closed already
+        if (closed && joining.remove(connection))
+            throw new IOException("Match is closed.");
+    }
+
+    /**
+     * Detaches the client of the given Connection from its Player at the
+     * start of the next tick, so another client can take it over (see
+     * admitClients()). Is invoked without locking this GameManager once the
+     * Connection has been closed.
+     * 
+     * @param connection The Connection of the client that has left.
+     */
+    void leave(Connection connection) {
+        leaving.add(connection);
+    }
+
+    /**
+     * Handles a single byte the client of the given Connection has sent, i.e.
+     * a key it has pressed or released, the ACK of a Snapshot or its request
+     * for a RESYNC. Is invoked by the thread of the NetworkServer without
+     * locking this GameManager, so input is never held up by a tick. The keys
+     * are changed along with the number of inputs, so a tick never sees one
+     * without the other (see updatePlayer()).
+     * 
+     * @param connection The Connection of the client.
+     * @param message The byte the client has sent.
+     */
+    void input(Connection connection, byte message) {
+        byte keyword = (byte) (message & KEYWORD);
+        byte rest = (byte) (message & ~KEYWORD);
+        switch (keyword) {
+        case PRESSED:
+        case RELEASED:
+            if (rest >= LEFT && rest <= ATTACK)
+                synchronized (connection.keyPressed) {
+                    connection.keyPressed[rest] = keyword == PRESSED;
+                    connection.inputs++;
+                }
+            break;
+        case RESYNC:
+            connection.resyncRequested = true;
+            break;
+        case ACK:
+            connection.acknowledge(rest);
+            break;
+        }
+    }
+
+    /**
+     * Lets the clients that have left since the last tick go and lets up to
+     * JOINSPERTICK of those that have joined in. A new client takes over the
+     * Player without a client of the same name or the first one without a
+     * client (keeping its name and colors); if there is none, a new Player
+     * joins. The client is told the number of its Player and sent the Level
+     * (encoded only once for all clients let in at the same tick, along with
+     * a Snapshot of it) and all Players; a new Player is added to the frame
+     * of this tick.
+     */
+    private void admitClients() {
+        byte[] level = null; // encoded once for all new clients
+        Snapshot snapshot = null; // what the new clients are sent
+        Connection connection;
+        while ((connection = leaving.poll()) != null) {
+            int num = connection.getNum();
+            if (num < 0 || clients.get(num) != connection)
+                continue; // never let in or already taken over
+            clients.set(num, null);
+            toClients.set(num, null);
+            keyPressed.set(num, new boolean[5]);
+            orphans++;
+            if (connection.isDatagram())
+                datagramClients--;
+        }
+        for (int n = 0; n < JOINSPERTICK
+                && (connection = joining.poll()) != null; n++) {
+            if (connection.isClosed())
+                continue;
+            int num = findOrphan(connection.getName());
+            boolean orphaned = num >= 0;
+            if (orphaned) {
+                clients.set(num, connection);
+                toClients.set(num, connection.getOutput());
+                keyPressed.set(num, connection.keyPressed);
+                orphans--;
+            } else if (getPlayerCount() < MAXPLAYERS) {
+                num = getPlayerCount();
+                clients.add(connection);
+                toClients.add(connection.getOutput());
+                keyPressed.add(connection.keyPressed);
+                addPlayer(connection.getName(), connection.getFstClr(),
+                        connection.getSndClr());
+            } else {
+                connection.close(); // the match has filled up meanwhile
+                continue;
+            }
+            connection.joined(num);
+            applied[num] = -1; // the client is sent its position first
+            if (connection.isDatagram())
+                datagramClients++;
+
+            if (level == null) {
+                level = encodeLevel();
+                snapshot = snapshot(-1);
             }
-            dir = new byte[] { 0, 0 };
+            connection.joined = snapshot;
+            try {
+                toClients.get(num).writeShort(num);
+                toClients.get(num).write(level);
+            } catch (IOException e) {
+                connection.close(); // leaves again next tick
+            }
+            sendPlayers(num, true);
+            if (!orphaned)
+                writePlayer(toAll, num, true);
         }
-        if (exactPosCounter > 0) {
-            exactPosCounter--;
-        } else {
-            exactPosCounter = EXACTPOSTIME;
-            sendPlayers();
+    }
+
+    /**
+     * Returns the number of the orphaned Player of the given name or, if there
+     * is none, of the first orphaned Player.
+     * 
+     * @param name The name of the client looking for a Player.
+     * @return The number of the orphaned Player or -1 if there is none.
+     */
+    private int findOrphan(String name) {
+        int num = -1;
+        for (int i = clients.size() - 1; i >= 0; i--)
+            if (clients.get(i) == null) {
+                if (players.get(i).getName().equals(name))
+                    return i;
+                num = i;
+            }
+        return num;
+    }
+
+    /**
+     * Writes the frame of this tick to all clients (without the MOVEs to
+     * those connected over UDP) and starts the next one. The frames keep
+     * their buffers, so they do not allocate memory once they have grown large
+     * enough. A client that cannot be written to is disconnected.
+     */
+    private void broadcastFrame() {
+        for (int i = 0; i < toClients.size(); i++) {
+            if (toClients.get(i) == null)
+                continue; // orphaned Player
+            try {
+                if (clients.get(i).isDatagram())
+                    reliableFrame.writeTo(toClients.get(i));
+                else frame.writeTo(toClients.get(i));
+            } catch (IOException e) {
+                clients.get(i).close(); // the others still get the frame
+            }
         }
-        sendPowerups();
-        flushPackets();
+        frame.reset();
+        reliableFrame.reset();
+    }
+
+    /**
+     * Takes the next Snapshot and sends every client that is due for one the
+     * delta to the last Snapshot it has acknowledged (see
+     * Connection.getAckedSnapshot()): clients connected over UDP every tick,
+     * the others every SNAPSHOTTIME ticks. If that Snapshot is no longer kept,
+     * the client has not acknowledged any yet or it has asked for a RESYNC,
+     * it is sent a full Snapshot instead. Clients that have acknowledged the
+     * same Snapshot share the delta, which is encoded once into deltas (by the
+     * base's id % HISTORY, full ones last).
+     */
+    private void sendSnapshots() {
+        Snapshot snapshot = snapshot(snapshots++);
+        boolean streams = bLevel.getTicks() % SNAPSHOTTIME == 0;
+        for (int i = 0; i < clients.size(); i++) {
+            Connection connection = clients.get(i);
+            if (connection == null || !streams && !connection.isDatagram())
+                continue;
+            int acked = connection.getAckedSnapshot();
+            Snapshot base = history[Math.max(acked, 0) % HISTORY];
+            if (acked < 0 || base == null || base.getId() != acked)
+                base = null; // none acknowledged or no longer kept
+            if (connection.resyncRequested) {
+                connection.resyncRequested = false;
+                connection.joined = null; // the client's tiles are wrong
+                base = null;
+            } else if (base != null)
+                connection.joined = null; // no longer needed
+            int slot = base != null ? acked % HISTORY : HISTORY;
+            try {
+                if (base == null && connection.joined != null)
+                    connection.sendSnapshot(encodeSnapshot(snapshot, null,
+                            connection.joined), snapshot.getId());
+                else {
+                    if (deltas[slot] == null)
+                        deltas[slot] = encodeSnapshot(snapshot, base, null);
+                    connection.sendSnapshot(deltas[slot], snapshot.getId());
+                }
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+        history[snapshot.getId() % HISTORY] = snapshot;
+        Arrays.fill(deltas, null);
+    }
+
+    /**
+     * Encodes the delta between the given Snapshots, see writeSnapshot().
+     * 
+     * @param snapshot The Snapshot to be sent.
+     * @param base The Snapshot the clients have acknowledged or null.
+     * @param joined The Snapshot of the Level the client has been sent or
+     *            null, in which case the delta may be shared by all clients
+     *            that have acknowledged base.
+     * @return The encoded delta.
+     */
+    private byte[] encodeSnapshot(Snapshot snapshot, Snapshot base,
+            Snapshot joined) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeSnapshot(new DataOutputStream(bytes), snapshot, base, joined);
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw any
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a SNAPSHOT: its id, the id of the Snapshot it is based on (or -1)
+     * and the delta between them (see Snapshot.writeDelta()).
+     * 
+     * @param out The output to write to.
+     * @param snapshot The Snapshot to be sent.
+     * @param base The Snapshot the client has acknowledged or null.
+     * @param joined The Snapshot of the Level the client has been sent or
+     *            null.
+     * @throws IOException If the SNAPSHOT cannot be written.
+     */
+    private void writeSnapshot(DataOutputStream out, Snapshot snapshot,
+            Snapshot base, Snapshot joined) throws IOException {
+        since.clear();
+        if (base != null)
+            for (int id = base.getId(); id < snapshot.getId(); id++)
+                since.add(history[id % HISTORY]);
+        out.writeByte(SNAPSHOT);
+        out.writeInt(snapshot.getId());
+        out.writeInt(base != null ? base.getId() : -1);
+        snapshot.writeDelta(out, base != null ? since : null, joined);
     }
 
     private void flushPackets() {
         try {
             for (int i = 0; i < toClients.size(); i++) {
+                if (toClients.get(i) == null)
+                    continue; // orphaned Player
                 toClients.get(i).flush();
             }
         } catch (IOException e) {
@@ -242,94 +834,107 @@ public class GameManager implements Runnable {
         }
     }
 
-    private void sendBomb(byte num) {
+    private void sendBomb(int num) {
         Player player = players.get(num);
-        int posX = (int) (player.getPosX() + 0.5);
-        int posY = (int) (player.getPosY() + 0.5);
+        int posX = (player.getFixedX() + Player.UNIT / 2) / Player.UNIT;
+        int posY = (player.getFixedY() + Player.UNIT / 2) / Player.UNIT;
         byte range = player.getRange();
         try {
-            for (int i = 0; i < toClients.size(); i++) {
-                if (player.hasQuadDamage())
-                    toClients.get(i).writeByte(BOMB | QUADDAMAGE);
-                else toClients.get(i).writeByte(BOMB);
-                toClients.get(i).writeInt(posX);
-                toClients.get(i).writeInt(posY);
-                toClients.get(i).writeByte(range);
-                toClients.get(i).writeByte(num);
-            }
+            if (player.hasQuadDamage())
+                toAll.writeByte(BOMB | QUADDAMAGE);
+            else toAll.writeByte(BOMB);
+            toAll.writeInt(posX);
+            toAll.writeInt(posY);
+            toAll.writeByte(range);
+            toAll.writeShort(num);
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
     }
 
-    private void sendMovement(double deltaX, double deltaY, byte num) {
+    private void sendMovement(byte moved, int num) {
         byte move = MOVE;
-        if (deltaX < 0)
+        if ((moved & Player.MOVEDLEFT) != 0)
             move |= LEFTMOVE;
-        else if (deltaX > 0)
+        else if ((moved & Player.MOVEDRIGHT) != 0)
             move |= RIGHTMOVE;
-        if (deltaY < 0)
+        if ((moved & Player.MOVEDUP) != 0)
             move |= UPMOVE;
-        else if (deltaY > 0)
+        else if ((moved & Player.MOVEDDOWN) != 0)
             move |= DOWNMOVE;
+        if (move == MOVE && lastMove[num] == MOVE)
+            return; // still standing
+        lastMove[num] = move;
         try {
-            for (int i = 0; i < toClients.size(); i++) {
-                toClients.get(i).writeByte(move);
-                toClients.get(i).writeByte(num);
-            }
+            toStreams.writeByte(move);
+            toStreams.writeShort(num);
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
     }
 
-    private void sendPlayers(byte num, boolean color) {
+    /**
+     * Sends the client of the num'th Player a CORRECTION if its Player has
+     * moved or a new input has been applied this tick. The client replays
+     * the inputs the server has not applied yet from the position sent (see
+     * Prediction.correct()). A client connected over UDP is sent one every
+     * tick along with its SNAPSHOT (see Connection.sendState()); as it may be
+     * lost, the next one has to make up for it.
+     * 
+     * @param moved The movement of the Player, see Player.move().
+     * @param inputs The number of inputs of the client applied.
+     * @param num The number of the Player.
+     */
+    private void sendCorrection(byte moved, int inputs, int num) {
+        if (inputs != applied[num]) {
+            applied[num] = inputs;
+            held[num] = 0;
+        }
+        held[num]++;
+        Connection connection = clients.get(num);
+        if (moved == 0 && held[num] > 1 && !connection.isDatagram())
+            return; // the client knows where its Player stands
+        message.clear();
+        message.put(CORRECTION).putInt(inputs);
+        message.putShort((short) Math.min(held[num], Short.MAX_VALUE));
+        message.putInt(players.get(num).getFixedX());
+        message.putInt(players.get(num).getFixedY());
         try {
-            for (int i = 0; i < players.size(); i++) {
-                if (color) {
-                    toClients.get(num).writeByte(PLAYER | COLOR);
-                    toClients.get(num).writeInt(players.get(i).getFstClr());
-                    toClients.get(num).writeInt(players.get(i).getSndClr());
-                    toClients.get(num).writeChars(
-                            players.get(i).getName() + '\0');
-                } else toClients.get(num).writeByte(PLAYER);
-                toClients.get(num).writeByte(i);
-                toClients.get(num).writeDouble(players.get(i).getPosX());
-                toClients.get(num).writeDouble(players.get(i).getPosY());
-            }
+            connection.sendState(message.array(), 0, message.position());
         } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            connection.close();
         }
     }
 
-    private void sendPlayers() {
+    private void sendPlayers(int num, boolean color) {
         for (int i = 0; i < players.size(); i++)
-            sendPlayers((byte) i, true);
+            writePlayer(toClients.get(num), i, color);
     }
 
-    private void sendPowerups() {
+    private void writePlayer(DataOutputStream out, int num, boolean color) {
         try {
-            Queue<Short> ups = bLevel.getNewPowerups();
-            while (!ups.isEmpty()) {
-                byte tile = (byte) ups.poll().shortValue();
-                for (int i = 0; i < toClients.size(); i++)
-                    toClients.get(i).writeByte(POWERUP | tile);
-            }
+            if (color) {
+                out.writeByte(PLAYER | COLOR);
+                out.writeInt(players.get(num).getFstClr());
+                out.writeInt(players.get(num).getSndClr());
+                out.writeChars(players.get(num).getName() + '\0');
+            } else out.writeByte(PLAYER);
+            out.writeShort(num);
+            out.writeInt(players.get(num).getFixedX());
+            out.writeInt(players.get(num).getFixedY());
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
     }
 
-    private void sendPause(boolean pause) {
+    private void sendPowerups() {
         try {
-            for (int i = 0; i < toClients.size(); i++) {
-                if (!pause)
-                    toClients.get(i).writeByte(PAUSE | UNPAUSE);
-                else toClients.get(i).writeByte(PAUSE);
-                toClients.get(i).flush();
+            while (bLevel.hasNewPowerup()) {
+                byte tile = (byte) bLevel.nextNewPowerup();
+                toAll.writeByte(POWERUP | tile);
             }
         } catch (IOException e) {
             // TODO Auto-generated catch block
@@ -337,143 +942,55 @@ public class GameManager implements Runnable {
         }
     }
 
-    private void sendLevel(byte num) {
-        try {
-            toClients.get(num).writeByte(LEVEL);
-            toClients.get(num).writeInt(bLevel.getWidth());
-            toClients.get(num).writeInt(bLevel.getHeight());
-            for (int i = 0; i < bLevel.getWidth(); i++)
-                for (int j = 0; j < bLevel.getHeight(); j++)
-                    toClients.get(num).writeShort(bLevel.getTile(i, j));
-            toClients.get(num).writeByte(END);
-            Queue<Short> ups = bLevel.getNewPowerups();
-            while (!ups.isEmpty()) {
-                byte tile = (byte) ups.poll().shortValue();
-                toClients.get(num).writeByte(POWERUP | tile);
-            }
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
+    /**
+     * Sends all clients the HASH of the Level's state: in the frame to those
+     * connected over TCP, along with their next SNAPSHOT to the others.
+     */
+    private void sendHash() {
+        message.clear();
+        message.put(HASH).putLong(bLevel.getStateHash());
+        frame.write(message.array(), 0, message.position());
+        sendState();
     }
 
-    private class AcceptThread implements Runnable {
-
-        int num;
-        boolean running = true;
-
-        @Override
-        public void run() {
-            while (running) {
-                num = players.size();
-                // FIXME
-                if (num > 127)
-                    break;
-                try {
-                    acceptNewClient(serverSocket.accept());
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
+    /**
+     * Sends the message encoded into the message buffer to every client
+     * connected over UDP (see Connection.sendState()).
+     */
+    private void sendState() {
+        for (int i = 0; i < clients.size(); i++) {
+            Connection connection = clients.get(i);
+            if (connection == null || !connection.isDatagram())
+                continue;
+            try {
+                connection.sendState(message.array(), 0, message.position());
+            } catch (IOException e) {
+                connection.close();
             }
         }
-
-        private void acceptNewClient(Socket client) throws IOException {
-            accepting = true;
-            sendPause(true);
-
-            client.setTcpNoDelay(true);
-            clients.add(num, client);
-            DataOutputStream toClient = new DataOutputStream(
-                    new BufferedOutputStream(client.getOutputStream()));
-            DataInputStream fromClient = new DataInputStream(
-                    new BufferedInputStream(client.getInputStream()));
-            toClients.add(num, toClient);
-            fromClients.add(num, fromClient);
-
-            beforePing.add(num, (long) -1);
-            ping.add(num, (long) -1);
-
-            toClient.writeByte(num);
-            toClient.flush();
-
-            int fstClr = fromClient.readInt() | 0xFF000000;
-            int sndClr = fromClient.readInt() | 0xFF000000;
-
-            String name = "";
-            char buffer;
-            while ((buffer = fromClient.readChar()) != '\0')
-                name += buffer;
-
-            int[] spawnPoint = bLevel.getSpawnPoint(num);
-            players.add(num, new Player(bLevel, name, fstClr, sndClr,
-                    spawnPoint[0], spawnPoint[1]));
-            keyPressed.add(num, new boolean[5]);
-
-            sendLevel((byte) num);
-            sendPlayers();
-            new ClientInputThread(num);
-
-            sendPause(false);
-            accepting = false;
-        }
-
-        public void stopThread() {
-            running = false;
-        }
-
     }
 
-    private class ClientInputThread implements Runnable {
-
-        byte num;
-        boolean running = true;
-
-        public ClientInputThread(int num) {
-            this.num = (byte) num;
-            new Thread(this).start();
-        }
-
-        @Override
-        public void run() {
-            byte keyword, rest;
-            while (running) {
-                try {
-                    toClients.get(num).flush();
-                    keyword = fromClients.get(num).readByte();
-                    rest = (byte) (keyword & ~KEYWORD);
-                    keyword &= KEYWORD;
-                    switch (keyword) {
-                    case PRESSED:
-                        if (rest >= LEFT && rest <= ATTACK) {
-                            keyPressed.get(num)[rest] = true;
-                        }
-                        break;
-                    case RELEASED:
-                        if (rest >= LEFT && rest <= ATTACK) {
-                            keyPressed.get(num)[rest] = false;
-                        }
-                        break;
-                    // case PLAYER: break;
-                    // case BOMB: break;
-                    // case POWERUP: break;
-                    // case LEVEL: break;
-                    // case TILE: break;
-                    // case END: break;
-                    case OK:
-                        break;
-                    case PAUSE:
-                        break;
-                    }
-                } catch (IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
+    private byte[] encodeLevel() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                2 * bLevel.getWidth() * bLevel.getHeight() + 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(LEVEL);
+            out.writeInt(bLevel.getWidth());
+            out.writeInt(bLevel.getHeight());
+            out.writeLong(bLevel.getSeed());
+            for (int i = 0; i < bLevel.getWidth(); i++)
+                for (int j = 0; j < bLevel.getHeight(); j++)
+                    out.writeShort(bLevel.getTile(i, j));
+            out.writeByte(END);
+            while (bLevel.hasNewPowerup()) {
+                byte tile = (byte) bLevel.nextNewPowerup();
+                out.writeByte(POWERUP | tile);
             }
+        } catch (IOException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
         }
-
-        public void stopThread() {
-            running = false;
-        }
+        return bytes.toByteArray();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,140 @@
+package bm.network;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class provides a server hosting many independent matches within one
+ * process. All clients connect to the same port; each one joins the first
+ * match that still has room for it, and a new match is opened once all others
+ * are full. The matches are updated by a shared pool of worker threads (one
+ * per core by default); every match is updated 60 times per second, but never
+ * by two threads at once. The clients of all matches are served by a single
+ * NetworkServer thread, over TCP or UDP as each of them chooses.
+ * 
+ * A match ends once it is over (see Match.isOver()) or all of its clients
+ * have left: it is no longer updated, its remaining clients are disconnected
+ * (see GameManager.close()) and it makes room for a new one.
+ * 
+ * Usage: MatchHost [port] [matches] [players per match] [threads]
+ */
+public class MatchHost implements Runnable {
+
+    /** Default maximum number of matches hosted at the same time. */
+    public static final int DEFAULTMATCHES = 16;
+    /** Default number of Players that can join a single match. */
+    public static final int DEFAULTPLAYERS = 4;
+
+    private final NetworkServer server;
+    private final ScheduledExecutorService workers;
+    private final List<GameManager> matches;
+    private final int maxMatches;
+    private final int playersPerMatch;
+
+    /**
+     * Creates a new MatchHost listening on the given port.
+     * 
+     * @param port The port clients connect to.
+     * @param maxMatches The maximum number of matches hosted at the same time.
+     * @param playersPerMatch The number of Players that can join a match.
+     * @param threads The number of threads updating the matches.
+     * @throws IOException If the port cannot be opened.
+     */
+    public MatchHost(int port, int maxMatches, int playersPerMatch, int threads)
+            throws IOException {
+        server = new NetworkServer(port, true) {
+            @Override
+            protected GameManager findMatch(String name) {
+                return MatchHost.this.findMatch();
+            }
+        };
+        workers = Executors.newScheduledThreadPool(threads);
+        matches = new ArrayList<GameManager>();
+        this.maxMatches = maxMatches;
+        this.playersPerMatch = Math.min(playersPerMatch,
+                GameManager.MAXPLAYERS);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0])
+                : GameManager.PORT;
+        int maxMatches = args.length > 1 ? Integer.parseInt(args[1])
+                : DEFAULTMATCHES;
+        int playersPerMatch = args.length > 2 ? Integer.parseInt(args[2])
+                : DEFAULTPLAYERS;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime
+                .getRuntime().availableProcessors();
+        new Thread(new MatchHost(port, maxMatches, playersPerMatch, threads))
+                .start();
+    }
+
+    /**
+     * Accepts clients and lets each of them join a match until the
+     * NetworkServer is closed.
+     */
+    public void run() {
+        server.run();
+        workers.shutdown();
+    }
+
+    /**
+     * Returns the first match that still has room for another Player. Matches
+     * that have ended are dropped first. If all matches are full, a new one is
+     * opened unless the maximum number of matches has been reached; in that
+     * case, null is returned. Is only invoked by the thread of the
+     * NetworkServer.
+     * 
+     * @return A match with room for another Player or null.
+     */
+    private GameManager findMatch() {
+        for (int i = matches.size() - 1; i >= 0; i--)
+            if (matches.get(i).isClosed())
+                matches.remove(i);
+        for (int i = 0; i < matches.size(); i++)
+            if (matches.get(i).getClientCount() < playersPerMatch)
+                return matches.get(i);
+        if (matches.size() >= maxMatches)
+            return null;
+        GameManager match = new GameManager(
+                GameManager.createLevel(GameManager.DEFAULTMAP));
+        matches.add(match);
+        Update update = new Update(match);
+        update.future = workers.scheduleAtFixedRate(update, 0,
+                GameManager.SLEEPTIME, TimeUnit.NANOSECONDS);
+        return match;
+    }
+
+    /*
+     * The task updating a single match. Once the match has ended, it closes
+     * the match and cancels itself.
+     */
+    private static class Update implements Runnable {
+
+        private final GameManager match;
+        private volatile ScheduledFuture<?> future; // set once scheduled
+
+        Update(GameManager match) {
+            this.match = match;
+        }
+
+        public void run() {
+            try {
+                match.bombermanUpdate();
+            } catch (RuntimeException e) {
+                // don't let one broken match stop its updates for good
+                e.printStackTrace();
+            }
+            // a new match has no Players until its first client is let in
+            if (match.getPlayerCount() > 0
+                    && (match.isOver() || match.getClientCount() == 0)) {
+                match.close();
+                future.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package bm.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class provides the network I/O of one or many GameManagers. A single
+ * thread accepts the clients, reads their input and writes whatever the
+ * GameManagers have sent them; all connections are non-blocking channels
+ * multiplexed over one Selector, so hundreds of clients cost neither a thread
+ * each nor a blocked tick.
+ * 
+ * A new client introduces itself (see Connection) before it joins a match;
+ * findMatch() decides which one. A client that has not introduced itself
+ * within HANDSHAKETIMEOUT is disconnected, so it cannot hold on to a
+ * connection without ever joining. From then on, its input is decoded right
+ * away and handed to its GameManager (see GameManager.input()), while the
+ * GameManager writes its messages into the Connection's buffers, which are
+ * sent as soon as the GameManager flushes them.
+ * 
+ * The buffers are direct ByteBuffers of BUFFERSIZE bytes taken from a pool
+ * shared by all Connections, so sending and receiving does not allocate
+ * memory once the pool has grown large enough.
+ * 
+ * Optionally, clients may connect over UDP to the same port instead (see
+ * DatagramConnection), which spares them the head-of-line blocking of TCP on
+ * a lossy network. All of them share a single DatagramChannel served by the
+ * same thread; a client is told apart by its address and accepted once its
+ * first reliable datagram arrives. The thread wakes up every POLLINTERVAL to
+ * send what their sessions have to send again.
+ */
+public abstract class NetworkServer implements Runnable {
+
+    /** Size of the pooled buffers in bytes. */
+    public static final int BUFFERSIZE = 8192;
+    /** Maximum number of buffers kept in the pool. */
+    public static final int MAXPOOLED = 4096;
+    /** Time (in milliseconds) a new client has to introduce itself. */
+    public static final long HANDSHAKETIMEOUT = 5000;
+    /** Time (in milliseconds) between two polls of the UDP sessions. */
+    public static final long POLLINTERVAL = 5;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final DatagramChannel datagramChannel; // null if disabled
+    private final Map<SocketAddress, DatagramConnection> datagrams;
+    private final ByteBuffer datagram; // the last datagram received
+    private long lastPoll; // see pollDatagrams()
+    private final Queue<ByteBuffer> pool; // unused buffers
+    private final Queue<StreamConnection> writeRequests; // see requestWrite()
+    private final Queue<Connection> handshakes; // in the order of acceptance
+    private volatile boolean running = true;
+
+    /**
+     * Creates a new NetworkServer listening on the given port for clients
+     * connecting over TCP. Nothing happens until it is run by a thread of its
+     * own.
+     * 
+     * @param port The port clients connect to, 0 for any free one.
+     * @throws IOException If the port cannot be opened.
+     */
+    public NetworkServer(int port) throws IOException {
+        this(port, false);
+    }
+
+    /**
+     * Creates a new NetworkServer listening on the given port for clients
+     * connecting over TCP and, if datagrams is true, over UDP. Nothing happens
+     * until it is run by a thread of its own.
+     * 
+     * @param port The port clients connect to, 0 for any free one.
+     * @param datagrams true if clients may connect over UDP as well.
+     * @throws IOException If the port cannot be opened.
+     */
+    public NetworkServer(int port, boolean datagrams) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        if (datagrams) {
+            datagramChannel = DatagramChannel.open();
+            datagramChannel.bind(new InetSocketAddress(getPort()));
+            datagramChannel.configureBlocking(false);
+            datagramChannel.register(selector, SelectionKey.OP_READ);
+        } else datagramChannel = null;
+        this.datagrams = new ConcurrentHashMap<SocketAddress,
+                DatagramConnection>();
+        datagram = ByteBuffer.allocateDirect(DatagramSession.MAXDATAGRAM);
+        pool = new ArrayBlockingQueue<ByteBuffer>(MAXPOOLED);
+        writeRequests = new ConcurrentLinkedQueue<StreamConnection>();
+        handshakes = new ArrayDeque<Connection>();
+    }
+
+    /**
+     * Returns the port this NetworkServer listens on.
+     * 
+     * @return The local port.
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Returns the match the client with the given name is to join or null if
+     * there is no room left, in which case the client is disconnected. Is
+     * invoked by the thread of this NetworkServer.
+     * 
+     * @param name The name the client has introduced itself with.
+     * @return The match to be joined or null.
+     */
+    protected abstract GameManager findMatch(String name);
+
+    /**
+     * Accepts clients, reads their input and writes their output until
+     * close() is called.
+     */
+    public void run() {
+        while (running) {
+            try {
+                long timeout = expireHandshakes();
+                if (!datagrams.isEmpty()) {
+                    pollDatagrams();
+                    timeout = timeout > 0 ? Math.min(timeout, POLLINTERVAL)
+                            : POLLINTERVAL;
+                }
+                selector.select(timeout);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            // output the GameManagers could not get rid of right away
+            StreamConnection connection;
+            while ((connection = writeRequests.poll()) != null) {
+                SelectionKey key = connection.channel.keyFor(selector);
+                if (key != null && key.isValid())
+                    key.interestOps(SelectionKey.OP_READ
+                            | SelectionKey.OP_WRITE);
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid())
+                    continue;
+                if (key.isAcceptable())
+                    accept();
+                else if (key.channel() == datagramChannel)
+                    receiveDatagrams();
+                else handle(key);
+            }
+        }
+        for (DatagramConnection connection : datagrams.values())
+            connection.close();
+        try {
+            selector.close();
+            serverChannel.close();
+            if (datagramChannel != null)
+                datagramChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops this NetworkServer. Its thread closes the port and terminates.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Accepts a new client and registers its channel for reading.
+     */
+    private void accept() {
+        SocketChannel channel = null;
+        try {
+            channel = serverChannel.accept();
+            if (channel == null)
+                return;
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Connection connection = new StreamConnection(this, channel);
+            channel.register(selector, SelectionKey.OP_READ, connection);
+            handshakes.add(connection);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (channel != null)
+                try {
+                    channel.close();
+                } catch (IOException f) {
+                    // nothing left to do
+                }
+        }
+    }
+
+    /**
+     * Receives the datagrams that have arrived and hands each one to the
+     * DatagramConnection of its sender. A datagram of an unknown sender is
+     * ignored unless it is the first one of a reliable channel, which makes
+     * the sender a new client.
+     */
+    private void receiveDatagrams() {
+        while (true) {
+            SocketAddress address;
+            datagram.clear();
+            try {
+                address = datagramChannel.receive(datagram);
+            } catch (IOException e) {
+                continue; // e.g. an ICMP error of an earlier datagram
+            }
+            if (address == null)
+                return;
+            datagram.flip();
+            DatagramConnection connection = datagrams.get(address);
+            if (connection == null) {
+                if (datagram.remaining() < DatagramSession.HEADERSIZE
+                        || datagram.get(0) != DatagramSession.RELIABLE
+                        || datagram.getInt(1) != 0)
+                    continue;
+                connection = new DatagramConnection(this, datagramChannel,
+                        address);
+                datagrams.put(address, connection);
+                handshakes.add(connection);
+            }
+            connection.receive(datagram);
+        }
+    }
+
+    /**
+     * Lets the DatagramConnections send what they have to send again and
+     * disconnects those that have timed out, at most every POLLINTERVAL.
+     */
+    private void pollDatagrams() {
+        long now = System.nanoTime();
+        if ((now - lastPoll) / 1000000 < POLLINTERVAL)
+            return;
+        lastPoll = now;
+        for (DatagramConnection connection : datagrams.values())
+            connection.poll(now);
+    }
+
+    /**
+     * Forgets the given DatagramConnection once it has been closed, so its
+     * address may connect again. May be called by any thread.
+     * 
+     * @param connection The DatagramConnection that has been closed.
+     */
+    void removeDatagramConnection(DatagramConnection connection) {
+        datagrams.remove(connection.address, connection);
+    }
+
+    /**
+     * Disconnects the clients that have not introduced themselves within
+     * HANDSHAKETIMEOUT.
+     * 
+     * @return The time (in milliseconds) until the next client times out or 0
+     *         if no client is introducing itself.
+     */
+    private long expireHandshakes() {
+        long now = System.nanoTime();
+        while (!handshakes.isEmpty()) {
+            Connection connection = handshakes.peek();
+            long left = HANDSHAKETIMEOUT
+                    - (now - connection.accepted) / 1000000;
+            if (connection.hasIntroduced() || connection.isClosed())
+                handshakes.poll();
+            else if (left <= 0)
+                handshakes.poll().close();
+            else return left;
+        }
+        return 0;
+    }
+
+    /**
+     * Reads from or writes to the client whose channel is ready. A client
+     * that has disconnected or cannot be handled is closed.
+     * 
+     * @param key The key of the client's channel.
+     */
+    private void handle(SelectionKey key) {
+        StreamConnection connection = (StreamConnection) key.attachment();
+        try {
+            if (key.isReadable())
+                connection.read();
+            if (key.isValid() && key.isWritable() && connection.write())
+                key.interestOps(SelectionKey.OP_READ); // all sent
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Lets the thread of this NetworkServer write the output of the given
+     * Connection as soon as its channel is ready. May be called by any thread.
+     * 
+     * @param connection The Connection whose output is pending.
+     */
+    void requestWrite(StreamConnection connection) {
+        writeRequests.offer(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Takes a cleared buffer of BUFFERSIZE bytes from the pool, allocating a
+     * new one if the pool is empty. May be called by any thread.
+     * 
+     * @return The buffer.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFERSIZE);
+    }
+
+    /**
+     * Returns the given buffer to the pool. It must not be used afterwards.
+     * May be called by any thread.
+     * 
+     * @param buffer The buffer that is no longer needed.
+     */
+    void release(ByteBuffer buffer) {
+        buffer.clear();
+        pool.offer(buffer); // dropped if the pool is full
+    }
+}
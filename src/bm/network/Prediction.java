@@ -0,0 +1,178 @@
+package bm.network;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.List;
+
+import bm.Level;
+import bm.Player;
+import bm.Snapshot;
+import bm.input.NetworkKeyPoller;
+
+/**
+ * This class lets a client move its own Player as soon as a key is pressed
+ * rather than when the server's MOVE arrives a round trip later (see
+ * ClientGameComponent). The server stays authoritative: it corrects the
+ * prediction with every CORRECTION it sends (see GameManager).
+ * 
+ * Every tick, the Player is moved by the keys the server will consider
+ * pressed once it has received the inputs sent so far (see
+ * NetworkKeyPoller.getInputs()), and the number of those inputs and the
+ * direction are kept. A CORRECTION tells how many inputs the server had
+ * applied and for how many of its ticks, and where the Player was afterwards.
+ * As both run at the same rate, the ticks kept that the server has not
+ * simulated yet are the ones with more inputs and those with as many inputs
+ * beyond the number of ticks the server has counted. The Player is set back to
+ * the position sent and those ticks are replayed; the others are dropped. If
+ * the prediction was right, the Player ends up where it already was.
+ * 
+ * Messages that overwrite the Player's position with the server's (i.e.
+ * SNAPSHOTs, see applySnapshot()) keep the predicted one, and the HASH of the
+ * Level is compared with the Player at the position the server sent last (see
+ * getStateHash()). All methods may be called by any thread.
+ */
+final class Prediction {
+
+    /** Maximum number of ticks kept to be replayed (over four seconds). */
+    static final int HISTORY = 256;
+
+    private final NetworkKeyPoller keyPoller;
+    private final boolean[] keys; // see NetworkKeyPoller.getInputs()
+    private Player player; // the client's Player or null before it is known
+
+    // the ticks not confirmed yet, a ring of HISTORY entries
+    private final int[] inputs; // the number of inputs sent before each
+    private final byte[] steps; // the direction of each, see tick()
+    private int first, count;
+
+    private int confirmed; // the number of inputs the server has applied
+    private int dropped; // the ticks dropped since it has applied them
+    private int serverX, serverY; // the position the server has sent last
+    private int predictedX, predictedY; // the position predicted
+
+    /**
+     * Creates a new Prediction of the Player moved by the keys of the given
+     * NetworkKeyPoller.
+     * 
+     * @param keyPoller The NetworkKeyPoller sending the keys to the server.
+     */
+    Prediction(NetworkKeyPoller keyPoller) {
+        this.keyPoller = keyPoller;
+        keys = new boolean[5];
+        inputs = new int[HISTORY];
+        steps = new byte[HISTORY];
+    }
+
+    /**
+     * Sets the client's Player once it has been received. It is where the
+     * server has put it.
+     * 
+     * @param player The Player of the client.
+     */
+    synchronized void setPlayer(Player player) {
+        this.player = player;
+        serverX = predictedX = player.getFixedX();
+        serverY = predictedY = player.getFixedY();
+    }
+
+    /**
+     * Moves the client's Player like the server will (see
+     * GameManager.updatePlayer()) and keeps the tick to be replayed. Is
+     * called every tick before the Players are updated.
+     */
+    synchronized void tick() {
+        if (player == null)
+            return;
+        int input = keyPoller.getInputs(keys);
+        byte dirX = 0, dirY = 0;
+        if (keys[GameManager.LEFT])
+            dirX--;
+        if (keys[GameManager.RIGHT])
+            dirX++;
+        if (keys[GameManager.UP])
+            dirY--;
+        if (keys[GameManager.DOWN])
+            dirY++;
+        player.move(dirX, dirY);
+        predictedX = player.getFixedX();
+        predictedY = player.getFixedY();
+
+        if (count == HISTORY) { // the server lags far behind
+            first = (first + 1) % HISTORY;
+            count--;
+        }
+        int i = (first + count++) % HISTORY;
+        inputs[i] = input;
+        steps[i] = (byte) (dirX + 1 | dirY + 1 << 2);
+    }
+
+    /**
+     * Takes the position of the client's Player after the given number of
+     * inputs has been applied for the given number of ticks, drops the ticks
+     * the server has simulated and replays the others.
+     * 
+     * @param inputs The number of inputs the server has applied.
+     * @param ticks The number of ticks it has applied them for.
+     * @param fixedX The x coordinate of the Player in 1/UNIT tiles.
+     * @param fixedY The y coordinate of the Player in 1/UNIT tiles.
+     */
+    synchronized void correct(int inputs, int ticks, int fixedX, int fixedY) {
+        serverX = fixedX;
+        serverY = fixedY;
+        if (inputs != confirmed) {
+            confirmed = inputs;
+            dropped = 0;
+        }
+        while (count > 0
+                && (this.inputs[first] < inputs || this.inputs[first] == inputs
+                        && dropped < ticks)) {
+            if (this.inputs[first] == inputs)
+                dropped++;
+            first = (first + 1) % HISTORY;
+            count--;
+        }
+        if (player == null)
+            return;
+
+        player.setFixedPos(fixedX, fixedY);
+        for (int i = 0; i < count; i++) {
+            byte step = steps[(first + i) % HISTORY];
+            player.move((byte) ((step & 3) - 1), (byte) ((step >> 2) - 1));
+        }
+        predictedX = player.getFixedX();
+        predictedY = player.getFixedY();
+    }
+
+    /**
+     * Applies a SNAPSHOT (see Snapshot.apply()) but keeps the predicted
+     * position of the client's Player.
+     * 
+     * @param in The input to read the delta from.
+     * @param lvl The Level to apply the delta to.
+     * @param players The Players of the Level in the order they joined.
+     * @throws IOException If the delta cannot be read or is invalid.
+     */
+    synchronized void applySnapshot(DataInput in, Level lvl,
+            List<? extends Player> players) throws IOException {
+        Snapshot.apply(in, lvl, players);
+        if (player != null)
+            player.setFixedPos(predictedX, predictedY);
+    }
+
+    /**
+     * Returns the hash of the state of the given Level (see
+     * Level.getStateHash()) with the client's Player where the server has put
+     * it, so it can be compared with the server's HASH.
+     * 
+     * @param lvl The Level of the client.
+     * @return The hash of the state of the Level.
+     */
+    synchronized long getStateHash(Level lvl) {
+        if (player == null)
+            return lvl.getStateHash();
+        player.setFixedPos(serverX, serverY);
+        long hash = lvl.getStateHash();
+        player.setFixedPos(predictedX, predictedY);
+        return hash;
+    }
+}
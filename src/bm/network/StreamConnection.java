@@ -0,0 +1,210 @@
+package bm.network;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * This class provides the connection of a NetworkServer to a single client
+ * over TCP.
+ * 
+ * The GameManager writes to the client through getOutput(). What it writes is
+ * collected in buffers taken from the NetworkServer's pool; flushing the
+ * output sends as much of it as the channel takes right away and leaves the
+ * rest to the NetworkServer's thread. A client that does not keep up with
+ * its output (see MAXQUEUED) is disconnected.
+ * 
+ * As the client acknowledges every SNAPSHOT in the order it has been sent and
+ * an ACK only carries the lowest four bits of its id, the number of ACKs tells
+ * which Snapshot has been acknowledged last; the bits have to match.
+ */
+final class StreamConnection extends Connection {
+
+    /** Maximum number of bytes waiting to be sent before giving up. */
+    static final int MAXQUEUED = 1 << 20;
+
+    final SocketChannel channel;
+    private volatile int acks; // number of ACKs << 4 | the last one's id & 15
+    private final ArrayDeque<Integer> sent; // ids of unacknowledged Snapshots
+    private int counted; // number of ACKs taken into account
+    private int acked = -1; // the id of the last Snapshot acknowledged
+
+    private final DataOutputStream output; // see getOutput()
+    private ByteBuffer fill; // the buffer being written to, see Output
+    private final ArrayDeque<ByteBuffer> queue; // flushed buffers to be sent
+    private int queued; // number of bytes in queue
+
+    /**
+     * Creates a new StreamConnection to the client at the other end of the
+     * given channel.
+     * 
+     * @param server The NetworkServer that has accepted the client.
+     * @param channel The non-blocking channel to the client.
+     */
+    StreamConnection(NetworkServer server, SocketChannel channel) {
+        super(server);
+        this.channel = channel;
+        sent = new ArrayDeque<Integer>();
+        output = new DataOutputStream(new Output());
+        queue = new ArrayDeque<ByteBuffer>();
+    }
+
+    @Override
+    DataOutputStream getOutput() {
+        return output;
+    }
+
+    @Override
+    void sendSnapshot(byte[] snapshot, int id) throws IOException {
+        output.write(snapshot);
+        sent.add(id);
+    }
+
+    @Override
+    void sendState(byte[] b, int off, int len) throws IOException {
+        output.write(b, off, len);
+    }
+
+    @Override
+    void acknowledge(int nibble) {
+        acks = (acks & ~0x0F) + 0x10 | nibble; // only written by one thread
+    }
+
+    @Override
+    int getAckedSnapshot() {
+        int acks = this.acks;
+        for (; counted < acks >>> 4 && !sent.isEmpty(); counted++)
+            acked = sent.poll();
+        return (acked & 0x0F) == (acks & 0x0F) ? acked : -1;
+    }
+
+    @Override
+    boolean isDatagram() {
+        return false;
+    }
+
+    /**
+     * Reads whatever the client has sent and decodes it. Is invoked by the
+     * NetworkServer's thread whenever the channel is readable.
+     * 
+     * @throws IOException If the client has disconnected or misbehaves.
+     */
+    void read() throws IOException {
+        if (channel.read(getInput()) < 0)
+            throw new EOFException();
+        decode();
+    }
+
+    /**
+     * Sends as much of the flushed output as the channel takes. May be called
+     * by any thread.
+     * 
+     * @return true if everything has been sent.
+     * @throws IOException If the output cannot be sent.
+     */
+    boolean write() throws IOException {
+        synchronized (queue) {
+            while (!queue.isEmpty()) {
+                ByteBuffer buffer = queue.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining())
+                    return false;
+                queued -= buffer.limit();
+                server.release(queue.poll());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Hands the output written so far over to the channel. What the channel
+     * does not take right away is sent by the NetworkServer's thread.
+     */
+    private void flush() {
+        if (fill != null && isClosed()) {
+            server.release(fill);
+            fill = null;
+        }
+        if (fill == null || fill.position() == 0)
+            return;
+        fill.flip();
+        boolean overflow, sent;
+        synchronized (queue) {
+            queue.add(fill);
+            queued += fill.limit();
+            fill = null;
+            overflow = queued > MAXQUEUED;
+        }
+        try {
+            sent = !overflow && write();
+        } catch (IOException e) {
+            sent = false;
+            overflow = true;
+        }
+        if (overflow)
+            close(); // the client has gone or does not keep up
+        else if (!sent)
+            server.requestWrite(this);
+    }
+
+    @Override
+    protected void release() {
+        synchronized (queue) {
+            while (!queue.isEmpty())
+                server.release(queue.poll());
+            queued = 0;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * The stream beneath getOutput(). It is only written to by the thread
+     * holding the GameManager's lock.
+     */
+    private class Output extends OutputStream {
+
+        @Override
+        public void write(int b) {
+            if (prepare())
+                fill.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0 && prepare()) {
+                int n = Math.min(len, fill.remaining());
+                fill.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() {
+            StreamConnection.this.flush();
+        }
+
+        /**
+         * Makes sure there is room in fill, sending it if it is full.
+         * 
+         * @return false if the output is to be dropped.
+         */
+        private boolean prepare() {
+            if (fill != null && !fill.hasRemaining())
+                flush(); // a full buffer is sent right away
+            if (isClosed())
+                return false;
+            if (fill == null)
+                fill = server.acquire();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package bm.sim;
+
+/**
+ * A source of input for a Player of a HeadlessMatch, e.g. a bot or a script.
+ * The input of a tick is packed into a single byte made up of the bits
+ * HeadlessMatch.LEFT, RIGHT, UP, DOWN and BOMB.
+ */
+public interface Controller {
+
+    /**
+     * Decides on the input of the num'th Player of the given match for the
+     * current tick. Called once per tick before the match is updated.
+     * 
+     * @param match The match the Player is competing in.
+     * @param num The number of the Player within the match.
+     * @return The input of the Player, see HeadlessMatch.input().
+     */
+    public byte control(HeadlessMatch match, int num);
+}
@@ -0,0 +1,234 @@
+package bm.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bm.Level;
+import bm.Match;
+import bm.Player;
+
+/**
+ * This class provides a Match whose Players are controlled by Controllers
+ * (bots or scripts) instead of keyboards or network clients. It uses neither
+ * AWT nor sound, and update() can be called as fast as the CPU allows, so
+ * matches can be simulated many times faster than real time.
+ * 
+ * On every tick, each Controller decides on the input of its Player, then the
+ * Level is updated and finally each Player is moved, updated and possibly
+ * plants a Bomb, just like in GameManager. The time spent in each of these
+ * phases is summed up (see getPhaseTime()).
+ */
+public class HeadlessMatch extends Match {
+
+    /* bits of the input of a Player */
+    /** Input bit telling a Player to move to the left. */
+    public static final byte LEFT = 0x01;
+    /** Input bit telling a Player to move to the right. */
+    public static final byte RIGHT = 0x02;
+    /** Input bit telling a Player to move up. */
+    public static final byte UP = 0x04;
+    /** Input bit telling a Player to move down. */
+    public static final byte DOWN = 0x08;
+    /** Input bit telling a Player to plant a Bomb. */
+    public static final byte BOMB = 0x10;
+
+    /* phases of a tick */
+    /** Phase in which the Controllers decide on the input. */
+    public static final int INPUT = 0;
+    /** Phase in which the Level is updated. */
+    public static final int LEVEL = 1;
+    /** Phase in which the Players are moved and updated. */
+    public static final int PLAYERS = 2;
+    /** Number of phases of a tick. */
+    public static final int PHASES = 3;
+
+    private final List<Controller> controllers; // of each Player or null
+    private byte[] inputs; // input of each Player on the current tick
+    private final long[] phaseTimes; // ns spent in each phase
+    private long ticks; // number of calls to update()
+    private int bombs; // number of Bombs planted
+
+    /**
+     * Creates a new HeadlessMatch taking place in the given Level. No Player
+     * has joined it yet.
+     * 
+     * @param lvl The Level where this match takes place.
+     */
+    public HeadlessMatch(Level lvl) {
+        super(lvl);
+        controllers = new ArrayList<Controller>();
+        inputs = new byte[0];
+        phaseTimes = new long[PHASES];
+    }
+
+    /**
+     * Packs the given input into a single byte.
+     * 
+     * @param dirX The horizontal direction: < 0 left, > 0 right, == 0 none.
+     * @param dirY The vertical direction: < 0 up, > 0 down, == 0 none.
+     * @param bomb true if a Bomb is to be planted.
+     * @return The packed input.
+     */
+    public static byte input(int dirX, int dirY, boolean bomb) {
+        byte input = 0;
+        if (dirX < 0)
+            input |= LEFT;
+        else if (dirX > 0)
+            input |= RIGHT;
+        if (dirY < 0)
+            input |= UP;
+        else if (dirY > 0)
+            input |= DOWN;
+        if (bomb)
+            input |= BOMB;
+        return input;
+    }
+
+    /**
+     * Returns the horizontal direction of the given input.
+     * 
+     * @param input The packed input.
+     * @return -1 for left, 1 for right or 0.
+     */
+    public static byte getDirX(byte input) {
+        if ((input & LEFT) != 0)
+            return -1;
+        return (byte) ((input & RIGHT) != 0 ? 1 : 0);
+    }
+
+    /**
+     * Returns the vertical direction of the given input.
+     * 
+     * @param input The packed input.
+     * @return -1 for up, 1 for down or 0.
+     */
+    public static byte getDirY(byte input) {
+        if ((input & UP) != 0)
+            return -1;
+        return (byte) ((input & DOWN) != 0 ? 1 : 0);
+    }
+
+    /**
+     * Lets a new Player join this match. It will not move unless a Controller
+     * is given by addPlayer(name, fstClr, sndClr, controller).
+     */
+    @Override
+    public Player addPlayer(String name, int fstClr, int sndClr) {
+        return addPlayer(name, fstClr, sndClr, null);
+    }
+
+    /**
+     * Lets a new Player controlled by the given Controller join this match.
+     * 
+     * @param name The name of the new Player.
+     * @param fstClr The first color of the new Player.
+     * @param sndClr The second color of the new Player.
+     * @param controller The Controller of the new Player or null if it is not
+     * going to do anything.
+     * @return The new Player.
+     */
+    public Player addPlayer(String name, int fstClr, int sndClr,
+            Controller controller) {
+        Player player = super.addPlayer(name, fstClr, sndClr);
+        controllers.add(controller);
+        if (inputs.length < controllers.size())
+            inputs = new byte[controllers.size() * 2];
+        return player;
+    }
+
+    /**
+     * Returns the number of times this match has been updated.
+     * 
+     * @return The number of ticks played.
+     */
+    public long getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Returns the number of Bombs that have been planted in this match.
+     * 
+     * @return The number of Bombs planted.
+     */
+    public int getBombCount() {
+        return bombs;
+    }
+
+    /**
+     * Returns the number of Players that have died in this match.
+     * 
+     * @return The number of dead Players.
+     */
+    public int getDeathCount() {
+        int dead = 0;
+        for (int i = 0; i < players.size(); i++)
+            if (players.get(i).isDead())
+                dead++;
+        return dead;
+    }
+
+    /**
+     * Returns the time spent in the given phase of all ticks so far.
+     * 
+     * @param phase INPUT, LEVEL or PLAYERS.
+     * @return The time spent in the given phase in ns.
+     */
+    public long getPhaseTime(int phase) {
+        return phaseTimes[phase];
+    }
+
+    /**
+     * Returns the number of the Player who has won this match: the one who has
+     * reached the EXIT or, once this match is over, the only one left alive.
+     * If there is no such Player (yet), -1 is returned.
+     * 
+     * @return The number of the winner or -1.
+     */
+    public int getWinner() {
+        int alive = -1;
+        for (int i = 0; i < players.size(); i++) {
+            if (players.get(i).hasWon())
+                return i;
+            if (!players.get(i).isDead())
+                alive = alive == -1 ? i : -2;
+        }
+        return alive >= 0 && players.size() > 1 ? alive : -1;
+    }
+
+    /**
+     * Performs an update on this match: first each Controller decides on the
+     * input of its Player, then the Level and each Player are updated.
+     */
+    @Override
+    public void update() {
+        long start = System.nanoTime();
+        for (int i = 0; i < controllers.size(); i++) {
+            Controller controller = controllers.get(i);
+            inputs[i] = controller == null ? 0 : controller.control(this, i);
+        }
+        long input = System.nanoTime();
+        lvl.update();
+        long level = System.nanoTime();
+        for (int i = 0; i < players.size(); i++)
+            updatePlayer(i);
+        long end = System.nanoTime();
+        phaseTimes[INPUT] += input - start;
+        phaseTimes[LEVEL] += level - input;
+        phaseTimes[PLAYERS] += end - level;
+        ticks++;
+    }
+
+    /**
+     * Moves and updates the num'th Player according to its input and lets it
+     * plant a Bomb if it wants to.
+     */
+    @Override
+    protected void updatePlayer(int num) {
+        Player player = players.get(num);
+        byte input = inputs[num];
+        player.move(getDirX(input), getDirY(input));
+        player.update();
+        if ((input & BOMB) != 0 && player.putBomb())
+            bombs++;
+    }
+}
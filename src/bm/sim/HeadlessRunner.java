@@ -0,0 +1,129 @@
+package bm.sim;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import bm.Level;
+import bm.io.LevelParser;
+import bm.log.Logger;
+
+/**
+ * Simulates matches without a window, sound or sleeping between the ticks, so
+ * they are played as fast as the CPU allows. The Players are controlled by
+ * RandomControllers or by a script (see ScriptedController). The games are
+ * played one after another; a game ends when it is over (see
+ * HeadlessMatch.isOver()) or after maxticks ticks. Afterwards, the sustained
+ * number of ticks per second, the time each phase of a tick took on average
+ * and the peak heap usage are reported.
+ * 
+ * Usage: HeadlessRunner [map|size] [players] [games] [maxticks] [seed] [script]
+ * 
+ * The first argument is either the path of a map or the width/height of a
+ * randomly created Level (with an EXIT). Each game gets its own seed, counting
+ * up from the given one.
+ */
+public class HeadlessRunner {
+
+    /** Default width/height of the simulated Levels. */
+    public static final String DEFAULTMAP = "21";
+    /** Default number of Players in each game. */
+    public static final int DEFAULTPLAYERS = 4;
+    /** Default number of games. */
+    public static final int DEFAULTGAMES = 100;
+    /** Default maximum number of ticks of a game. */
+    public static final long DEFAULTMAXTICKS = 60 * 60 * 5;
+    /** Default seed of the first game. */
+    public static final long DEFAULTSEED = 0;
+    /** Ticks per second of a match played in real time. */
+    public static final int REALTIMETICKS = 60;
+
+    /** Format for reporting the number of games and ticks. */
+    public static final String GAMES = "%d games, %d ticks (%.1f ticks/game, %d draws)";
+    /** Format for reporting the throughput. */
+    public static final String THROUGHPUT = "%.3f s: %.0f ticks/s (%.1fx real time)";
+    /** Format for reporting the time spent in a phase. */
+    public static final String PHASE = "%-8s %12.1f ns/tick";
+    /** Format for reporting the peak heap usage. */
+    public static final String HEAP = "peak heap: %.1f MB";
+
+    private static final String[] PHASENAMES = { "input", "level",
+            "players" };
+
+    public static void main(String[] args) throws Exception {
+        String map = args.length > 0 ? args[0] : DEFAULTMAP;
+        int players = args.length > 1 ? Integer.parseInt(args[1])
+                : DEFAULTPLAYERS;
+        int games = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULTGAMES;
+        long maxTicks = args.length > 3 ? Long.parseLong(args[3])
+                : DEFAULTMAXTICKS;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : DEFAULTSEED;
+        Controller[] script = args.length > 5 ? ScriptedController.read(
+                args[5], players) : null;
+        short[][] tiles = isNumber(map) ? null : LevelParser.parseMap(map,
+                true);
+        int size = tiles == null ? Integer.parseInt(map) : 0;
+
+        // dying Players tell everyone about it; nobody wants to read that here
+        Logger.setQuiet(true);
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            pool.resetPeakUsage();
+        long ticks = 0;
+        int draws = 0;
+        long[] phaseTimes = new long[HeadlessMatch.PHASES];
+        long start = System.nanoTime();
+        for (int game = 0; game < games; game++) {
+            HeadlessMatch match = createMatch(tiles, size, players, script,
+                    seed + game);
+            while (!match.isOver() && match.getTicks() < maxTicks)
+                match.update();
+            ticks += match.getTicks();
+            if (match.getWinner() < 0)
+                draws++;
+            for (int phase = 0; phase < HeadlessMatch.PHASES; phase++)
+                phaseTimes[phase] += match.getPhaseTime(phase);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format(GAMES, games, ticks, (double) ticks
+                / games, draws));
+        System.out.println(String.format(THROUGHPUT, seconds, ticks / seconds,
+                ticks / seconds / REALTIMETICKS));
+        for (int phase = 0; phase < HeadlessMatch.PHASES; phase++)
+            System.out.println(String.format(PHASE, PHASENAMES[phase],
+                    (double) phaseTimes[phase] / ticks));
+        long heap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                heap += pool.getPeakUsage().getUsed();
+        System.out.println(String.format(HEAP, heap / 1048576.0));
+    }
+
+    /*
+     * Creates a match in a Level made from the given tiles or, if there are
+     * none, in a random Level of size x size tiles. The Players are controlled
+     * by the given script or, if there is none, by RandomControllers. Nothing
+     * is shared with other matches but the tiles and the script, which are
+     * only read, so matches can be played on several threads at once.
+     */
+    static HeadlessMatch createMatch(short[][] tiles, int size, int players,
+            Controller[] script, long seed) {
+        Level lvl = tiles == null ? new Level(size, size, true, true, seed)
+                : new Level(tiles, true, seed);
+        HeadlessMatch match = new HeadlessMatch(lvl);
+        for (int i = 0; i < players; i++)
+            match.addPlayer("Player " + i, 0, 0, script != null ? script[i]
+                    : new RandomController(seed * 31 + i));
+        return match;
+    }
+
+    /*
+     * Returns true if the given text consists of digits only.
+     */
+    static boolean isNumber(String text) {
+        for (int i = 0; i < text.length(); i++)
+            if (!Character.isDigit(text.charAt(i)))
+                return false;
+        return text.length() > 0;
+    }
+}
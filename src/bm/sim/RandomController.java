@@ -0,0 +1,40 @@
+package bm.sim;
+
+import java.util.SplittableRandom;
+
+/**
+ * A Controller that lets its Player walk around randomly: it changes its
+ * direction with a chance of 1/TURNCHANCE and tries to plant a Bomb with a
+ * chance of 1/BOMBCHANCE on each tick. The same seed always leads to the same
+ * input.
+ */
+public class RandomController implements Controller {
+
+    /** Chance (1/TURNCHANCE) of changing the direction on a tick. */
+    public static final int TURNCHANCE = 20;
+    /** Chance (1/BOMBCHANCE) of planting a Bomb on a tick. */
+    public static final int BOMBCHANCE = 30;
+
+    private final SplittableRandom random;
+    private byte direction; // the current direction as input bits
+
+    /**
+     * Creates a new RandomController whose decisions are determined by the
+     * given seed.
+     * 
+     * @param seed The seed of the random number generator.
+     */
+    public RandomController(long seed) {
+        random = new SplittableRandom(seed);
+    }
+
+    @Override
+    public byte control(HeadlessMatch match, int num) {
+        if (random.nextInt(TURNCHANCE) == 0)
+            direction = HeadlessMatch.input(random.nextInt(3) - 1,
+                    random.nextInt(3) - 1, false);
+        if (random.nextInt(BOMBCHANCE) == 0)
+            return (byte) (direction | HeadlessMatch.BOMB);
+        return direction;
+    }
+}
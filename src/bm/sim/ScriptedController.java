@@ -0,0 +1,146 @@
+package bm.sim;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+import bm.io.IllegalFormatException;
+
+/**
+ * A Controller that replays a script. A script is a text file with one entry
+ * per line:
+ * 
+ * tick player input
+ * 
+ * where input is made up of the letters L, R, U, D (directions) and B (plant a
+ * Bomb), or is - for none. Starting with the given tick, the Player with the
+ * given number receives this input until the next entry for it. Empty lines
+ * and lines starting with // are ignored. The entries of each Player have to
+ * be in ascending order of ticks.
+ * 
+ * A ScriptedController only depends on the tick of the match, so it can be
+ * used for any number of matches, even at the same time.
+ */
+public class ScriptedController implements Controller {
+
+    private final long[] ticks; // tick of each entry, ascending
+    private final byte[] inputs; // input of each entry
+
+    /**
+     * Creates a new ScriptedController that replays the given entries.
+     * 
+     * @param ticks The tick of each entry, in ascending order.
+     * @param inputs The input of each entry.
+     */
+    public ScriptedController(long[] ticks, byte[] inputs) {
+        this.ticks = ticks;
+        this.inputs = inputs;
+    }
+
+    /**
+     * Reads the script at the given path and returns a ScriptedController for
+     * each of the given number of Players.
+     * 
+     * @param path The path of the script.
+     * @param players The number of Players.
+     * @return One ScriptedController for each Player.
+     * @throws IllegalFormatException If the script is malformed.
+     * @throws IOException If the script cannot be read.
+     */
+    public static ScriptedController[] read(String path, int players)
+            throws IllegalFormatException, IOException {
+        long[][] ticks = new long[players][4];
+        byte[][] inputs = new byte[players][4];
+        int[] count = new int[players];
+        BufferedReader in = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            int number = 0;
+            while ((line = in.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("//"))
+                    continue;
+                String[] parts = line.split("\\s+");
+                if (parts.length != 3)
+                    throw new IllegalFormatException("line " + number);
+                long tick;
+                int player;
+                try {
+                    tick = Long.parseLong(parts[0]);
+                    player = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalFormatException("line " + number);
+                }
+                if (player < 0 || player >= players)
+                    continue; // not taking part
+                int n = count[player];
+                if (n > 0 && ticks[player][n - 1] > tick)
+                    throw new IllegalFormatException("line " + number);
+                if (n == ticks[player].length) {
+                    ticks[player] = Arrays.copyOf(ticks[player], n * 2);
+                    inputs[player] = Arrays.copyOf(inputs[player], n * 2);
+                }
+                ticks[player][n] = tick;
+                inputs[player][n] = parseInput(parts[2], number);
+                count[player]++;
+            }
+        } finally {
+            in.close();
+        }
+        ScriptedController[] controllers = new ScriptedController[players];
+        for (int i = 0; i < players; i++)
+            controllers[i] = new ScriptedController(Arrays.copyOf(ticks[i],
+                    count[i]), Arrays.copyOf(inputs[i], count[i]));
+        return controllers;
+    }
+
+    /*
+     * Parses the input of an entry of a script.
+     */
+    private static byte parseInput(String text, int number)
+            throws IllegalFormatException {
+        if (text.equals("-"))
+            return 0;
+        byte input = 0;
+        for (int i = 0; i < text.length(); i++) {
+            switch (text.charAt(i)) {
+            case 'L':
+                input |= HeadlessMatch.LEFT;
+                break;
+            case 'R':
+                input |= HeadlessMatch.RIGHT;
+                break;
+            case 'U':
+                input |= HeadlessMatch.UP;
+                break;
+            case 'D':
+                input |= HeadlessMatch.DOWN;
+                break;
+            case 'B':
+                input |= HeadlessMatch.BOMB;
+                break;
+            default:
+                throw new IllegalFormatException("line " + number);
+            }
+        }
+        return input;
+    }
+
+    @Override
+    public byte control(HeadlessMatch match, int num) {
+        // find the last entry that has started (binary search)
+        long tick = match.getTicks();
+        // ticks[low - 1] <= tick < ticks[high]
+        int low = 0, high = ticks.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ticks[mid] <= tick)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low == 0 ? 0 : inputs[low - 1];
+    }
+}
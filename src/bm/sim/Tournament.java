@@ -0,0 +1,192 @@
+package bm.sim;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import bm.io.LevelParser;
+import bm.log.Logger;
+
+/**
+ * Plays a tournament of many independent bot-vs-bot matches (see
+ * HeadlessMatch) on all cores. The games are spread over a ForkJoinPool: the
+ * range of games is split in halves until every task plays exactly one match,
+ * with a Level and Controllers of its own. Each task returns its results, which
+ * are merged while the tasks are joined, so no state is shared between the
+ * threads and the tournament scales with the number of cores.
+ * 
+ * Usage: Tournament [map|size] [players] [games] [maxticks] [seed] [results]
+ * [threads]
+ * 
+ * map, size, players, maxticks and seed are the same as for HeadlessRunner;
+ * the Players are controlled by RandomControllers. Since every game has its
+ * own seed, the results do not depend on the number of threads. At the end,
+ * the win rate of each Player, the average length of the games and the number
+ * of Bombs per kill are written to the file results.
+ */
+public class Tournament {
+
+    /** Default number of games. */
+    public static final int DEFAULTGAMES = 10000;
+    /** Default path of the results file. */
+    public static final String DEFAULTRESULTS = "tournament.txt";
+
+    /** Format for reporting the progress of the tournament. */
+    public static final String FINISHED = "%d games on %d threads in %.3f s (%.0f games/s, %.0f ticks/s), results written to %s";
+    /** Format for the header of the results file. */
+    public static final String HEADER = "# map %s, %d players, %d games, maxticks %d, seed %d";
+    /** Format for an entry of the results file. */
+    public static final String ENTRY = "%-14s %s";
+
+    public static void main(String[] args) throws Exception {
+        String map = args.length > 0 ? args[0] : HeadlessRunner.DEFAULTMAP;
+        int players = args.length > 1 ? Integer.parseInt(args[1])
+                : HeadlessRunner.DEFAULTPLAYERS;
+        int games = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULTGAMES;
+        long maxTicks = args.length > 3 ? Long.parseLong(args[3])
+                : HeadlessRunner.DEFAULTMAXTICKS;
+        long seed = args.length > 4 ? Long.parseLong(args[4])
+                : HeadlessRunner.DEFAULTSEED;
+        String path = args.length > 5 ? args[5] : DEFAULTRESULTS;
+        int threads = args.length > 6 ? Integer.parseInt(args[6]) : Runtime
+                .getRuntime().availableProcessors();
+        short[][] tiles = HeadlessRunner.isNumber(map) ? null : LevelParser
+                .parseMap(map, true);
+        int size = tiles == null ? Integer.parseInt(map) : 0;
+
+        // dying Players tell everyone about it; nobody wants to read that here
+        Logger.setQuiet(true);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+        Results results = pool.invoke(new Games(tiles, size, players,
+                maxTicks, seed, 0, games));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+
+        write(results, path, String.format(HEADER, map, players, games,
+                maxTicks, seed));
+        System.out.println(String.format(FINISHED, games, threads, seconds,
+                games / seconds, results.ticks / seconds, path));
+    }
+
+    /*
+     * Writes the given results to the file at the given path.
+     */
+    private static void write(Results results, String path, String header)
+            throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(path));
+        try {
+            writer.println(header);
+            writer.println(String.format(ENTRY, "games", results.games));
+            writer.println(String.format(ENTRY, "draws", results.draws));
+            writer.println(String.format(ENTRY, "length", String.format(
+                    "%.2f", (double) results.ticks / results.games)));
+            writer.println(String.format(ENTRY, "bombs", results.bombs));
+            writer.println(String.format(ENTRY, "kills", results.kills));
+            writer.println(String.format(ENTRY, "bombsperkill", String.format(
+                    "%.3f", results.kills == 0 ? 0 : (double) results.bombs
+                            / results.kills)));
+            for (int i = 0; i < results.wins.length; i++)
+                writer.println(String.format(ENTRY, "winrate." + i, String
+                        .format("%.4f", (double) results.wins[i]
+                                / results.games)));
+        } finally {
+            writer.close();
+        }
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // ///////////////////////////TASKS/////////////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /*
+     * The results of a number of games.
+     */
+    private static class Results {
+
+        private final long[] wins; // number of games won by each Player
+        private long games, draws, ticks, bombs, kills;
+
+        Results(int players) {
+            wins = new long[players];
+        }
+
+        /*
+         * Adds the results of the given match (which has ended).
+         */
+        void add(HeadlessMatch match) {
+            int winner = match.getWinner();
+            if (winner >= 0)
+                wins[winner]++;
+            else
+                draws++;
+            games++;
+            ticks += match.getTicks();
+            bombs += match.getBombCount();
+            kills += match.getDeathCount();
+        }
+
+        /*
+         * Adds the given results to these ones and returns them.
+         */
+        Results merge(Results other) {
+            for (int i = 0; i < wins.length; i++)
+                wins[i] += other.wins[i];
+            games += other.games;
+            draws += other.draws;
+            ticks += other.ticks;
+            bombs += other.bombs;
+            kills += other.kills;
+            return this;
+        }
+    }
+
+    /*
+     * Plays the games from (inclusive) to to (exclusive). A range of more than
+     * one game is split in halves, which are played by subtasks.
+     */
+    private static class Games extends RecursiveTask<Results> {
+
+        // automatically generated
+        private static final long serialVersionUID = 1L;
+
+        private final short[][] tiles; // only read by the tasks
+        private final int size, players, from, to;
+        private final long maxTicks, seed;
+
+        Games(short[][] tiles, int size, int players, long maxTicks,
+                long seed, int from, int to) {
+            this.tiles = tiles;
+            this.size = size;
+            this.players = players;
+            this.maxTicks = maxTicks;
+            this.seed = seed;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Results compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                Games left = new Games(tiles, size, players, maxTicks, seed,
+                        from, mid);
+                left.fork();
+                Results right = new Games(tiles, size, players, maxTicks,
+                        seed, mid, to).compute();
+                return left.join().merge(right);
+            }
+            Results results = new Results(players);
+            for (int game = from; game < to; game++) {
+                HeadlessMatch match = HeadlessRunner.createMatch(tiles, size,
+                        players, null, seed + game);
+                while (!match.isOver() && match.getTicks() < maxTicks)
+                    match.update();
+                results.add(match);
+            }
+            return results;
+        }
+    }
+}